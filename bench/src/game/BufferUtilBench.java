@@ -0,0 +1,69 @@
+package game;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Direct buffer creation for every vbo upload, against staging the same data in StagingArena.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferUtilBench {
+
+  @Param({"60", "60000"})
+  int size;
+
+  int[] ints;
+  float[] floats;
+
+  @Setup
+  public void setup() {
+    ints = new int[size];
+    floats = new float[size];
+    for (int i = 0; i < size; i++) {
+      ints[i] = i;
+      floats[i] = i * 0.5f;
+    }
+  }
+
+  @Benchmark
+  public IntBuffer makeInts() {
+    return BufferUtil.make(ints);
+  }
+
+  @Benchmark
+  public FloatBuffer makeFloats() {
+    return BufferUtil.make(floats);
+  }
+
+  @Benchmark
+  public IntBuffer stageInts() {
+    long mark = StagingArena.mark();
+    IntBuffer b = StagingArena.ints(ints);
+    StagingArena.release(mark);
+    return b;
+  }
+
+  @Benchmark
+  public FloatBuffer stageFloats() {
+    long mark = StagingArena.mark();
+    FloatBuffer b = StagingArena.floats(floats, size);
+    StagingArena.release(mark);
+    return b;
+  }
+}
@@ -0,0 +1,41 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GL object id tracking: allocates a batch of ids, then releases them all. Reported per id.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GLObjectsBench {
+
+  static final int BATCH = 1024;
+
+  @Setup
+  public void setup() {
+    Headless.install();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void allocAndFree() {
+    for (int i = 0; i < BATCH; i++) {
+      GLObjects.allocVbo();
+    }
+    GLObjects.freeAll();
+  }
+}
@@ -0,0 +1,56 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cpu cost of one frame of Room submission + queue flush against the headless backend, for the three ways a room
+// can be drawn: one draw per object, one instanced draw per mesh, or a single baked mesh.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomRenderBench {
+
+  @Param({"1000", "10000", "100000"})
+  int objects;
+
+  @Param({"objects", "instanced", "baked"})
+  String mode;
+
+  Room room;
+  RenderQueue queue;
+
+  @Setup
+  public void setup() {
+    Headless.install();
+    room = new Room(0, 0, 0);
+    int side = (int) Math.ceil(Math.sqrt(objects));
+    for (int i = 0; i < objects; i++) {
+      room.addObj((i & 1) == 0 ? Room.box : Room.pyr, i % side, i / side, i % 3);
+    }
+    room.instanced = mode.equals("instanced");
+    if (mode.equals("baked")) {
+      room.bake();
+    }
+    queue = new RenderQueue(Config.RENDER_QUEUE_CAPACITY);
+  }
+
+  @Benchmark
+  public void render() {
+    room.render(queue, 0, 0, 0);
+    queue.flush();
+  }
+}
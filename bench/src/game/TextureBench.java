@@ -0,0 +1,48 @@
+package game;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per pixel argb -> RGBA conversion done by Texture.create before every upload.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureBench {
+
+  @Param({"16", "256"})
+  int side;
+
+  int[] pixels;
+
+  @Setup
+  public void setup() {
+    Headless.install(); // Texture's static init uploads the test texture
+    pixels = new int[side * side];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = PixelUtil.rgba(i & 0xff, (i >> 8) & 0xff, 0x80, 0xff);
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer pack() {
+    long mark = StagingArena.mark();
+    ByteBuffer b = Texture.pack(StagingArena.bytes(4 * pixels.length), pixels.length, pixels);
+    StagingArena.release(mark);
+    return b;
+  }
+}
@@ -0,0 +1,129 @@
+package game;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Room occupancy queries through the TileIndex: tile lookups, against the linear scan of the objects they replace,
+// picking rays cast down at the floor, and counting or listing the objects of 16 x 16 x 4 tile regions.
+// Reported per query, for a room a quarter full.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileIndexBench {
+
+  static final int QUERIES = 256;
+  static final int SCANS = 16;
+  static final int LEVELS = 4;
+  static final int REGION = 16;
+
+  @Param({"1000", "100000"})
+  int objects;
+
+  Room room;
+  int side;
+  final int[] xs = new int[QUERIES];
+  final int[] ys = new int[QUERIES];
+  final int[] zs = new int[QUERIES];
+  final float[] rays = new float[6 * QUERIES];
+  final int[] out = new int[REGION * REGION * LEVELS];
+
+  @Setup
+  public void setup() {
+    Headless.install();
+    Random rand = new Random(42);
+    room = new Room(0, 0, 0);
+    side = (int) Math.ceil(Math.sqrt(objects)); // 4 levels of side x side tiles
+    for (int i = 0; i < objects; i++) {
+      room.addObj((i & 1) == 0 ? Room.box : Room.pyr, rand.nextInt(side), rand.nextInt(side), rand.nextInt(LEVELS));
+    }
+    for (int q = 0; q < QUERIES; q++) {
+      xs[q] = rand.nextInt(side);
+      ys[q] = rand.nextInt(side);
+      zs[q] = rand.nextInt(LEVELS);
+      int r = 6 * q;
+      rays[r] = rand.nextFloat() * side;
+      rays[r + 1] = rand.nextFloat() * side;
+      rays[r + 2] = LEVELS + 8;
+      rays[r + 3] = rand.nextFloat() - 0.5f;
+      rays[r + 4] = rand.nextFloat() - 0.5f;
+      rays[r + 5] = -1;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public int at() {
+    int sum = 0;
+    for (int q = 0; q < QUERIES; q++) {
+      sum += room.tiles.at(xs[q], ys[q], zs[q]);
+    }
+    return sum;
+  }
+
+  // What at() replaces.
+  @Benchmark
+  @OperationsPerInvocation(SCANS)
+  public int scan() {
+    ObjectStore o = room.objects;
+    int sum = 0;
+    for (int q = 0; q < SCANS; q++) {
+      int found = -1;
+      for (int i = 0; i < o.size; i++) {
+        if (o.x(i) == xs[q] && o.y(i) == ys[q] && o.z(i) == zs[q]) {
+          found = i;
+          break;
+        }
+      }
+      sum += found;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public int pick() {
+    int sum = 0;
+    for (int q = 0; q < QUERIES; q++) {
+      int r = 6 * q;
+      sum += room.tiles.pick(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], 64);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public int count() {
+    int sum = 0;
+    for (int q = 0; q < QUERIES; q++) {
+      sum += room.tiles.count(xs[q], ys[q], 0, xs[q] + REGION - 1, ys[q] + REGION - 1, LEVELS - 1);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public int query() {
+    int sum = 0;
+    for (int q = 0; q < QUERIES; q++) {
+      int n = room.tiles.query(xs[q], ys[q], 0, xs[q] + REGION - 1, ys[q] + REGION - 1, LEVELS - 1, out);
+      sum += n > 0 ? out[n - 1] : 0;
+    }
+    return sum;
+  }
+}
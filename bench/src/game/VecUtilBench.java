@@ -0,0 +1,40 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VecUtilBench {
+
+  final Matrix4f out = new Matrix4f();
+  final Vector3f trans = new Vector3f(1, 2, 3);
+  float angle;
+
+  @Benchmark
+  public Matrix4f transformationMatrix() {
+    angle += 1;
+    VecUtil.transformationMatrix(out, trans, angle, 2 * angle, 3 * angle, 1.5f);
+    return out;
+  }
+
+  @Benchmark
+  public Matrix4f projectionMatrix() {
+    return VecUtil.projectionMatrix(Config.PROJECTION_FOV, Config.PROJECTION_NEAR, Config.PROJECTION_FAR);
+  }
+}
@@ -0,0 +1,7691 @@
+//
+//  Experimenting with OpenGl and LWJGL
+//  Based on ThinMatrix opengl tutorials videos
+//
+
+package game;
+
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.LWJGLException;
+import org.lwjgl.input.Keyboard;
+import org.lwjgl.opengl.ContextAttribs;
+import org.lwjgl.opengl.Display;
+import org.lwjgl.opengl.DisplayMode;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GL40;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GL43;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GLSync;
+import org.lwjgl.opengl.PixelFormat;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+
+/* TODOs:
+ *  - add texture tiles
+ */
+
+
+// The main class
+public final class Game {
+
+  static final Matrix4f proj =
+      VecUtil.projectionMatrix(Config.PROJECTION_FOV, Config.PROJECTION_NEAR, Config.PROJECTION_FAR);
+
+  public static void main(String[] args) throws Exception {
+    ShaderPipeline.preload(); // reads the shaders while the display opens
+
+    // DISPLAY MANAGEMENT
+    Display.setDisplayMode(new DisplayMode(Config.WIDTH, Config.HEIGHT));
+    // 3.3 core: instance divisors and GL_TIME_ELAPSED queries are core from 3.3 on
+    Display.create(new PixelFormat(), new ContextAttribs(3, 3).withForwardCompatible(true).withProfileCore(true));
+    Display.setTitle(Config.TITLE);
+
+    GLUtil.gl.glViewport(0, 0, Config.WIDTH, Config.HEIGHT);
+
+    // Texture loading
+    TileSet tiles = TileSet.tiles;
+
+    // Camera, advanced by GameLoop ticks
+
+    float x = 0;
+    float y = 0;
+    float z = 0;
+
+    GameLoop.start(0); //6f;
+
+    // Geometry startup
+    Room[] rooms = AssetFile.level != null ? AssetFile.level.rooms() : demoRooms();
+    int count = rooms.length;
+    boolean streaming = Config.WORLD_STREAMING && Files.isDirectory(Paths.get(Config.WORLD_DIR));
+    if (streaming) {
+      ChunkStreamer.open(Config.WORLD_DIR);
+    }
+
+    RenderQueue queue = new RenderQueue(Config.RENDER_QUEUE_CAPACITY);
+    queue.keyByGroup = FrameProfiler.enabled && Config.PROFILER_GPU_PER_ROOM;
+    if (Config.DYNAMIC_DEMO) {
+      Spinner.init();
+    }
+
+    boolean overlayKey = false;
+
+    while (!Display.isCloseRequested()) {
+      FrameProfiler.beginFrame();
+      Culling.beginFrame();
+
+      // Process input
+      FrameProfiler.begin(FrameProfiler.INPUT);
+      Input.process();
+      if (Keyboard.isKeyDown(Keyboard.KEY_F3) && !overlayKey) {
+        FrameProfiler.overlay = !FrameProfiler.overlay;
+      }
+      overlayKey = Keyboard.isKeyDown(Keyboard.KEY_F3);
+      int controls = Input.controls();
+      FrameProfiler.end(FrameProfiler.INPUT);
+
+      FrameProfiler.begin(FrameProfiler.SIMULATION);
+      GameLoop.update(controls);
+      x = GameLoop.x;
+      y = GameLoop.y;
+      z = GameLoop.z;
+      FrameProfiler.end(FrameProfiler.SIMULATION);
+
+      // Draw stuff
+      FrameProfiler.begin(FrameProfiler.SUBMIT);
+      StreamBuffer.beginFrame();
+      if (Config.DYNAMIC_DEMO) {
+        Spinner.update();
+      }
+      if (streaming) {
+        ChunkStreamer.update(x, y, z);
+        rooms = ChunkStreamer.rooms;
+        count = ChunkStreamer.count;
+      }
+      if (Config.PORTALS) {
+        Portals.traverse(rooms, count, x, y, z);
+      }
+      queue.camera(x, y, z);
+      ParallelRecorder.record(rooms, count, queue, x, y, z);
+      if (Config.DYNAMIC_DEMO) {
+        Spinner.render(queue, x, y, z);
+      }
+      StreamBuffer.submit();
+      FrameProfiler.end(FrameProfiler.SUBMIT);
+
+      FrameProfiler.begin(FrameProfiler.FLUSH);
+      GLUtil.gl.glEnable(GL11.GL_DEPTH_TEST);
+      GLUtil.gl.glClearColor(0, 0, 0, 1);
+      GLUtil.gl.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+      TextureStreamer.update();
+      queue.flush();
+      StreamBuffer.endFrame();
+      FrameProfiler.drawOverlay();
+      FrameProfiler.end(FrameProfiler.FLUSH);
+
+      // Display sync
+      FrameProfiler.begin(FrameProfiler.SWAP);
+      if (Config.FPS_CAP > 0) {
+        Display.sync(Config.FPS_CAP);
+      }
+      Display.update();
+      FrameProfiler.end(FrameProfiler.SWAP);
+
+      FrameProfiler.endFrame(queue.drawCalls, queue.triangles);
+      StagingArena.reset(); // staged memory never outlives a frame
+      MeshPool.maintain();
+      if (FrameProfiler.enabled && FrameProfiler.frame % Config.SIM_HZ == 0) {
+        Display.setTitle(Config.TITLE + " | " + FrameProfiler.summary() + " | " + Culling.summary());
+      }
+    }
+
+    System.out.println(GLState.report());
+    System.out.println(FrameProfiler.report());
+    System.out.println(GLObjects.report());
+    System.out.println(StagingArena.report());
+    System.out.println(Mesh.report());
+    System.out.println(MeshPool.report());
+    System.out.println(TileMesher.report());
+    System.out.println(TextureStreamer.report());
+    System.out.println(Culling.report());
+    System.out.println(ChunkStreamer.report());
+    System.out.println(GameLoop.report());
+    System.out.println(ParallelRecorder.report());
+    System.out.println(UniformBlocks.report());
+    System.out.println(StreamBuffer.report());
+    System.out.println(ShaderPipeline.report());
+
+    // Cleanup
+    GameLoop.stop();
+    ParallelRecorder.shutdown();
+    ChunkStreamer.shutdown();
+    TextureStreamer.shutdown();
+    ShaderPipeline.shutdown();
+    Shader.freeAll();
+    GLObjects.freeAll();
+    Display.destroy();
+  }
+
+  // The demo level: a center room r1, r2 and r3 on its sides, r4 and r5 above and below.
+  static Room[] demoRooms() {
+    float a = Config.ASPECT_RATIO;
+
+    Room r1 = new Room(0,0,0);
+      r1.addBox(-3, +3);
+      r1.addBox(-3, +1);
+      r1.addBox(-3, -2);
+      r1.addBox(-3, -4);
+
+      r1.addBox(+2, +3);
+      r1.addBox(+2, +1);
+      r1.addBox(+2, -2);
+      r1.addBox(+2, -4);
+
+      r1.addBox(+5, +1);
+      r1.addBox(+5, -2);
+      r1.addBox(-6, +1);
+      r1.addBox(-6, -2);
+
+    Room r2 = new Room(-3 / a, 0, 0);
+      r2.addPyr(+1, -2);
+      r2.addPyr(+1, +1);
+      r2.addPyr(-2, -2);
+      r2.addPyr(-2, +1);
+
+      r2.addPyr(-1, +2);
+      r2.addPyr(+0, +2);
+      r2.addPyr(-1, -3);
+      r2.addPyr(+0, -3);
+
+      r2.addPyr(-3, -0);
+      r2.addPyr(-3, -1);
+      r2.addPyr(+2, -0);
+      r2.addPyr(+2, -1);
+
+    Room r3 = new Room(+3 / a, 0, 0);
+      r3.addBox(-2, +3);
+      r3.addBox(-2, +2);
+      r3.addBox(+1, +3);
+      r3.addBox(+1, +2);
+      r3.addBox(-1, +1);
+      r3.addBox(-0, +1);
+
+    Room r4 = new Room(0, -2, 0);
+      for (int i = 0; i < 5; i++) {
+        r4.addObj(Room.box, -6 + i, +1, +1, TileSet.STONE);
+        r4.addObj(Room.box, -6 + i, -2, +1, TileSet.STONE);
+        r4.addObj(Room.box, 5 - i, +1, +1, TileSet.SAND);
+        r4.addObj(Room.box, 5 - i, -2, +1, TileSet.SAND);
+      }
+      for (int i = 0; i < 2; i++) {
+        r4.addObj(Room.box, -2, 3 - i, +1);
+        r4.addObj(Room.box, +1, 3 - i, +1);
+        r4.addObj(Room.box, -2, -4 + i, +1);
+        r4.addObj(Room.box, +1, -4 + i, +1);
+      }
+      r4.bake(); // static walls: one draw of their visible faces, see TileMesher
+
+    Room r5 = new Room(0, +2, 0);
+
+    // Doors in the middle of the walls between r1 and its neighbors.
+    r1.addPortal(r2, -6, -1, 0, -6, +1, 2);
+    r2.addPortal(r1, +6, -1, 0, +6, +1, 2);
+    r1.addPortal(r3, +6, -1, 0, +6, +1, 2);
+    r3.addPortal(r1, -6, -1, 0, -6, +1, 2);
+    r1.addPortal(r4, -1, -4, 0, +1, -4, 2);
+    r4.addPortal(r1, -1, +4, 0, +1, +4, 2);
+    r1.addPortal(r5, -1, +4, 0, +1, +4, 2);
+    r5.addPortal(r1, -1, -4, 0, +1, -4, 2);
+
+    return new Room[] { r1, r2, r3, r4, r5 };
+  }
+}
+
+
+// Useful constants to avoid hardcoding mystical values in the middle of even more mystical argument lists.
+interface K {
+
+  boolean debug = false;
+
+  boolean no_transpose = false;
+
+  int gl_null = 0;
+  int offset0 = 0;
+  int stride0 = 0;
+
+  int attr0 = 0;
+  int attr1 = 1;
+  int attr2 = 2;
+  int attr3 = 3;
+  int attr4 = 4;
+
+  int float_per_vertex = 3;
+  int float_per_uv = 2;
+  int float_per_offset = 3;
+  int float_per_layer = 1;
+  int float_per_instance = 4; // offset + layer
+
+  int divisor_per_instance = 1;
+
+  int texture_units = 16;
+  int floats_per_uniform = 16; // enough for a mat4
+
+  int block_frame = 0; // uniform block binding points, see UniformBlocks
+  int block_draw = 1;
+  int uniform_bindings = 2;
+}
+
+
+// Static functions for reducing GL syntax bloat.
+final class GLUtil {
+  // TODO: add debugging logging for tracking id/attrs binding and unbinding ops.
+
+  // Every GL call goes through this backend. Swap it for a RecordingBackend before any Shader, Mesh or
+  // Texture class is initialized to run without a display.
+  static GLBackend gl = new LwjglBackend();
+
+  // Bind functions take GLObjects handles.
+
+  static void vaoBind(int vao) {
+    GLState.bindVao(GLObjects.vaos.id(vao));
+  }
+
+  static void vaoUnbind() {
+    vaoBind(0);
+  }
+
+  static void vboArrayBufferBind(int vbo) {
+    GLState.bindArrayBuffer(GLObjects.vbos.id(vbo));
+  }
+
+  static void vboArrayBufferUnbind() {
+    vboArrayBufferBind(0);
+  }
+
+  static void vboElementArrayBufferBind(int vbo) {
+    GLUtil.gl.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, GLObjects.vbos.id(vbo));
+  }
+
+  static void vboElementArrayBufferUnbind() {
+    vboElementArrayBufferBind(0);
+  }
+
+  static void vertexAttribArrayBind(int id) {
+    GLUtil.gl.glEnableVertexAttribArray(id);
+  }
+
+  static void vertexAttribArrayUnbind(int id) {
+    GLUtil.gl.glDisableVertexAttribArray(id);
+  }
+
+  static void textureBind(int texture) {
+    textureBind(GL11.GL_TEXTURE_2D, texture);
+  }
+
+  static void textureBind(int target, int texture) {
+    GLState.bindTexture(target, GLObjects.textures.id(texture));
+  }
+
+  // Not cached by GLState: only the texture streamer binds pixel unpack buffers, and it always unbinds them.
+  static void pixelUnpackBufferBind(int vbo) {
+    GLUtil.gl.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, GLObjects.vbos.id(vbo));
+  }
+
+  static void pixelUnpackBufferUnbind() {
+    pixelUnpackBufferBind(K.gl_null);
+  }
+
+  static void uniformBufferBind(int vbo) {
+    GLUtil.gl.glBindBuffer(GL31.GL_UNIFORM_BUFFER, GLObjects.vbos.id(vbo));
+  }
+
+  static void textureUnbind() {
+    textureBind(0);
+  }
+
+  static void activeTexture(int unit) {
+    GLState.activeTexture(unit);
+  }
+
+  static int attributeStore(int attrId, int attrSize, float[] data) {
+    int vboId = GLObjects.allocVbo();
+    vboArrayBufferBind(vboId);
+    long mark = StagingArena.mark();
+    GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, StagingArena.floats(data, data.length), GL15.GL_STATIC_DRAW);
+    StagingArena.release(mark);
+    GLObjects.vbos.setBytes(vboId, 4 * data.length);
+    // TODO: separate vbo loading code above from attribute binding code below
+    // TODO: what is this 'false' parameter ??
+    GLUtil.gl.glVertexAttribPointer(attrId, attrSize, GL11.GL_FLOAT, false, K.stride0, K.offset0);
+    vboArrayBufferUnbind();
+    return vboId;
+  }
+
+  // Points attribute attrId of the currently bound vao to an already loaded vbo.
+  static void attributeBind(int attrId, int attrSize, int vboId) {
+    attributeBind(attrId, attrSize, vboId, K.stride0, K.offset0);
+  }
+
+  // Same, for float attributes interleaved in the vbo.
+  static void attributeBind(int attrId, int attrSize, int vboId, int stride, int offset) {
+    vboArrayBufferBind(vboId);
+    GLUtil.gl.glVertexAttribPointer(attrId, attrSize, GL11.GL_FLOAT, false, stride, offset);
+    vboArrayBufferUnbind();
+  }
+
+  // Same as attributeBind, but the attribute advances once per instance instead of once per vertex.
+  static void instanceAttributeBind(int attrId, int attrSize, int vboId) {
+    instanceAttributeBind(attrId, attrSize, vboId, K.stride0, K.offset0);
+  }
+
+  static void instanceAttributeBind(int attrId, int attrSize, int vboId, int stride, int offset) {
+    attributeBind(attrId, attrSize, vboId, stride, offset);
+    GLUtil.gl.glVertexAttribDivisor(attrId, K.divisor_per_instance);
+  }
+
+  static int bindIndices(int[] indices) {
+    int vboId = GLObjects.allocVbo();
+    vboElementArrayBufferBind(vboId);
+    long mark = StagingArena.mark();
+    GLUtil.gl.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, StagingArena.ints(indices), GL15.GL_STATIC_DRAW);
+    StagingArena.release(mark);
+    GLObjects.vbos.setBytes(vboId, 4 * indices.length);
+    //vboElementArrayBufferUnbind(); // Why can't I unbind this ??
+    // -> the element array binding is part of the vao state, unbinding it while the vao is bound detaches it.
+    return vboId;
+  }
+
+  // Re-specifies the content of an existing array vbo, e.g for per-instance data.
+  static void arrayBufferStore(int vboId, float[] data, int len, int usage) {
+    vboArrayBufferBind(vboId);
+    long mark = StagingArena.mark();
+    GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, StagingArena.floats(data, len), usage);
+    StagingArena.release(mark);
+    GLObjects.vbos.setBytes(vboId, 4 * len);
+    vboArrayBufferUnbind();
+  }
+
+  static void arrayBufferStore(int vboId, ByteBuffer data, int usage) {
+    vboArrayBufferBind(vboId);
+    GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, data, usage);
+    GLObjects.vbos.setBytes(vboId, data.remaining());
+    vboArrayBufferUnbind();
+  }
+
+  // Re-specifies the content of an existing element vbo. The owning vao must be bound.
+  static void elementBufferStore(int vboId, int[] indices) {
+    vboElementArrayBufferBind(vboId);
+    long mark = StagingArena.mark();
+    GLUtil.gl.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, StagingArena.ints(indices), GL15.GL_STATIC_DRAW);
+    StagingArena.release(mark);
+    GLObjects.vbos.setBytes(vboId, 4 * indices.length);
+  }
+
+  static void elementBufferStore(int vboId, ByteBuffer data) {
+    vboElementArrayBufferBind(vboId);
+    GLUtil.gl.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, data, GL15.GL_STATIC_DRAW);
+    GLObjects.vbos.setBytes(vboId, data.remaining());
+  }
+}
+
+
+// The GL entry points used by the project. Signatures mirror the LWJGL static ones.
+interface GLBackend {
+  void glViewport(int x, int y, int w, int h);
+  void glEnable(int cap);
+  void glClear(int mask);
+  void glClearColor(float r, float g, float b, float a);
+  void glDisable(int cap);
+  void glScissor(int x, int y, int w, int h);
+
+  int glGenVertexArrays();
+  void glDeleteVertexArrays(int id);
+  void glBindVertexArray(int id);
+  void glEnableVertexAttribArray(int index);
+  void glDisableVertexAttribArray(int index);
+  void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset);
+  void glVertexAttribDivisor(int index, int divisor);
+
+  int glGenBuffers();
+  void glDeleteBuffers(int id);
+  void glBindBuffer(int target, int id);
+  void glBufferData(int target, FloatBuffer data, int usage);
+  void glBufferData(int target, IntBuffer data, int usage);
+  void glBufferData(int target, ByteBuffer data, int usage);
+  void glBufferData(int target, long size, int usage);
+  void glBufferSubData(int target, long offset, ByteBuffer data);
+  ByteBuffer glMapBufferRange(int target, long offset, long length, int access);
+  // Returns 'old' when the mapping lands where it did, so that remapping every frame allocates nothing.
+  ByteBuffer glMapBufferRange(int target, long offset, long length, int access, ByteBuffer old);
+  void glFlushMappedBufferRange(int target, long offset, long length);
+  boolean glUnmapBuffer(int target);
+  void glBufferStorage(int target, long size, int flags);
+  void glBindBufferBase(int target, int index, int id);
+  void glBindBufferRange(int target, int index, int id, long offset, long size);
+  void glCopyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size);
+
+  int glGenTextures();
+  void glDeleteTextures(int id);
+  void glActiveTexture(int unit);
+  void glBindTexture(int target, int id);
+  void glTexParameteri(int target, int pname, int param);
+  void glTexImage2D(int target, int level, int internalFormat, int w, int h, int border, int format, int type, ByteBuffer pixels);
+  void glTexImage3D(int target, int level, int internalFormat, int w, int h, int depth, int border, int format, int type, ByteBuffer pixels);
+  void glGenerateMipmap(int target);
+  void glTexSubImage2D(int target, int level, int x, int y, int w, int h, int format, int type, long pboOffset);
+  void glTexSubImage3D(int target, int level, int x, int y, int z, int w, int h, int depth, int format, int type, long pboOffset);
+
+  int glCreateShader(int type);
+  void glShaderSource(int id, CharSequence source);
+  void glCompileShader(int id);
+  int glGetShaderi(int id, int pname);
+  String glGetShaderInfoLog(int id, int maxLength);
+  void glDeleteShader(int id);
+  int glCreateProgram();
+  void glAttachShader(int program, int shader);
+  void glDetachShader(int program, int shader);
+  void glBindAttribLocation(int program, int index, CharSequence name);
+  void glLinkProgram(int program);
+  void glValidateProgram(int program);
+  void glDeleteProgram(int program);
+  int glGetProgrami(int program, int pname);
+  String glGetProgramInfoLog(int program, int maxLength);
+  void glProgramParameteri(int program, int pname, int value);
+  void glGetProgramBinary(int program, IntBuffer length, IntBuffer format, ByteBuffer binary);
+  void glProgramBinary(int program, int format, ByteBuffer binary);
+  void glUseProgram(int program);
+  int glGetUniformLocation(int program, CharSequence name);
+  void glUniform1f(int loc, float x);
+  void glUniform2f(int loc, float x, float y);
+  void glUniform3f(int loc, float x, float y, float z);
+  void glUniformMatrix4(int loc, boolean transpose, FloatBuffer m);
+  int glGetUniformBlockIndex(int program, CharSequence name);
+  void glUniformBlockBinding(int program, int block, int binding);
+
+  int glGetInteger(int pname);
+  String glGetString(int name);
+
+  void glDrawElements(int mode, int count, int type, long offset);
+  void glDrawElementsInstanced(int mode, int count, int type, long offset, int instances);
+  void glDrawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex);
+  void glDrawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances, int baseVertex);
+  // drawCount commands of the buffer bound to GL_DRAW_INDIRECT_BUFFER, from byte offset on.
+  void glMultiDrawElementsIndirect(int mode, int type, long offset, int drawCount, int stride);
+
+  int glGenQueries();
+  void glDeleteQueries(int id);
+  void glBeginQuery(int target, int id);
+  void glEndQuery(int target);
+  int glGetQueryObjecti(int id, int pname);
+  long glGetQueryObjectui64(int id, int pname);
+
+  // Sync objects are int handles, 0 for none.
+  int glFenceSync(int condition, int flags);
+  int glClientWaitSync(int sync, int flags, long timeout);
+  void glDeleteSync(int sync);
+}
+
+
+// Forwards to LWJGL, needs a current context.
+final class LwjglBackend implements GLBackend {
+  public void glViewport(int x, int y, int w, int h) { GL11.glViewport(x, y, w, h); }
+  public void glEnable(int cap) { GL11.glEnable(cap); }
+  public void glClear(int mask) { GL11.glClear(mask); }
+  public void glClearColor(float r, float g, float b, float a) { GL11.glClearColor(r, g, b, a); }
+  public void glDisable(int cap) { GL11.glDisable(cap); }
+  public void glScissor(int x, int y, int w, int h) { GL11.glScissor(x, y, w, h); }
+
+  public int glGenVertexArrays() { return GL30.glGenVertexArrays(); }
+  public void glDeleteVertexArrays(int id) { GL30.glDeleteVertexArrays(id); }
+  public void glBindVertexArray(int id) { GL30.glBindVertexArray(id); }
+  public void glEnableVertexAttribArray(int index) { GL20.glEnableVertexAttribArray(index); }
+  public void glDisableVertexAttribArray(int index) { GL20.glDisableVertexAttribArray(index); }
+  public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+    GL20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+  }
+  public void glVertexAttribDivisor(int index, int divisor) { GL33.glVertexAttribDivisor(index, divisor); }
+
+  public int glGenBuffers() { return GL15.glGenBuffers(); }
+  public void glDeleteBuffers(int id) { GL15.glDeleteBuffers(id); }
+  public void glBindBuffer(int target, int id) { GL15.glBindBuffer(target, id); }
+  public void glBufferData(int target, FloatBuffer data, int usage) { GL15.glBufferData(target, data, usage); }
+  public void glBufferData(int target, IntBuffer data, int usage) { GL15.glBufferData(target, data, usage); }
+  public void glBufferData(int target, ByteBuffer data, int usage) { GL15.glBufferData(target, data, usage); }
+  public void glBufferData(int target, long size, int usage) { GL15.glBufferData(target, size, usage); }
+  public ByteBuffer glMapBufferRange(int target, long offset, long length, int access) {
+    return glMapBufferRange(target, offset, length, access, null);
+  }
+  public ByteBuffer glMapBufferRange(int target, long offset, long length, int access, ByteBuffer old) {
+    return GL30.glMapBufferRange(target, offset, length, access, old).order(ByteOrder.nativeOrder());
+  }
+  public void glFlushMappedBufferRange(int target, long offset, long length) {
+    GL30.glFlushMappedBufferRange(target, offset, length);
+  }
+  public boolean glUnmapBuffer(int target) { return GL15.glUnmapBuffer(target); }
+  public void glBufferStorage(int target, long size, int flags) { GL44.glBufferStorage(target, size, flags); }
+  public void glBufferSubData(int target, long offset, ByteBuffer data) { GL15.glBufferSubData(target, offset, data); }
+  public void glBindBufferBase(int target, int index, int id) { GL30.glBindBufferBase(target, index, id); }
+  public void glCopyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size) {
+    GL31.glCopyBufferSubData(readTarget, writeTarget, readOffset, writeOffset, size);
+  }
+  public void glBindBufferRange(int target, int index, int id, long offset, long size) {
+    GL30.glBindBufferRange(target, index, id, offset, size);
+  }
+
+  public int glGenTextures() { return GL11.glGenTextures(); }
+  public void glDeleteTextures(int id) { GL11.glDeleteTextures(id); }
+  public void glActiveTexture(int unit) { GL13.glActiveTexture(unit); }
+  public void glBindTexture(int target, int id) { GL11.glBindTexture(target, id); }
+  public void glTexParameteri(int target, int pname, int param) { GL11.glTexParameteri(target, pname, param); }
+  public void glTexImage2D(int target, int level, int internalFormat, int w, int h, int border, int format, int type, ByteBuffer pixels) {
+    GL11.glTexImage2D(target, level, internalFormat, w, h, border, format, type, pixels);
+  }
+  public void glTexImage3D(int target, int level, int internalFormat, int w, int h, int depth, int border, int format, int type, ByteBuffer pixels) {
+    GL12.glTexImage3D(target, level, internalFormat, w, h, depth, border, format, type, pixels);
+  }
+  public void glGenerateMipmap(int target) { GL30.glGenerateMipmap(target); }
+  public void glTexSubImage2D(int target, int level, int x, int y, int w, int h, int format, int type, long pboOffset) {
+    GL11.glTexSubImage2D(target, level, x, y, w, h, format, type, pboOffset);
+  }
+  public void glTexSubImage3D(int target, int level, int x, int y, int z, int w, int h, int depth, int format, int type, long pboOffset) {
+    GL12.glTexSubImage3D(target, level, x, y, z, w, h, depth, format, type, pboOffset);
+  }
+
+  public int glCreateShader(int type) { return GL20.glCreateShader(type); }
+  public void glShaderSource(int id, CharSequence source) { GL20.glShaderSource(id, source); }
+  public void glCompileShader(int id) { GL20.glCompileShader(id); }
+  public int glGetShaderi(int id, int pname) { return GL20.glGetShaderi(id, pname); }
+  public String glGetShaderInfoLog(int id, int maxLength) { return GL20.glGetShaderInfoLog(id, maxLength); }
+  public void glDeleteShader(int id) { GL20.glDeleteShader(id); }
+  public int glCreateProgram() { return GL20.glCreateProgram(); }
+  public void glAttachShader(int program, int shader) { GL20.glAttachShader(program, shader); }
+  public void glDetachShader(int program, int shader) { GL20.glDetachShader(program, shader); }
+  public void glBindAttribLocation(int program, int index, CharSequence name) { GL20.glBindAttribLocation(program, index, name); }
+  public void glLinkProgram(int program) { GL20.glLinkProgram(program); }
+  public void glValidateProgram(int program) { GL20.glValidateProgram(program); }
+  public void glDeleteProgram(int program) { GL20.glDeleteProgram(program); }
+  public int glGetProgrami(int program, int pname) { return GL20.glGetProgrami(program, pname); }
+  public String glGetProgramInfoLog(int program, int maxLength) { return GL20.glGetProgramInfoLog(program, maxLength); }
+  public void glProgramParameteri(int program, int pname, int value) { GL41.glProgramParameteri(program, pname, value); }
+  public void glGetProgramBinary(int program, IntBuffer length, IntBuffer format, ByteBuffer binary) {
+    GL41.glGetProgramBinary(program, length, format, binary);
+  }
+  public void glProgramBinary(int program, int format, ByteBuffer binary) { GL41.glProgramBinary(program, format, binary); }
+  public void glUseProgram(int program) { GL20.glUseProgram(program); }
+  public int glGetUniformLocation(int program, CharSequence name) { return GL20.glGetUniformLocation(program, name); }
+  public void glUniform1f(int loc, float x) { GL20.glUniform1f(loc, x); }
+  public void glUniform2f(int loc, float x, float y) { GL20.glUniform2f(loc, x, y); }
+  public void glUniform3f(int loc, float x, float y, float z) { GL20.glUniform3f(loc, x, y, z); }
+  public void glUniformMatrix4(int loc, boolean transpose, FloatBuffer m) { GL20.glUniformMatrix4(loc, transpose, m); }
+  public int glGetUniformBlockIndex(int program, CharSequence name) { return GL31.glGetUniformBlockIndex(program, name); }
+  public void glUniformBlockBinding(int program, int block, int binding) { GL31.glUniformBlockBinding(program, block, binding); }
+
+  public int glGetInteger(int pname) { return GL11.glGetInteger(pname); }
+  public String glGetString(int name) { return GL11.glGetString(name); }
+
+  public void glDrawElements(int mode, int count, int type, long offset) { GL11.glDrawElements(mode, count, type, offset); }
+  public void glDrawElementsInstanced(int mode, int count, int type, long offset, int instances) {
+    GL31.glDrawElementsInstanced(mode, count, type, offset, instances);
+  }
+  public void glDrawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex) {
+    GL32.glDrawElementsBaseVertex(mode, count, type, offset, baseVertex);
+  }
+  public void glDrawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances, int baseVertex) {
+    GL32.glDrawElementsInstancedBaseVertex(mode, count, type, offset, instances, baseVertex);
+  }
+  public void glMultiDrawElementsIndirect(int mode, int type, long offset, int drawCount, int stride) {
+    GL43.glMultiDrawElementsIndirect(mode, type, offset, drawCount, stride);
+  }
+
+  public int glGenQueries() { return GL15.glGenQueries(); }
+  public void glDeleteQueries(int id) { GL15.glDeleteQueries(id); }
+  public void glBeginQuery(int target, int id) { GL15.glBeginQuery(target, id); }
+  public void glEndQuery(int target) { GL15.glEndQuery(target); }
+  public int glGetQueryObjecti(int id, int pname) { return GL15.glGetQueryObjecti(id, pname); }
+  public long glGetQueryObjectui64(int id, int pname) { return GL33.glGetQueryObjectui64(id, pname); }
+
+  // Only LWJGL can make GLSync objects: they stay here, the handle is their index. There are a few per frame.
+  GLSync[] syncs = new GLSync[8];
+
+  public int glFenceSync(int condition, int flags) {
+    int h = 1;
+    while (h < syncs.length && syncs[h] != null) {
+      h++;
+    }
+    if (h == syncs.length) {
+      syncs = Arrays.copyOf(syncs, 2 * h);
+    }
+    syncs[h] = GL32.glFenceSync(condition, flags);
+    return h;
+  }
+  public int glClientWaitSync(int sync, int flags, long timeout) { return GL32.glClientWaitSync(syncs[sync], flags, timeout); }
+  public void glDeleteSync(int sync) {
+    if (sync == K.gl_null) {
+      return; // like glDeleteSync(0), which GL ignores
+    }
+    GL32.glDeleteSync(syncs[sync]);
+    syncs[sync] = null;
+  }
+}
+
+
+// Headless GLBackend: needs no display nor context. Hands out object ids, tracks the bound state like a driver
+// would, checks that every call finds the objects it needs bound and alive, and counts and timestamps calls.
+// Used to measure the cpu side cost of the render path on machines without a gpu.
+final class RecordingBackend implements GLBackend {
+
+  // Call ids, indexes of the per-call counters
+  static final int VIEWPORT = 0, ENABLE = 1, CLEAR = 2, CLEAR_COLOR = 3,
+      GEN_VAO = 4, DELETE_VAO = 5, BIND_VAO = 6, ENABLE_ATTR = 7, DISABLE_ATTR = 8, ATTR_POINTER = 9, ATTR_DIVISOR = 10,
+      GEN_BUFFER = 11, DELETE_BUFFER = 12, BIND_BUFFER = 13, BUFFER_DATA = 14,
+      GEN_TEXTURE = 15, DELETE_TEXTURE = 16, ACTIVE_TEXTURE = 17, BIND_TEXTURE = 18, TEX_PARAMETER = 19, TEX_IMAGE = 20,
+      CREATE_SHADER = 21, SHADER_SOURCE = 22, COMPILE_SHADER = 23, GET_SHADER = 24, DELETE_SHADER = 25,
+      CREATE_PROGRAM = 26, ATTACH_SHADER = 27, DETACH_SHADER = 28, BIND_ATTR_LOCATION = 29, LINK_PROGRAM = 30,
+      VALIDATE_PROGRAM = 31, DELETE_PROGRAM = 32, USE_PROGRAM = 33, GET_UNIFORM_LOCATION = 34, UNIFORM = 35,
+      DRAW_ELEMENTS = 36, DRAW_ELEMENTS_INSTANCED = 37,
+      DISABLE = 38, SCISSOR = 39, GEN_QUERY = 40, DELETE_QUERY = 41, BEGIN_QUERY = 42, END_QUERY = 43, GET_QUERY = 44,
+      TEX_IMAGE_3D = 45, GENERATE_MIPMAP = 46, MAP_BUFFER = 47, UNMAP_BUFFER = 48, TEX_SUB_IMAGE = 49,
+      BUFFER_SUB_DATA = 50, BIND_BUFFER_BASE = 51, GET_UNIFORM_BLOCK = 52, UNIFORM_BLOCK_BINDING = 53, GET_INTEGER = 54,
+      GET_STRING = 55, GET_PROGRAM = 56, PROGRAM_PARAMETER = 57, GET_PROGRAM_BINARY = 58, PROGRAM_BINARY = 59,
+      COPY_BUFFER = 60, DRAW_ELEMENTS_BASE_VERTEX = 61, DRAW_ELEMENTS_INSTANCED_BASE_VERTEX = 62,
+      MULTI_DRAW_ELEMENTS_INDIRECT = 63, BUFFER_STORAGE = 64, FLUSH_MAPPED_RANGE = 65, FENCE_SYNC = 66,
+      CLIENT_WAIT_SYNC = 67, DELETE_SYNC = 68,
+      CALLS = 69;
+
+  static final String[] CALL_NAMES = {
+    "glViewport", "glEnable", "glClear", "glClearColor",
+    "glGenVertexArrays", "glDeleteVertexArrays", "glBindVertexArray", "glEnableVertexAttribArray",
+    "glDisableVertexAttribArray", "glVertexAttribPointer", "glVertexAttribDivisor",
+    "glGenBuffers", "glDeleteBuffers", "glBindBuffer", "glBufferData",
+    "glGenTextures", "glDeleteTextures", "glActiveTexture", "glBindTexture", "glTexParameteri", "glTexImage2D",
+    "glCreateShader", "glShaderSource", "glCompileShader", "glGetShaderi", "glDeleteShader",
+    "glCreateProgram", "glAttachShader", "glDetachShader", "glBindAttribLocation", "glLinkProgram",
+    "glValidateProgram", "glDeleteProgram", "glUseProgram", "glGetUniformLocation", "glUniform*",
+    "glDrawElements", "glDrawElementsInstanced",
+    "glDisable", "glScissor", "glGenQueries", "glDeleteQueries", "glBeginQuery", "glEndQuery", "glGetQueryObject*",
+    "glTexImage3D", "glGenerateMipmap", "glMapBufferRange", "glUnmapBuffer", "glTexSubImage*",
+    "glBufferSubData", "glBindBufferBase/Range", "glGetUniformBlockIndex", "glUniformBlockBinding", "glGetInteger",
+    "glGetString", "glGetProgrami", "glProgramParameteri", "glGetProgramBinary", "glProgramBinary",
+    "glCopyBufferSubData", "glDrawElementsBaseVertex", "glDrawElementsInstancedBaseVertex",
+    "glMultiDrawElementsIndirect", "glBufferStorage", "glFlushMappedBufferRange", "glFenceSync",
+    "glClientWaitSync", "glDeleteSync",
+  };
+
+  static final int UNIFORM_BUFFER_OFFSET_ALIGNMENT = 256; // a common value, the largest the spec allows
+
+  // Program binaries are this tag and the program id they were saved from, in the one binary format there is
+  static final int BINARY_FORMAT = 1;
+  static final int BINARY_MAGIC = 0x52454342; // "RECB"
+  static final int BINARY_BYTES = 8;
+
+  static final int MAX_ATTRS = 16;
+  static final int MAX_UNITS = K.texture_units;
+
+  // GL_VERSION reported, features newer than that are not used by the game
+  String version = "4.5 recording";
+  // The simulated gpu completes a fence once this many newer fences exist, i.e it runs that many frames behind.
+  int gpuFramesBehind = 2;
+
+  // When strict, a binding error throws instead of only being counted.
+  boolean strict = true;
+  // When enabled, every call is logged with its System.nanoTime() in a ring buffer.
+  boolean timestamps = true;
+
+  final long[] counts = new long[CALLS];
+  final long[] log = new long[2 * (1 << 16)]; // (call id, nanos) pairs
+  int logHead;
+  long errors;
+  long drawCalls;
+  long triangles;
+  long bytesUploaded;
+
+  // Per frame summary, see beginFrame() / endFrame()
+  long frameStartCalls;
+  long frameStartDraws;
+  long frameStartTriangles;
+  long frameStartNanos;
+  long frameCalls;
+  long frameDraws;
+  long frameTriangles;
+  long frameNanos;
+
+  // Object namespaces: live ids of every type. Ids are never reused so that a stale id is always caught.
+  int nextId = 1;
+  final BitSet vaos = new BitSet();
+  final BitSet buffers = new BitSet();
+  final BitSet textures = new BitSet();
+  final BitSet shaders = new BitSet();
+  final BitSet programs = new BitSet();
+  final BitSet linked = new BitSet();
+  final BitSet queries = new BitSet();
+  final BitSet syncs = new BitSet();
+  final Map<Integer, Map<String, Integer>> uniformLocations = new HashMap<>();
+
+  // Bound state
+  int vao;
+  int arrayBuffer;
+  int pixelUnpackBuffer;
+  int uniformBuffer;
+  int copyReadBuffer;
+  int copyWriteBuffer;
+  int drawIndirectBuffer;
+  final int[] uniformBindings = new int[K.uniform_bindings]; // buffer of every indexed binding point
+  int program;
+  int activeUnit;
+  final int[] unitTextures = new int[MAX_UNITS];
+  int activeQuery;
+
+  // Vao state, indexed by vao id
+  int[] vaoElementBuffer = new int[64];
+  int[] vaoEnabledAttrs = new int[64];  // bit mask
+  int[] vaoPointerAttrs = new int[64];  // bit mask of attributes with a buffer attached
+  int[] vaoInstancedAttrs = new int[64]; // bit mask of attributes with a divisor
+
+  // Uniform block binding points used by every program, bit mask indexed by program id
+  int[] programBlocks = new int[64];
+
+  // Target of the first bind of every texture, indexed by texture id
+  int[] textureTargets = new int[64];
+
+  // Memory handed out by glMapBufferRange, indexed by buffer id. Only buffers which get mapped have some.
+  ByteBuffer[] bufferStorage = new ByteBuffer[64];
+  long[] bufferSizes = new long[64];
+  final BitSet mapped = new BitSet();
+  final BitSet immutable = new BitSet();   // made by glBufferStorage
+  final BitSet persistent = new BitSet();  // mapped with GL_MAP_PERSISTENT_BIT: draws may read them while mapped
+  final BitSet flushExplicit = new BitSet();
+  ByteBuffer[] mapViews = new ByteBuffer[64]; // last mapping of every buffer, see glMapBufferRange
+  long[] mapOffsets = new long[64];
+  int[] storageFlags = new int[64];
+
+  // Fences in creation order, and how many were created
+  int[] fenceSerials = new int[64];
+  int fences;
+
+  void record(int call) {
+    counts[call]++;
+    if (timestamps) {
+      log[logHead] = call;
+      log[logHead + 1] = System.nanoTime();
+      logHead = (logHead + 2) & (log.length - 1);
+    }
+  }
+
+  // The checks of every call: overloads for int arguments, which box nothing unless the check fails, so that a
+  // benchmark of the render path measures the game's allocations and not the recorder's.
+  void check(boolean ok, String message) {
+    if (!ok) {
+      fail(message);
+    }
+  }
+
+  void check(boolean ok, String fmt, int a) {
+    if (!ok) {
+      fail(fmt, a);
+    }
+  }
+
+  void check(boolean ok, String fmt, int a, int b) {
+    if (!ok) {
+      fail(fmt, a, b);
+    }
+  }
+
+  void check(boolean ok, String fmt, int a, int b, int c) {
+    if (!ok) {
+      fail(fmt, a, b, c);
+    }
+  }
+
+  void check(boolean ok, String fmt, Object... args) {
+    if (!ok) {
+      fail(fmt, args);
+    }
+  }
+
+  void fail(String fmt, Object... args) {
+    errors++;
+    if (strict) {
+      throw new IllegalStateException(String.format(fmt, args));
+    }
+  }
+
+  int newId(BitSet live) {
+    int id = nextId++;
+    live.set(id);
+    return id;
+  }
+
+  void checkBindable(BitSet live, int id, String what) {
+    if (id != K.gl_null && !live.get(id)) {
+      check(false, "binding unknown or deleted %s %d", what, id);
+    }
+  }
+
+  long totalCalls() {
+    long n = 0;
+    for (long c : counts) {
+      n += c;
+    }
+    return n;
+  }
+
+  void beginFrame() {
+    frameStartCalls = totalCalls();
+    frameStartDraws = drawCalls;
+    frameStartTriangles = triangles;
+    frameStartNanos = System.nanoTime();
+  }
+
+  void endFrame() {
+    frameNanos = System.nanoTime() - frameStartNanos;
+    frameCalls = totalCalls() - frameStartCalls;
+    frameDraws = drawCalls - frameStartDraws;
+    frameTriangles = triangles - frameStartTriangles;
+  }
+
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("recorded %d calls, %d draws, %d triangles, %d bytes uploaded, %d errors%n",
+        totalCalls(), drawCalls, triangles, bytesUploaded, errors));
+    for (int i = 0; i < CALLS; i++) {
+      if (counts[i] > 0) {
+        sb.append(String.format("  %-28s %d%n", CALL_NAMES[i], counts[i]));
+      }
+    }
+    return sb.toString();
+  }
+
+  static int[] ensure(int[] a, int id) {
+    return id < a.length ? a : Arrays.copyOf(a, Math.max(id + 1, 2 * a.length));
+  }
+
+  static long[] ensure(long[] a, int id) {
+    return id < a.length ? a : Arrays.copyOf(a, Math.max(id + 1, 2 * a.length));
+  }
+
+  // Frame
+
+  public void glViewport(int x, int y, int w, int h) { record(VIEWPORT); }
+  public void glEnable(int cap) { record(ENABLE); }
+  public void glClear(int mask) { record(CLEAR); }
+  public void glClearColor(float r, float g, float b, float a) { record(CLEAR_COLOR); }
+  public void glDisable(int cap) { record(DISABLE); }
+  public void glScissor(int x, int y, int w, int h) { record(SCISSOR); }
+
+  // Vertex arrays
+
+  public int glGenVertexArrays() {
+    record(GEN_VAO);
+    int id = newId(vaos);
+    vaoElementBuffer = ensure(vaoElementBuffer, id);
+    vaoEnabledAttrs = ensure(vaoEnabledAttrs, id);
+    vaoPointerAttrs = ensure(vaoPointerAttrs, id);
+    vaoInstancedAttrs = ensure(vaoInstancedAttrs, id);
+    return id;
+  }
+
+  public void glDeleteVertexArrays(int id) {
+    record(DELETE_VAO);
+    vaos.clear(id);
+    if (vao == id) {
+      vao = K.gl_null;
+    }
+  }
+
+  public void glBindVertexArray(int id) {
+    record(BIND_VAO);
+    checkBindable(vaos, id, "vao");
+    vao = id;
+  }
+
+  public void glEnableVertexAttribArray(int index) {
+    record(ENABLE_ATTR);
+    check(vao != K.gl_null, "glEnableVertexAttribArray(%d) without a bound vao", index);
+    vaoEnabledAttrs[vao] |= 1 << index;
+  }
+
+  public void glDisableVertexAttribArray(int index) {
+    record(DISABLE_ATTR);
+    check(vao != K.gl_null, "glDisableVertexAttribArray(%d) without a bound vao", index);
+    vaoEnabledAttrs[vao] &= ~(1 << index);
+  }
+
+  public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+    record(ATTR_POINTER);
+    check(vao != K.gl_null, "glVertexAttribPointer(%d) without a bound vao", index);
+    check(arrayBuffer != K.gl_null, "glVertexAttribPointer(%d) without a bound array buffer", index);
+    check(index < MAX_ATTRS, "attribute index %d out of range", index);
+    vaoPointerAttrs[vao] |= 1 << index;
+  }
+
+  public void glVertexAttribDivisor(int index, int divisor) {
+    record(ATTR_DIVISOR);
+    check(vao != K.gl_null, "glVertexAttribDivisor(%d) without a bound vao", index);
+    if (divisor != 0) {
+      vaoInstancedAttrs[vao] |= 1 << index;
+    } else {
+      vaoInstancedAttrs[vao] &= ~(1 << index);
+    }
+  }
+
+  // Buffers
+
+  public int glGenBuffers() {
+    record(GEN_BUFFER);
+    return newId(buffers);
+  }
+
+  public void glDeleteBuffers(int id) {
+    record(DELETE_BUFFER);
+    buffers.clear(id);
+    mapped.clear(id);
+    immutable.clear(id);
+    persistent.clear(id);
+    if (id < bufferStorage.length) {
+      bufferStorage[id] = null;
+    }
+    if (id < mapViews.length) {
+      mapViews[id] = null;
+    }
+    if (arrayBuffer == id) {
+      arrayBuffer = K.gl_null;
+    }
+    if (pixelUnpackBuffer == id) {
+      pixelUnpackBuffer = K.gl_null;
+    }
+    if (uniformBuffer == id) {
+      uniformBuffer = K.gl_null;
+    }
+    if (copyReadBuffer == id) {
+      copyReadBuffer = K.gl_null;
+    }
+    if (copyWriteBuffer == id) {
+      copyWriteBuffer = K.gl_null;
+    }
+    if (drawIndirectBuffer == id) {
+      drawIndirectBuffer = K.gl_null;
+    }
+    for (int b = 0; b < uniformBindings.length; b++) {
+      if (uniformBindings[b] == id) {
+        uniformBindings[b] = K.gl_null;
+      }
+    }
+    if (vao != K.gl_null && vaoElementBuffer[vao] == id) {
+      vaoElementBuffer[vao] = K.gl_null;
+    }
+  }
+
+  public void glBindBuffer(int target, int id) {
+    record(BIND_BUFFER);
+    checkBindable(buffers, id, "buffer");
+    if (target == GL15.GL_ARRAY_BUFFER) {
+      arrayBuffer = id;
+    } else if (target == GL21.GL_PIXEL_UNPACK_BUFFER) {
+      pixelUnpackBuffer = id;
+    } else if (target == GL31.GL_UNIFORM_BUFFER) {
+      uniformBuffer = id;
+    } else if (target == GL31.GL_COPY_READ_BUFFER) {
+      copyReadBuffer = id;
+    } else if (target == GL31.GL_COPY_WRITE_BUFFER) {
+      copyWriteBuffer = id;
+    } else if (target == GL40.GL_DRAW_INDIRECT_BUFFER) {
+      drawIndirectBuffer = id;
+    } else if (target == GL15.GL_ELEMENT_ARRAY_BUFFER) {
+      check(vao != K.gl_null, "binding element buffer %d without a bound vao", id);
+      vaoElementBuffer[vao] = id;
+    }
+  }
+
+  int boundBuffer(int target) {
+    if (target == GL15.GL_ARRAY_BUFFER) {
+      return arrayBuffer;
+    }
+    if (target == GL21.GL_PIXEL_UNPACK_BUFFER) {
+      return pixelUnpackBuffer;
+    }
+    if (target == GL31.GL_UNIFORM_BUFFER) {
+      return uniformBuffer;
+    }
+    if (target == GL31.GL_COPY_READ_BUFFER) {
+      return copyReadBuffer;
+    }
+    if (target == GL31.GL_COPY_WRITE_BUFFER) {
+      return copyWriteBuffer;
+    }
+    if (target == GL40.GL_DRAW_INDIRECT_BUFFER) {
+      return drawIndirectBuffer;
+    }
+    return vao == K.gl_null ? K.gl_null : vaoElementBuffer[vao];
+  }
+
+  void bufferData(int target, long size, boolean upload) {
+    record(BUFFER_DATA);
+    int id = boundBuffer(target);
+    check(id != K.gl_null, "glBufferData without a buffer bound to target 0x%x", target);
+    check(!mapped.get(id), "glBufferData on mapped buffer %d", id);
+    check(!immutable.get(id), "glBufferData on immutable buffer %d", id);
+    bytesUploaded += upload ? size : 0;
+    bufferSizes = ensure(bufferSizes, id);
+    bufferSizes[id] = size;
+  }
+
+  public void glBufferData(int target, FloatBuffer data, int usage) { bufferData(target, 4L * data.remaining(), true); }
+  public void glBufferData(int target, IntBuffer data, int usage) { bufferData(target, 4L * data.remaining(), true); }
+  public void glBufferData(int target, ByteBuffer data, int usage) { bufferData(target, data.remaining(), true); }
+
+  public void glBufferData(int target, long size, int usage) { bufferData(target, size, false); }
+
+  public ByteBuffer glMapBufferRange(int target, long offset, long length, int access) {
+    return glMapBufferRange(target, offset, length, access, null);
+  }
+
+  public ByteBuffer glMapBufferRange(int target, long offset, long length, int access, ByteBuffer old) {
+    record(MAP_BUFFER);
+    int id = boundBuffer(target);
+    check(id != K.gl_null, "glMapBufferRange without a buffer bound to target 0x%x", target);
+    check(!mapped.get(id), "buffer %d is already mapped", id);
+    bufferSizes = ensure(bufferSizes, id);
+    storageFlags = ensure(storageFlags, id);
+    mapOffsets = ensure(mapOffsets, id);
+    if (offset + length > bufferSizes[id]) {
+      check(false, "mapping [%d, %d) of buffer %d of %d bytes", offset, offset + length, id, bufferSizes[id]);
+    }
+    if ((access & GL44.GL_MAP_PERSISTENT_BIT) != 0 && (storageFlags[id] & GL44.GL_MAP_PERSISTENT_BIT) == 0) {
+      check(false, "persistent mapping of buffer %d, whose storage does not allow it", id);
+    }
+    storage(id);
+    mapped.set(id);
+    persistent.set(id, (access & GL44.GL_MAP_PERSISTENT_BIT) != 0);
+    flushExplicit.set(id, (access & GL30.GL_MAP_FLUSH_EXPLICIT_BIT) != 0);
+    if (old == null || old != mapViews[id] || mapOffsets[id] != offset || old.capacity() != length) {
+      mapViews[id] = bufferStorage[id].slice((int) offset, (int) length).order(ByteOrder.nativeOrder());
+      mapOffsets[id] = offset;
+    }
+    return mapViews[id].clear();
+  }
+
+  // Memory of buffer id, kept for the buffers which get mapped or hold draw commands.
+  ByteBuffer storage(int id) {
+    if (id >= bufferStorage.length) {
+      bufferStorage = Arrays.copyOf(bufferStorage, Math.max(id + 1, 2 * bufferStorage.length));
+      mapViews = Arrays.copyOf(mapViews, bufferStorage.length);
+    }
+    if (bufferStorage[id] == null || bufferStorage[id].capacity() < bufferSizes[id]) {
+      bufferStorage[id] = BufferUtils.createByteBuffer((int) bufferSizes[id]);
+      mapViews[id] = null;
+    }
+    return bufferStorage[id];
+  }
+
+  // Offsets are relative to the mapped range.
+  public void glFlushMappedBufferRange(int target, long offset, long length) {
+    record(FLUSH_MAPPED_RANGE);
+    int id = boundBuffer(target);
+    if (!mapped.get(id) || !flushExplicit.get(id)) {
+      check(false, "glFlushMappedBufferRange on buffer %d, not mapped with GL_MAP_FLUSH_EXPLICIT_BIT", id);
+      return;
+    }
+    if (offset < 0 || offset + length > mapViews[id].capacity()) {
+      check(false, "flushing [%d, %d) of a mapping of %d bytes", offset, offset + length, mapViews[id].capacity());
+    }
+    bytesUploaded += length;
+  }
+
+  public void glBufferStorage(int target, long size, int flags) {
+    record(BUFFER_STORAGE);
+    int id = boundBuffer(target);
+    check(id != K.gl_null, "glBufferStorage without a buffer bound to target 0x%x", target);
+    check(!immutable.get(id), "glBufferStorage on immutable buffer %d", id);
+    immutable.set(id);
+    bufferSizes = ensure(bufferSizes, id);
+    storageFlags = ensure(storageFlags, id);
+    bufferSizes[id] = size;
+    storageFlags[id] = flags;
+  }
+
+  public boolean glUnmapBuffer(int target) {
+    record(UNMAP_BUFFER);
+    int id = boundBuffer(target);
+    check(mapped.get(id), "glUnmapBuffer on unmapped buffer %d", id);
+    mapped.clear(id);
+    persistent.clear(id);
+    return true;
+  }
+
+  public void glBufferSubData(int target, long offset, ByteBuffer data) {
+    record(BUFFER_SUB_DATA);
+    int id = boundBuffer(target);
+    if (id == K.gl_null || mapped.get(id)) {
+      check(false, "glBufferSubData on buffer %d, bound to target 0x%x, unbound or mapped", id, target);
+    }
+    bufferSizes = ensure(bufferSizes, id);
+    if (offset + data.remaining() > bufferSizes[id]) {
+      check(false, "writing [%d, %d) of buffer %d of %d bytes", offset, offset + data.remaining(), id, bufferSizes[id]);
+    } else if (target == GL40.GL_DRAW_INDIRECT_BUFFER) {
+      storage(id).put((int) offset, data, data.position(), data.remaining()); // read back by glMultiDrawElementsIndirect
+    }
+    bytesUploaded += data.remaining();
+  }
+
+  public void glBindBufferBase(int target, int index, int id) {
+    bindBufferRange(target, index, id, 0, 0);
+  }
+
+  public void glCopyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size) {
+    record(COPY_BUFFER);
+    int from = boundBuffer(readTarget);
+    int to = boundBuffer(writeTarget);
+    check(from != K.gl_null && to != K.gl_null, "glCopyBufferSubData without buffers bound to 0x%x and 0x%x", readTarget, writeTarget);
+    check(!mapped.get(from) && !mapped.get(to), "glCopyBufferSubData on a mapped buffer");
+    bufferSizes = ensure(bufferSizes, Math.max(from, to));
+    if (readOffset + size > bufferSizes[from] || writeOffset + size > bufferSizes[to]) {
+      check(false, "copying [%d, %d) of buffer %d to [%d, %d) of buffer %d", readOffset, readOffset + size, from,
+          writeOffset, writeOffset + size, to);
+    }
+    if (from == to && readOffset < writeOffset + size && writeOffset < readOffset + size) {
+      check(false, "glCopyBufferSubData between overlapping ranges of buffer %d", from);
+    }
+  }
+
+  public void glBindBufferRange(int target, int index, int id, long offset, long size) {
+    bindBufferRange(target, index, id, offset, size);
+    if (offset % UNIFORM_BUFFER_OFFSET_ALIGNMENT != 0) {
+      check(false, "binding buffer %d at unaligned offset %d", id, offset);
+    }
+  }
+
+  void bindBufferRange(int target, int index, int id, long offset, long size) {
+    record(BIND_BUFFER_BASE);
+    checkBindable(buffers, id, "buffer");
+    check(target == GL31.GL_UNIFORM_BUFFER, "indexed binding to target 0x%x", target);
+    check(index >= 0 && index < uniformBindings.length, "uniform binding point %d out of range", index);
+    bufferSizes = ensure(bufferSizes, id);
+    if (offset + size > bufferSizes[id]) { // checked first: the arguments would be boxed on every bind
+      check(false, "binding [%d, %d) of buffer %d of %d bytes", offset, offset + size, id, bufferSizes[id]);
+    }
+    uniformBindings[index] = id;
+    uniformBuffer = id; // indexed binds also bind the generic target
+  }
+
+  // Textures
+
+  public int glGenTextures() {
+    record(GEN_TEXTURE);
+    return newId(textures);
+  }
+
+  public void glDeleteTextures(int id) {
+    record(DELETE_TEXTURE);
+    textures.clear(id);
+    if (id < textureTargets.length) {
+      textureTargets[id] = 0;
+    }
+    for (int u = 0; u < MAX_UNITS; u++) {
+      if (unitTextures[u] == id) {
+        unitTextures[u] = K.gl_null;
+      }
+    }
+  }
+
+  public void glActiveTexture(int unit) {
+    record(ACTIVE_TEXTURE);
+    activeUnit = unit - GL13.GL_TEXTURE0;
+    check(activeUnit >= 0 && activeUnit < MAX_UNITS, "texture unit 0x%x out of range", unit);
+  }
+
+  public void glBindTexture(int target, int id) {
+    record(BIND_TEXTURE);
+    checkBindable(textures, id, "texture");
+    if (id != K.gl_null) {
+      textureTargets = ensure(textureTargets, id);
+      check(textureTargets[id] == 0 || textureTargets[id] == target,
+          "texture %d bound to target 0x%x, created as 0x%x", id, target, textureTargets[id]);
+      textureTargets[id] = target;
+    }
+    unitTextures[activeUnit] = id;
+  }
+
+  public void glTexParameteri(int target, int pname, int param) {
+    record(TEX_PARAMETER);
+    check(unitTextures[activeUnit] != K.gl_null, "glTexParameteri without a bound texture");
+  }
+
+  public void glTexImage2D(int target, int level, int internalFormat, int w, int h, int border, int format, int type, ByteBuffer pixels) {
+    record(TEX_IMAGE);
+    check(unitTextures[activeUnit] != K.gl_null, "glTexImage2D without a bound texture");
+    bytesUploaded += pixels == null ? 0 : pixels.remaining();
+  }
+
+  public void glTexImage3D(int target, int level, int internalFormat, int w, int h, int depth, int border, int format, int type, ByteBuffer pixels) {
+    record(TEX_IMAGE_3D);
+    check(unitTextures[activeUnit] != K.gl_null, "glTexImage3D without a bound texture");
+    bytesUploaded += pixels == null ? 0 : pixels.remaining();
+  }
+
+  public void glGenerateMipmap(int target) {
+    record(GENERATE_MIPMAP);
+    check(unitTextures[activeUnit] != K.gl_null, "glGenerateMipmap without a bound texture");
+  }
+
+  void texSubImage(long bytes) {
+    record(TEX_SUB_IMAGE);
+    check(unitTextures[activeUnit] != K.gl_null, "glTexSubImage without a bound texture");
+    check(pixelUnpackBuffer != K.gl_null, "glTexSubImage from a buffer offset without a pixel unpack buffer");
+    check(!mapped.get(pixelUnpackBuffer), "glTexSubImage from mapped buffer %d", pixelUnpackBuffer);
+    bytesUploaded += bytes;
+  }
+
+  public void glTexSubImage2D(int target, int level, int x, int y, int w, int h, int format, int type, long pboOffset) {
+    texSubImage(4L * w * h);
+  }
+
+  public void glTexSubImage3D(int target, int level, int x, int y, int z, int w, int h, int depth, int format, int type, long pboOffset) {
+    texSubImage(4L * w * h * depth);
+  }
+
+  // Shaders
+
+  public int glCreateShader(int type) {
+    record(CREATE_SHADER);
+    return newId(shaders);
+  }
+
+  public void glShaderSource(int id, CharSequence source) {
+    record(SHADER_SOURCE);
+    check(shaders.get(id), "glShaderSource on unknown shader %d", id);
+  }
+
+  public void glCompileShader(int id) {
+    record(COMPILE_SHADER);
+    check(shaders.get(id), "glCompileShader on unknown shader %d", id);
+  }
+
+  public int glGetShaderi(int id, int pname) {
+    record(GET_SHADER);
+    return GL11.GL_TRUE;
+  }
+
+  public String glGetShaderInfoLog(int id, int maxLength) {
+    return "";
+  }
+
+  public void glDeleteShader(int id) {
+    record(DELETE_SHADER);
+    shaders.clear(id);
+  }
+
+  public int glCreateProgram() {
+    record(CREATE_PROGRAM);
+    return newId(programs);
+  }
+
+  public void glAttachShader(int program, int shader) {
+    record(ATTACH_SHADER);
+    check(programs.get(program) && shaders.get(shader), "glAttachShader(%d, %d) on unknown objects", program, shader);
+  }
+
+  public void glDetachShader(int program, int shader) { record(DETACH_SHADER); }
+
+  public void glBindAttribLocation(int program, int index, CharSequence name) {
+    record(BIND_ATTR_LOCATION);
+    check(programs.get(program), "glBindAttribLocation on unknown program %d", program);
+  }
+
+  public void glLinkProgram(int program) {
+    record(LINK_PROGRAM);
+    check(programs.get(program), "glLinkProgram on unknown program %d", program);
+    linked.set(program);
+  }
+
+  public void glValidateProgram(int program) { record(VALIDATE_PROGRAM); }
+
+  public void glDeleteProgram(int program) {
+    record(DELETE_PROGRAM);
+    programs.clear(program);
+    linked.clear(program);
+  }
+
+  public int glGetProgrami(int program, int pname) {
+    record(GET_PROGRAM);
+    check(programs.get(program), "glGetProgrami on unknown program %d", program);
+    if (pname == GL20.GL_LINK_STATUS) {
+      return linked.get(program) ? GL11.GL_TRUE : GL11.GL_FALSE;
+    }
+    if (pname == GL41.GL_PROGRAM_BINARY_LENGTH) {
+      return linked.get(program) ? BINARY_BYTES : 0;
+    }
+    return GL11.GL_TRUE;
+  }
+
+  public String glGetProgramInfoLog(int program, int maxLength) {
+    return linked.get(program) ? "" : "not linked";
+  }
+
+  public void glProgramParameteri(int program, int pname, int value) {
+    record(PROGRAM_PARAMETER);
+    check(programs.get(program), "glProgramParameteri on unknown program %d", program);
+  }
+
+  public void glGetProgramBinary(int program, IntBuffer length, IntBuffer format, ByteBuffer binary) {
+    record(GET_PROGRAM_BINARY);
+    check(linked.get(program), "glGetProgramBinary on unlinked program %d", program);
+    check(binary.remaining() >= BINARY_BYTES, "glGetProgramBinary into %d bytes", binary.remaining());
+    binary.duplicate().order(ByteOrder.LITTLE_ENDIAN).putInt(binary.position(), BINARY_MAGIC).putInt(binary.position() + 4, program);
+    length.put(length.position(), BINARY_BYTES);
+    format.put(format.position(), BINARY_FORMAT);
+  }
+
+  // Like a driver, rejects binaries it does not recognize by failing the link rather than with an error.
+  public void glProgramBinary(int program, int format, ByteBuffer binary) {
+    record(PROGRAM_BINARY);
+    check(programs.get(program), "glProgramBinary on unknown program %d", program);
+    boolean ok = format == BINARY_FORMAT && binary.remaining() == BINARY_BYTES
+        && binary.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(binary.position()) == BINARY_MAGIC;
+    if (ok) {
+      linked.set(program);
+    } else {
+      linked.clear(program);
+    }
+  }
+
+  public void glUseProgram(int program) {
+    record(USE_PROGRAM);
+    checkBindable(programs, program, "program");
+    check(program == K.gl_null || linked.get(program), "using unlinked program %d", program);
+    this.program = program;
+  }
+
+  public int glGetUniformLocation(int program, CharSequence name) {
+    record(GET_UNIFORM_LOCATION);
+    check(linked.get(program), "glGetUniformLocation on unlinked program %d", program);
+    Map<String, Integer> locations = uniformLocations.computeIfAbsent(program, p -> new HashMap<>());
+    return locations.computeIfAbsent(name.toString(), n -> locations.size());
+  }
+
+  void uniform(int loc) {
+    record(UNIFORM);
+    check(program != K.gl_null, "uploading uniform %d without a program in use", loc);
+  }
+
+  public void glUniform1f(int loc, float x) { uniform(loc); }
+  public void glUniform2f(int loc, float x, float y) { uniform(loc); }
+  public void glUniform3f(int loc, float x, float y, float z) { uniform(loc); }
+  public void glUniformMatrix4(int loc, boolean transpose, FloatBuffer m) { uniform(loc); }
+
+  public int glGetUniformBlockIndex(int program, CharSequence name) {
+    record(GET_UNIFORM_BLOCK);
+    check(linked.get(program), "glGetUniformBlockIndex on unlinked program %d", program);
+    return 0; // every block is active
+  }
+
+  public void glUniformBlockBinding(int program, int block, int binding) {
+    record(UNIFORM_BLOCK_BINDING);
+    check(linked.get(program), "glUniformBlockBinding on unlinked program %d", program);
+    check(binding >= 0 && binding < uniformBindings.length, "uniform binding point %d out of range", binding);
+    programBlocks = ensure(programBlocks, program);
+    programBlocks[program] |= 1 << binding;
+  }
+
+  public int glGetInteger(int pname) {
+    record(GET_INTEGER);
+    switch (pname) {
+      case GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT: return UNIFORM_BUFFER_OFFSET_ALIGNMENT;
+      case GL41.GL_NUM_PROGRAM_BINARY_FORMATS: return 1;
+      default: return 0;
+    }
+  }
+
+  public String glGetString(int name) {
+    record(GET_STRING);
+    switch (name) {
+      case GL11.GL_VENDOR: return "java3d";
+      case GL11.GL_RENDERER: return "RecordingBackend";
+      case GL11.GL_VERSION: return version;
+      default: return "";
+    }
+  }
+
+  // Draws
+
+  void draw(int call, int count, int instances) {
+    record(call);
+    if (program == K.gl_null) {
+      check(false, "draw without a program in use");
+    }
+    if (vao == K.gl_null) {
+      check(false, "draw without a bound vao");
+    }
+    if (vaoElementBuffer[vao] == K.gl_null) {
+      check(false, "indexed draw with no element buffer in vao %d", vao);
+    }
+    if (mapped.get(vaoElementBuffer[vao]) && !persistent.get(vaoElementBuffer[vao])) {
+      check(false, "draw reading element buffer %d while it is mapped", vaoElementBuffer[vao]);
+    }
+    int enabled = vaoEnabledAttrs[vao];
+    if ((enabled & vaoPointerAttrs[vao]) != enabled) {
+      check(false, "vao %d has enabled attributes without buffers", vao);
+    }
+    int blocks = program < programBlocks.length ? programBlocks[program] : 0;
+    for (int b = 0; b < uniformBindings.length; b++) {
+      if ((blocks & (1 << b)) != 0 && uniformBindings[b] == K.gl_null) {
+        check(false, "draw without a buffer at uniform binding %d", b);
+      }
+    }
+    drawCalls++;
+    triangles += (long) (count / 3) * instances;
+  }
+
+  public void glDrawElements(int mode, int count, int type, long offset) {
+    draw(DRAW_ELEMENTS, count, 1);
+  }
+
+  public void glDrawElementsInstanced(int mode, int count, int type, long offset, int instances) {
+    draw(DRAW_ELEMENTS_INSTANCED, count, instances);
+  }
+
+  // Sub-allocated meshes: the index range must lie in the element buffer.
+  void checkIndices(int count, int type, long offset) {
+    int ebo = vao == K.gl_null ? K.gl_null : vaoElementBuffer[vao];
+    long end = offset + (long) count * VertexFormat.indexBytes(type);
+    if (ebo != K.gl_null && (ebo >= bufferSizes.length || end > bufferSizes[ebo])) {
+      check(false, "drawing indices [%d, %d) past the end of element buffer %d", offset, end, ebo);
+    }
+  }
+
+  public void glDrawElementsBaseVertex(int mode, int count, int type, long offset, int baseVertex) {
+    checkIndices(count, type, offset);
+    draw(DRAW_ELEMENTS_BASE_VERTEX, count, 1);
+  }
+
+  public void glDrawElementsInstancedBaseVertex(int mode, int count, int type, long offset, int instances, int baseVertex) {
+    checkIndices(count, type, offset);
+    draw(DRAW_ELEMENTS_INSTANCED_BASE_VERTEX, count, instances);
+  }
+
+  // Every command is checked as a draw of its own. Commands are {count, instances, first index, base vertex,
+  // base instance} ints, 'stride' 0 when packed. Commands with different base instances mean different per draw
+  // data, see IndirectDraws: the vao must have a per instance attribute to read it, or they all read the first.
+  public void glMultiDrawElementsIndirect(int mode, int type, long offset, int drawCount, int stride) {
+    int id = drawIndirectBuffer;
+    int step = stride == 0 ? 20 : stride;
+    if (id == K.gl_null || id >= bufferSizes.length || offset % 4 != 0 || offset + (long) drawCount * step > bufferSizes[id]) {
+      check(false, "reading %d draw commands at %d of draw indirect buffer %d", drawCount, offset, id);
+      return;
+    }
+    ByteBuffer commands = storage(id);
+    boolean instanced = (vaoEnabledAttrs[vao] & vaoInstancedAttrs[vao]) != 0;
+    long total = 0;
+    for (int d = 0; d < drawCount; d++) {
+      int p = (int) offset + d * step;
+      int count = commands.getInt(p);
+      checkIndices(count, type, (long) commands.getInt(p + 8) * VertexFormat.indexBytes(type));
+      total += (long) (count / 3) * commands.getInt(p + 4);
+      if (!instanced && commands.getInt(p + 16) != commands.getInt((int) offset + 16)) {
+        check(false, "merged draws with base instances %d and %d on vao %d, which has no per instance attribute: "
+            + "they read the same per draw data", commands.getInt((int) offset + 16), commands.getInt(p + 16), vao);
+      }
+    }
+    draw(MULTI_DRAW_ELEMENTS_INDIRECT, (int) (3 * total), 1);
+  }
+
+  // Queries: there is no gpu, results are available immediately and every timer reads 0.
+
+  public int glGenQueries() {
+    record(GEN_QUERY);
+    return newId(queries);
+  }
+
+  public void glDeleteQueries(int id) {
+    record(DELETE_QUERY);
+    check(id != activeQuery, "deleting active query %d", id);
+    queries.clear(id);
+  }
+
+  public void glBeginQuery(int target, int id) {
+    record(BEGIN_QUERY);
+    check(queries.get(id), "glBeginQuery on unknown query %d", id);
+    check(activeQuery == K.gl_null, "glBeginQuery(%d) while query %d is active", id, activeQuery);
+    activeQuery = id;
+  }
+
+  public void glEndQuery(int target) {
+    record(END_QUERY);
+    check(activeQuery != K.gl_null, "glEndQuery without an active query");
+    activeQuery = K.gl_null;
+  }
+
+  public int glGetQueryObjecti(int id, int pname) {
+    record(GET_QUERY);
+    check(queries.get(id) && id != activeQuery, "reading unknown or active query %d", id);
+    return GL11.GL_TRUE;
+  }
+
+  public long glGetQueryObjectui64(int id, int pname) {
+    record(GET_QUERY);
+    check(queries.get(id) && id != activeQuery, "reading unknown or active query %d", id);
+    return 0;
+  }
+
+  // Syncs: see gpuFramesBehind. A wait with a timeout on a fence not reached yet stalls until it is, which the
+  // recorder counts and answers at once.
+
+  long stalls;
+
+  public int glFenceSync(int condition, int flags) {
+    record(FENCE_SYNC);
+    check(condition == GL32.GL_SYNC_GPU_COMMANDS_COMPLETE && flags == 0, "glFenceSync(0x%x, %d)", condition, flags);
+    int id = newId(syncs);
+    fenceSerials = ensure(fenceSerials, id);
+    fenceSerials[id] = fences++;
+    return id;
+  }
+
+  public int glClientWaitSync(int sync, int flags, long timeout) {
+    record(CLIENT_WAIT_SYNC);
+    check(syncs.get(sync), "glClientWaitSync on unknown or deleted sync %d", sync);
+    if (fences - fenceSerials[sync] > gpuFramesBehind) {
+      return GL32.GL_ALREADY_SIGNALED;
+    }
+    if (timeout == 0) {
+      return GL32.GL_TIMEOUT_EXPIRED;
+    }
+    stalls++;
+    return GL32.GL_CONDITION_SATISFIED;
+  }
+
+  public void glDeleteSync(int sync) {
+    record(DELETE_SYNC);
+    if (sync == K.gl_null) {
+      return; // silently ignored by GL
+    }
+    check(syncs.get(sync), "glDeleteSync on unknown or deleted sync %d", sync);
+    syncs.clear(sync);
+  }
+}
+
+
+// Runs the Room / Mesh submission path against a RecordingBackend, without display: prints the GL calls and
+// the cpu nanoseconds spent per frame. Usage: Headless [frames]
+final class Headless {
+
+  // Must run before any Shader, Mesh, Texture or Room class is touched.
+  static RecordingBackend install() {
+    RecordingBackend rec = new RecordingBackend();
+    rec.timestamps = false;
+    GLUtil.gl = rec;
+    ShaderPipeline.preload();
+    return rec;
+  }
+
+  public static void main(String[] args) {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    // "stream": walks the camera across a generated world instead of drawing the demo rooms
+    boolean streaming = args.length > 1 && args[1].equals("stream");
+    // "objects": draws the objects of the demo rooms one by one instead of instanced, i.e as multi-draws
+    boolean objects = args.length > 1 && args[1].equals("objects");
+
+    RecordingBackend rec = install();
+
+    Room[] rooms = AssetFile.level != null ? AssetFile.level.rooms() : Game.demoRooms();
+    int count = rooms.length;
+    for (Room r : rooms) {
+      r.instanced &= !objects;
+    }
+    float x = 0;
+    if (streaming) {
+      try {
+        String dir = Files.createTempDirectory("world").toString();
+        Chunk.generate(dir, 32, 8, 1);
+        ChunkStreamer.open(dir);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    RenderQueue queue = new RenderQueue(Config.RENDER_QUEUE_CAPACITY);
+    queue.keyByGroup = FrameProfiler.enabled && Config.PROFILER_GPU_PER_ROOM;
+    if (Config.DYNAMIC_DEMO) {
+      Spinner.init();
+    }
+    FrameProfiler.dumpPeriod = 0;
+
+    long calls = 0;
+    long draws = 0;
+    long nanos = 0;
+    int streamRegions = 0; // bit mask of the stream buffer regions the spinner was checked in
+    for (int f = 0; f < frames; f++) {
+      rec.beginFrame();
+      FrameProfiler.beginFrame();
+      Culling.beginFrame();
+      FrameProfiler.begin(FrameProfiler.SUBMIT);
+      StreamBuffer.beginFrame();
+      if (Config.DYNAMIC_DEMO) {
+        Spinner.update();
+        DynamicMesh m = Spinner.mesh;
+        if (m.frame == StreamBuffer.frames) {
+          if ((long) m.baseVertex * DynamicMesh.format.stride != m.vertexOffset) {
+            throw new IllegalStateException(String.format("stream buffer region %d: base vertex %d of %d bytes is not "
+                + "at vertex offset %d", StreamBuffer.region, m.baseVertex, DynamicMesh.format.stride, m.vertexOffset));
+          }
+          streamRegions |= 1 << StreamBuffer.region;
+        }
+      }
+      if (streaming) {
+        x -= 0.02f; // one chunk every ~85 frames
+        ChunkStreamer.update(x, 0, 0);
+        rooms = ChunkStreamer.rooms;
+        count = ChunkStreamer.count;
+      }
+      if (Config.PORTALS) {
+        Portals.traverse(rooms, count, x, 0, 0);
+      }
+      queue.camera(x, 0, 0);
+      ParallelRecorder.record(rooms, count, queue, x, 0, 0);
+      if (Config.DYNAMIC_DEMO) {
+        Spinner.render(queue, x, 0, 0);
+      }
+      StreamBuffer.submit();
+      FrameProfiler.end(FrameProfiler.SUBMIT);
+      FrameProfiler.begin(FrameProfiler.FLUSH);
+      TextureStreamer.update();
+      queue.flush();
+      StreamBuffer.endFrame();
+      FrameProfiler.end(FrameProfiler.FLUSH);
+      FrameProfiler.endFrame(queue.drawCalls, queue.triangles);
+      StagingArena.reset(); // staged memory never outlives a frame
+      MeshPool.maintain();
+      rec.endFrame();
+      calls += rec.frameCalls;
+      draws += rec.frameDraws;
+      nanos += rec.frameNanos;
+    }
+    if (Config.DYNAMIC_DEMO && frames >= Config.STREAM_RING_FRAMES
+        && streamRegions != (1 << Config.STREAM_RING_FRAMES) - 1) {
+      throw new IllegalStateException("spinner vertices not checked in every stream buffer region");
+    }
+
+    System.out.println(String.format("%d frames: %.1f calls/frame, %.1f draws/frame, %.0f ns/frame (cpu)",
+        frames, (double) calls / frames, (double) draws / frames, (double) nanos / frames));
+    System.out.println(rec.report());
+    System.out.println(GLState.report());
+    System.out.println(FrameProfiler.report());
+    System.out.println(GLObjects.report());
+    System.out.println(StagingArena.report());
+    System.out.println(Mesh.report());
+    System.out.println(MeshPool.report());
+    System.out.println(TileMesher.report());
+    System.out.println(TextureStreamer.report());
+    System.out.println(Culling.report());
+    System.out.println(ChunkStreamer.report());
+    System.out.println(ParallelRecorder.report());
+    System.out.println(UniformBlocks.report());
+    System.out.println(StreamBuffer.report());
+    System.out.println(ShaderPipeline.report());
+    ChunkStreamer.shutdown();
+    ParallelRecorder.shutdown();
+    ShaderPipeline.shutdown();
+  }
+}
+
+
+// Layout of an interleaved vertex buffer: location, component count and encoding of every attribute.
+// Attributes are padded to 4 bytes, the alignment vertex fetch wants.
+final class VertexFormat {
+  // Component encodings, from the largest to the smallest.
+  static final int FLOAT = 0, HALF = 1, SHORT = 2, UNORM16 = 3, BYTE = 4, UNORM8 = 5, ENCODINGS = 6;
+  static final int[] GL_TYPES = {
+    GL11.GL_FLOAT, GL30.GL_HALF_FLOAT, GL11.GL_SHORT, GL11.GL_UNSIGNED_SHORT, GL11.GL_BYTE, GL11.GL_UNSIGNED_BYTE
+  };
+  static final boolean[] NORMALIZED = { false, false, false, true, false, true };
+  static final int[] BYTES = { 4, 2, 2, 2, 1, 1 };
+  static final String[] NAMES = { "float", "half", "short", "unorm16", "byte", "unorm8" };
+
+  // The layout before compaction: float positions, uvs and tile layers.
+  static final VertexFormat floats = new VertexFormat(FLOAT, FLOAT, FLOAT);
+  // The layout of pooled meshes whose data it holds, wide enough for the demo shells, objects and baked rooms, so
+  // that they all share the vertex buffer and vao of one MeshPool.
+  static final VertexFormat pooled = new VertexFormat(HALF, HALF, HALF);
+
+  final int[] locations = { Mesh.ATTR_POS, Mesh.ATTR_UVS, Mesh.ATTR_LAYER };
+  final int[] sizes = { K.float_per_vertex, K.float_per_uv, K.float_per_layer };
+  final int[] encodings;
+  final int[] offsets;
+  final int stride;
+
+  VertexFormat(int positions, int uvs, int layers) {
+    encodings = new int[] { positions, uvs, layers };
+    offsets = new int[encodings.length];
+    int o = 0;
+    for (int a = 0; a < encodings.length; a++) {
+      offsets[a] = o;
+      o += (sizes[a] * BYTES[encodings[a]] + 3) & ~3;
+    }
+    stride = o;
+  }
+
+  // Smallest format holding the data within Config.VERTEX_MAX_ERROR.
+  static VertexFormat fit(float[] positions, float[] uvs, float[] layers) {
+    if (!Config.VERTEX_COMPACT) {
+      return floats;
+    }
+    if (Config.MESH_POOL && pooled.holds(positions, uvs, layers)) {
+      return pooled;
+    }
+    return new VertexFormat(encodingOf(positions), encodingOf(uvs), encodingOf(layers));
+  }
+
+  boolean holds(float[] positions, float[] uvs, float[] layers) {
+    return fits(positions, encodings[0]) && fits(uvs, encodings[1]) && fits(layers, encodings[2]);
+  }
+
+  boolean same(VertexFormat o) {
+    return Arrays.equals(encodings, o.encodings);
+  }
+
+  static int encodingOf(float[] data) {
+    for (int e = ENCODINGS - 1; e > FLOAT; e--) {
+      if (fits(data, e)) {
+        return e;
+      }
+    }
+    return FLOAT;
+  }
+
+  static boolean fits(float[] data, int e) {
+    for (float v : data) {
+      if (!inRange(v, e) || Math.abs(decode(encode(v, e), e) - v) > Config.VERTEX_MAX_ERROR) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean inRange(float v, int e) {
+    switch (e) {
+      case HALF:    return Math.abs(v) <= 65504;
+      case SHORT:   return v >= Short.MIN_VALUE && v <= Short.MAX_VALUE;
+      case BYTE:    return v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE;
+      case UNORM16:
+      case UNORM8:  return v >= 0 && v <= 1;
+      default:      return true;
+    }
+  }
+
+  // Bits of v in encoding e, in the low bits of the result.
+  static int encode(float v, int e) {
+    switch (e) {
+      case HALF:    return toHalf(v);
+      case SHORT:
+      case BYTE:    return Math.round(v);
+      case UNORM16: return Math.round(v * 0xffff);
+      case UNORM8:  return Math.round(v * 0xff);
+      default:      return Float.floatToRawIntBits(v);
+    }
+  }
+
+  // Value seen by the vertex shader.
+  static float decode(int bits, int e) {
+    switch (e) {
+      case HALF:    return fromHalf(bits);
+      case SHORT:
+      case BYTE:    return bits;
+      case UNORM16: return bits / (float) 0xffff;
+      case UNORM8:  return bits / (float) 0xff;
+      default:      return Float.intBitsToFloat(bits);
+    }
+  }
+
+  // Truncating float -> half conversion. Out of range values become infinities, which fits() rejects.
+  static int toHalf(float v) {
+    int bits = Float.floatToRawIntBits(v);
+    int sign = (bits >>> 16) & 0x8000;
+    int exp = ((bits >>> 23) & 0xff) - 127 + 15;
+    int mantissa = bits & 0x7fffff;
+    if ((bits & 0x7fffffff) == 0) {
+      return sign;
+    }
+    if (exp >= 31) {
+      return sign | 0x7c00;
+    }
+    if (exp <= 0) {
+      return exp < -10 ? sign : sign | ((mantissa | 0x800000) >> (14 - exp));
+    }
+    return sign | (exp << 10) | (mantissa >> 13);
+  }
+
+  static float fromHalf(int h) {
+    int exp = (h >>> 10) & 0x1f;
+    int mantissa = h & 0x3ff;
+    float v;
+    if (exp == 0) {
+      v = Math.scalb((float) mantissa, -24);
+    } else if (exp == 31) {
+      v = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+    } else {
+      v = Math.scalb((float) (mantissa | 0x400), exp - 25);
+    }
+    return (h & 0x8000) != 0 ? -v : v;
+  }
+
+  // Writes attribute a of 'vertices' vertices from data into dst, which holds whole vertices from index 0.
+  void put(ByteBuffer dst, int a, float[] data, int vertices) {
+    int e = encodings[a];
+    int size = sizes[a];
+    for (int v = 0; v < vertices; v++) {
+      int p = v * stride + offsets[a];
+      for (int c = 0; c < size; c++) {
+        int bits = encode(data[v * size + c], e);
+        switch (BYTES[e]) {
+          case 4:  dst.putInt(p + 4 * c, bits); break;
+          case 2:  dst.putShort(p + 2 * c, (short) bits); break;
+          default: dst.put(p + c, (byte) bits); break;
+        }
+      }
+    }
+  }
+
+  // Inverse of put(): attribute a of 'vertices' vertices from src, as seen by the vertex shader.
+  float[] get(ByteBuffer src, int a, int vertices) {
+    int e = encodings[a];
+    int size = sizes[a];
+    float[] data = new float[vertices * size];
+    for (int v = 0; v < vertices; v++) {
+      int p = v * stride + offsets[a];
+      for (int c = 0; c < size; c++) {
+        int bits;
+        switch (BYTES[e]) {
+          case 4:  bits = src.getInt(p + 4 * c); break;
+          case 2:  bits = e == HALF || e == UNORM16 ? src.getShort(p + 2 * c) & 0xffff : src.getShort(p + 2 * c); break;
+          default: bits = e == UNORM8 ? src.get(p + c) & 0xff : src.get(p + c); break;
+        }
+        data[v * size + c] = decode(bits, e);
+      }
+    }
+    return data;
+  }
+
+  // Points the attributes of the bound vao at vbo and enables them.
+  void bind(int vbo) {
+    GLUtil.vboArrayBufferBind(vbo);
+    for (int a = 0; a < encodings.length; a++) {
+      int e = encodings[a];
+      GLUtil.gl.glVertexAttribPointer(locations[a], sizes[a], GL_TYPES[e], NORMALIZED[e], stride, offsets[a]);
+    }
+    GLUtil.vboArrayBufferUnbind();
+    for (int a = 0; a < encodings.length; a++) {
+      GLUtil.vertexAttribArrayBind(locations[a]);
+    }
+  }
+
+  // Smallest index type addressing 'vertices' vertices.
+  static int indexType(int vertices) {
+    if (Config.VERTEX_COMPACT && Config.VERTEX_BYTE_INDICES && vertices <= 1 << 8) {
+      return GL11.GL_UNSIGNED_BYTE;
+    }
+    if (Config.VERTEX_COMPACT && vertices <= 1 << 16) {
+      return GL11.GL_UNSIGNED_SHORT;
+    }
+    return GL11.GL_UNSIGNED_INT;
+  }
+
+  static int indexBytes(int type) {
+    return type == GL11.GL_UNSIGNED_BYTE ? 1 : type == GL11.GL_UNSIGNED_SHORT ? 2 : 4;
+  }
+
+  static ByteBuffer putIndices(ByteBuffer dst, int[] indices, int type) {
+    for (int i = 0; i < indices.length; i++) {
+      switch (type) {
+        case GL11.GL_UNSIGNED_BYTE:  dst.put(i, (byte) indices[i]); break;
+        case GL11.GL_UNSIGNED_SHORT: dst.putShort(2 * i, (short) indices[i]); break;
+        default:                     dst.putInt(4 * i, indices[i]); break;
+      }
+    }
+    return dst;
+  }
+
+  static int[] getIndices(ByteBuffer src, int count, int type) {
+    int[] indices = new int[count];
+    for (int i = 0; i < count; i++) {
+      switch (type) {
+        case GL11.GL_UNSIGNED_BYTE:  indices[i] = src.get(i) & 0xff; break;
+        case GL11.GL_UNSIGNED_SHORT: indices[i] = src.getShort(2 * i) & 0xffff; break;
+        default:                     indices[i] = src.getInt(4 * i); break;
+      }
+    }
+    return indices;
+  }
+
+  public String toString() {
+    return String.format("position %sx%d, uv %sx%d, layer %s, %d bytes",
+        NAMES[encodings[0]], sizes[0], NAMES[encodings[1]], sizes[1], NAMES[encodings[2]], stride);
+  }
+}
+
+
+// Triangle and vertex orders for the gpu vertex caches, applied once at load time.
+final class VertexCache {
+  static final int SIZE = 16; // conservative post transform cache size, in vertices
+
+  // Triangle order of 'Fast Triangle Reordering for Vertex Locality and Reduced Overdraw' (Sander, Nehab,
+  // Barczak 2007): fans around the vertex most likely to still be in the cache. Linear time.
+  static int[] tipsify(int[] indices, int vertices, int cacheSize) {
+    int triangles = indices.length / 3;
+    int[] live = new int[vertices]; // triangles not emitted yet, per vertex
+    for (int i = 0; i < 3 * triangles; i++) {
+      live[indices[i]]++;
+    }
+    int[] start = new int[vertices + 1]; // adjacent triangles of v are adjacency[start[v] .. start[v + 1]]
+    for (int v = 0; v < vertices; v++) {
+      start[v + 1] = start[v] + live[v];
+    }
+    int[] adjacency = new int[3 * triangles];
+    int[] fill = Arrays.copyOf(start, vertices);
+    for (int i = 0; i < 3 * triangles; i++) {
+      adjacency[fill[indices[i]]++] = i / 3;
+    }
+
+    int[] cacheTime = new int[vertices];
+    boolean[] emitted = new boolean[triangles];
+    int[] deadEnd = new int[3 * triangles];
+    int deadEnds = 0;
+    int[] candidates = new int[3 * triangles];
+    int[] out = new int[3 * triangles];
+    int n = 0;
+    int time = cacheSize + 1;
+    int cursor = 0;
+
+    int f = -1;
+    while (f == -1 && cursor < vertices) {
+      f = live[cursor] > 0 ? cursor : -1;
+      cursor++;
+    }
+    while (f >= 0) {
+      int nc = 0;
+      for (int a = start[f]; a < start[f + 1]; a++) {
+        int t = adjacency[a];
+        if (emitted[t]) {
+          continue;
+        }
+        for (int k = 0; k < 3; k++) {
+          int v = indices[3 * t + k];
+          out[n++] = v;
+          deadEnd[deadEnds++] = v;
+          candidates[nc++] = v;
+          live[v]--;
+          if (time - cacheTime[v] > cacheSize) {
+            cacheTime[v] = time++;
+          }
+        }
+        emitted[t] = true;
+      }
+      // Next fan: the candidate which stays in the cache while its remaining triangles are emitted, oldest first.
+      int best = -1;
+      int bestPriority = -1;
+      for (int c = 0; c < nc; c++) {
+        int v = candidates[c];
+        if (live[v] > 0) {
+          int priority = time - cacheTime[v] + 2 * live[v] <= cacheSize ? time - cacheTime[v] : 0;
+          if (priority > bestPriority) {
+            bestPriority = priority;
+            best = v;
+          }
+        }
+      }
+      while (best == -1 && deadEnds > 0) {
+        int v = deadEnd[--deadEnds];
+        best = live[v] > 0 ? v : -1;
+      }
+      while (best == -1 && cursor < vertices) {
+        best = live[cursor] > 0 ? cursor : -1;
+        cursor++;
+      }
+      f = best;
+    }
+    return out;
+  }
+
+  // Renumbers vertices in order of first use so that vertex fetch walks the buffer forward. Rewrites indices
+  // in place and returns the new position of every vertex.
+  static int[] fetchOrder(int[] indices, int vertices) {
+    int[] remap = new int[vertices];
+    Arrays.fill(remap, -1);
+    int next = 0;
+    for (int i = 0; i < indices.length; i++) {
+      int v = indices[i];
+      if (remap[v] < 0) {
+        remap[v] = next++;
+      }
+      indices[i] = remap[v];
+    }
+    for (int v = 0; v < vertices; v++) {
+      if (remap[v] < 0) {
+        remap[v] = next++;
+      }
+    }
+    return remap;
+  }
+
+  static float[] remap(float[] data, int size, int[] remap) {
+    float[] out = new float[data.length];
+    for (int v = 0; v < remap.length; v++) {
+      System.arraycopy(data, v * size, out, remap[v] * size, size);
+    }
+    return out;
+  }
+
+  // Average cache miss ratio: transformed vertices per triangle with a FIFO cache, 0.5 at best and 3 at worst.
+  static float acmr(int[] indices, int vertices, int cacheSize) {
+    if (indices.length == 0) {
+      return 0;
+    }
+    int[] insertedAt = new int[vertices];
+    Arrays.fill(insertedAt, -cacheSize);
+    int misses = 0;
+    for (int v : indices) {
+      if (misses - insertedAt[v] >= cacheSize) {
+        insertedAt[v] = misses++;
+      }
+    }
+    return 3f * misses / indices.length;
+  }
+}
+
+
+// Shadow copy of the GL state touched by the render path. Binds and uniform uploads which would not change
+// anything are skipped and counted. Only valid as long as every state change goes through GLUtil and Shader.
+final class GLState {
+  static final int UNKNOWN = -1;
+
+  static int program = UNKNOWN;
+  static int vao = UNKNOWN;
+  static int arrayBuffer = UNKNOWN;
+  static int activeUnit = UNKNOWN;
+  static final int[] textures = new int[K.texture_units]; // texture bound to every unit
+  static final int[] targets = new int[K.texture_units];  // and its target
+  static final int[] uniformBuffers = new int[K.uniform_bindings]; // buffer range bound to every block binding
+  static final long[] uniformOffsets = new long[K.uniform_bindings];
+
+  // Last uploaded uniform values, indexed by program id, then by location * K.floats_per_uniform.
+  static float[][] uniforms = new float[8][];
+
+  static long issued;
+  static long skipped;
+  static long skippedPrograms;
+  static long skippedVaos;
+  static long skippedBuffers;
+  static long skippedTextures;
+  static long skippedUniforms;
+
+  static {
+    reset();
+  }
+
+  // Forgets everything, e.g after GL calls made outside of GLUtil and Shader.
+  static void reset() {
+    program = UNKNOWN;
+    vao = UNKNOWN;
+    arrayBuffer = UNKNOWN;
+    activeUnit = UNKNOWN;
+    Arrays.fill(textures, UNKNOWN);
+    Arrays.fill(uniformBuffers, UNKNOWN);
+    Arrays.fill(uniforms, null);
+  }
+
+  static void useProgram(int id) {
+    if (program == id) {
+      skippedPrograms++;
+      skipped++;
+      return;
+    }
+    program = id;
+    issued++;
+    GLUtil.gl.glUseProgram(id);
+  }
+
+  static void bindVao(int id) {
+    if (vao == id) {
+      skippedVaos++;
+      skipped++;
+      return;
+    }
+    vao = id;
+    issued++;
+    GLUtil.gl.glBindVertexArray(id);
+  }
+
+  static void bindArrayBuffer(int id) {
+    if (arrayBuffer == id) {
+      skippedBuffers++;
+      skipped++;
+      return;
+    }
+    arrayBuffer = id;
+    issued++;
+    GLUtil.gl.glBindBuffer(GL15.GL_ARRAY_BUFFER, id);
+  }
+
+  static void activeTexture(int unit) {
+    if (activeUnit == unit) {
+      skippedTextures++;
+      skipped++;
+      return;
+    }
+    activeUnit = unit;
+    issued++;
+    GLUtil.gl.glActiveTexture(GL13.GL_TEXTURE0 + unit);
+  }
+
+  // Only tracks the last bind of every unit: binding to another target of the same unit is never skipped.
+  static void bindTexture(int target, int id) {
+    if (activeUnit == UNKNOWN) {
+      activeTexture(0);
+    }
+    if (textures[activeUnit] == id && targets[activeUnit] == target) {
+      skippedTextures++;
+      skipped++;
+      return;
+    }
+    textures[activeUnit] = id;
+    targets[activeUnit] = target;
+    issued++;
+    GLUtil.gl.glBindTexture(target, id);
+  }
+
+  // Ranges of a given buffer always have the same size, see UniformBlocks.
+  static void bindUniformRange(int binding, int id, long offset, long size) {
+    if (uniformBuffers[binding] == id && uniformOffsets[binding] == offset) {
+      skippedBuffers++;
+      skipped++;
+      return;
+    }
+    uniformBuffers[binding] = id;
+    uniformOffsets[binding] = offset;
+    issued++;
+    GLUtil.gl.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, binding, id, offset, size);
+  }
+
+  // Returns true if the uniform at 'loc' of the current program must be uploaded, and records the new value.
+  static boolean uniformChanged(int loc, float x, float y, float z) {
+    if (program <= 0) {
+      issued++; // no tracked program: let GL deal with it
+      return true;
+    }
+    if (loc < 0) {
+      skippedUniforms++; // inactive uniform, GL would silently ignore the upload
+      skipped++;
+      return false;
+    }
+    float[] values = uniformSlots(loc);
+    int i = loc * K.floats_per_uniform;
+    if (values[i] == x && values[i + 1] == y && values[i + 2] == z) {
+      skippedUniforms++;
+      skipped++;
+      return false;
+    }
+    values[i] = x;
+    values[i + 1] = y;
+    values[i + 2] = z;
+    issued++;
+    return true;
+  }
+
+  static boolean uniformChanged(int loc, FloatBuffer m) {
+    if (program <= 0) {
+      issued++;
+      return true;
+    }
+    if (loc < 0) {
+      skippedUniforms++;
+      skipped++;
+      return false;
+    }
+    float[] values = uniformSlots(loc);
+    int i = loc * K.floats_per_uniform;
+    boolean same = true;
+    for (int j = 0; j < m.remaining(); j++) {
+      float v = m.get(m.position() + j);
+      same &= values[i + j] == v;
+      values[i + j] = v;
+    }
+    if (same) {
+      skippedUniforms++;
+      skipped++;
+      return false;
+    }
+    issued++;
+    return true;
+  }
+
+  static float[] uniformSlots(int loc) {
+    if (program >= uniforms.length) {
+      uniforms = Arrays.copyOf(uniforms, Math.max(program + 1, 2 * uniforms.length));
+    }
+    float[] values = uniforms[program];
+    int len = (loc + 1) * K.floats_per_uniform;
+    if (values == null || values.length < len) {
+      int from = values == null ? 0 : values.length;
+      values = values == null ? new float[len] : Arrays.copyOf(values, len);
+      Arrays.fill(values, from, len, Float.NaN); // NaN never compares equal: forces the first upload
+      uniforms[program] = values;
+    }
+    return values;
+  }
+
+  // GL unbinds deleted objects and may hand their ids out again: forget them.
+
+  static void deletedVao(int id) {
+    if (vao == id) {
+      vao = UNKNOWN;
+    }
+  }
+
+  static void deletedBuffer(int id) {
+    if (arrayBuffer == id) {
+      arrayBuffer = UNKNOWN;
+    }
+  }
+
+  static void deletedTexture(int id) {
+    for (int u = 0; u < textures.length; u++) {
+      if (textures[u] == id) {
+        textures[u] = UNKNOWN;
+      }
+    }
+  }
+
+  static String report() {
+    return String.format("gl state: %d calls issued, %d skipped (programs %d, vaos %d, buffers %d, textures %d, uniforms %d)",
+        issued, skipped, skippedPrograms, skippedVaos, skippedBuffers, skippedTextures, skippedUniforms);
+  }
+}
+
+
+// Tracks VBO, VAO and texture objects. Callers hold handles from the registries below, never raw GL ids:
+// GLUtil resolves them when binding.
+final class GLObjects {
+  static final GLRegistry vaos = new GLRegistry("vao");
+  static final GLRegistry vbos = new GLRegistry("vbo");
+  static final GLRegistry textures = new GLRegistry("texture");
+
+  static int allocVao() {
+    return vaos.add(GLUtil.gl.glGenVertexArrays());
+  }
+
+  static int allocVbo() {
+    return vbos.add(GLUtil.gl.glGenBuffers());
+  }
+
+  static int allocTexture() {
+    return textures.add(GLUtil.gl.glGenTextures());
+  }
+
+  static void freeVao(int handle) {
+    int id = vaos.free(handle);
+    GLState.deletedVao(id);
+    GLUtil.gl.glDeleteVertexArrays(id);
+  }
+
+  static void freeVbo(int handle) {
+    int id = vbos.free(handle);
+    GLState.deletedBuffer(id);
+    GLUtil.gl.glDeleteBuffers(id);
+  }
+
+  static void freeTexture(int handle) {
+    int id = textures.free(handle);
+    GLState.deletedTexture(id);
+    GLUtil.gl.glDeleteTextures(id);
+  }
+
+  static void freeAll() {
+    vaos.freeAll(GLObjects::freeVao);
+    vbos.freeAll(GLObjects::freeVbo);
+    textures.freeAll(GLObjects::freeTexture);
+  }
+
+  static String report() {
+    return vaos.report() + ", " + vbos.report() + ", " + textures.report();
+  }
+}
+
+
+// Live GL objects of one type in primitive arrays. A handle packs a slot index with the generation of that slot.
+// Freeing a slot bumps its generation and puts it on a free list for reuse, so in debug builds a stale handle is
+// caught instead of silently reaching whatever object now lives in the recycled slot. Handle 0 is GL's 0.
+final class GLRegistry {
+  static final int INDEX_BITS = 20;
+  static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+  static final int GENERATION_MASK = (1 << (Integer.SIZE - INDEX_BITS)) - 1;
+  static final int NO_SLOT = -1;
+
+  final String type;
+
+  int[] ids = new int[64];
+  int[] generations = new int[64];
+  int[] bytes = new int[64];
+  int[] nextFree = new int[64];
+  int freeHead = NO_SLOT;
+  int slots = 1; // slot 0 is the null handle
+
+  int live;
+  long liveBytes;
+
+  GLRegistry(String type) {
+    this.type = type;
+  }
+
+  int add(int id) {
+    int index = freeHead;
+    if (index != NO_SLOT) {
+      freeHead = nextFree[index];
+    } else {
+      index = slots++;
+      check(index <= INDEX_MASK, "too many live %s objects", type);
+      if (index == ids.length) {
+        int capacity = 2 * ids.length;
+        ids = Arrays.copyOf(ids, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        bytes = Arrays.copyOf(bytes, capacity);
+        nextFree = Arrays.copyOf(nextFree, capacity);
+      }
+      generations[index] = 1;
+    }
+    ids[index] = id;
+    bytes[index] = 0;
+    live++;
+    return (generations[index] << INDEX_BITS) | index;
+  }
+
+  // GL id of a handle.
+  int id(int handle) {
+    int index = handle & INDEX_MASK;
+    if (K.debug) {
+      check(generations[index] == handle >>> INDEX_BITS, "use after free of %s handle 0x%x", type, handle);
+    }
+    return ids[index];
+  }
+
+  boolean isLive(int handle) {
+    int index = handle & INDEX_MASK;
+    return index != 0 && index < slots && ids[index] != K.gl_null && generations[index] == handle >>> INDEX_BITS;
+  }
+
+  // Records the size of the storage behind a handle, replacing the previous one.
+  void setBytes(int handle, int n) {
+    int index = handle & INDEX_MASK;
+    liveBytes += n - bytes[index];
+    bytes[index] = n;
+  }
+
+  // Releases the slot of a handle and returns the GL id to delete.
+  int free(int handle) {
+    check(isLive(handle), "double free of %s handle 0x%x", type, handle);
+    int index = handle & INDEX_MASK;
+    int id = ids[index];
+    ids[index] = K.gl_null;
+    liveBytes -= bytes[index];
+    bytes[index] = 0;
+    int g = (generations[index] + 1) & GENERATION_MASK;
+    generations[index] = g == 0 ? 1 : g;
+    nextFree[index] = freeHead;
+    freeHead = index;
+    live--;
+    return id;
+  }
+
+  void freeAll(IntConsumer free) {
+    for (int index = 1; index < slots; index++) {
+      if (ids[index] != K.gl_null) {
+        free.accept((generations[index] << INDEX_BITS) | index);
+      }
+    }
+  }
+
+  void check(boolean ok, String fmt, Object... args) {
+    if (!ok) {
+      throw new IllegalStateException(String.format(fmt, args));
+    }
+  }
+
+  String report() {
+    return String.format("%s: %d live, %d bytes", type, live, liveBytes);
+  }
+}
+
+
+// Static function for managing array of ints/floats
+// Throwaway buffers are fine for tooling and tests, GL uploads go through StagingArena instead.
+final class BufferUtil {
+
+  static IntBuffer make(int[] data) {
+    IntBuffer b = BufferUtils.createIntBuffer(data.length);
+    b.put(data);
+    b.flip();
+    return b;
+  }
+
+  static FloatBuffer make(float[] data) {
+    return make(data, data.length);
+  }
+
+  static FloatBuffer make(float[] data, int len) {
+    FloatBuffer b = BufferUtils.createFloatBuffer(len);
+    b.put(data, 0, len);
+    b.flip();
+    return b;
+  }
+}
+
+
+// Reusable off-heap memory for GL uploads, instead of one new direct buffer per upload that only the gc and its
+// Cleaner give back. Requests are bump allocated from one arena. Requests which do not fit come from pools of
+// direct buffers by power of 2 size class, so a large level load reuses a handful of big buffers. Allocations
+// are released in stack order with mark() / release(), or all at once with reset() at the end of a frame or of
+// a load batch. GL thread only, like GLState.
+final class StagingArena {
+  static final int ALIGN = 16;
+  static final int MIN_CLASS = 16; // smallest pooled buffer is 64KB
+  static final int CLASSES = 31;
+
+  static final ByteBuffer arena = BufferUtils.createByteBuffer(Config.STAGING_ARENA_BYTES);
+  static int top;
+
+  // Pooled buffers in use, in allocation order.
+  static ByteBuffer[] large = new ByteBuffer[8];
+  static int largeCount;
+  static long largeBytes;
+
+  // Free pooled buffers per size class.
+  static final ByteBuffer[][] pools = new ByteBuffer[CLASSES][];
+  static final int[] poolCounts = new int[CLASSES];
+
+  // Metrics
+  static long peakBytes;
+  static long pooledBytes; // total size of all pooled buffers, free or in use
+  static long allocations;
+  static long largeAllocations;
+  static long directAllocations; // pooled buffers created, everything else is reuse
+
+  // 'n' bytes of native order memory, valid until released.
+  static ByteBuffer bytes(int n) {
+    allocations++;
+    ByteBuffer b;
+    int aligned = (n + ALIGN - 1) & -ALIGN;
+    if (aligned >= 0 && aligned <= arena.capacity() - top) {
+      b = arena.slice(top, n).order(ByteOrder.nativeOrder());
+      top += aligned;
+    } else {
+      b = large(n);
+    }
+    long used = usedBytes();
+    if (used > peakBytes) {
+      peakBytes = used;
+    }
+    return b;
+  }
+
+  static FloatBuffer floats(float[] data, int len) {
+    FloatBuffer b = bytes(4 * len).asFloatBuffer();
+    b.put(data, 0, len);
+    b.flip();
+    return b;
+  }
+
+  static IntBuffer ints(int[] data) {
+    IntBuffer b = bytes(4 * data.length).asIntBuffer();
+    b.put(data);
+    b.flip();
+    return b;
+  }
+
+  static ByteBuffer large(int n) {
+    largeAllocations++;
+    int c = Math.max(MIN_CLASS, Integer.SIZE - Integer.numberOfLeadingZeros(n - 1));
+    if (c >= CLASSES) {
+      throw new IllegalArgumentException("staging allocation too large: " + n);
+    }
+    ByteBuffer b;
+    if (poolCounts[c] > 0) {
+      b = pools[c][--poolCounts[c]];
+      pools[c][poolCounts[c]] = null;
+    } else {
+      b = BufferUtils.createByteBuffer(1 << c);
+      pooledBytes += b.capacity();
+      directAllocations++;
+    }
+    if (largeCount == large.length) {
+      large = Arrays.copyOf(large, 2 * largeCount);
+    }
+    large[largeCount++] = b;
+    largeBytes += b.capacity();
+    b.clear().limit(n);
+    return b;
+  }
+
+  // Current allocation state, to pass back to release().
+  static long mark() {
+    return ((long) largeCount << 32) | top;
+  }
+
+  // Frees everything allocated since 'mark'.
+  static void release(long mark) {
+    top = (int) mark;
+    int keep = (int) (mark >>> 32);
+    while (largeCount > keep) {
+      ByteBuffer b = large[--largeCount];
+      large[largeCount] = null;
+      largeBytes -= b.capacity();
+      int c = Integer.numberOfTrailingZeros(b.capacity());
+      if (pools[c] == null) {
+        pools[c] = new ByteBuffer[4];
+      } else if (poolCounts[c] == pools[c].length) {
+        pools[c] = Arrays.copyOf(pools[c], 2 * poolCounts[c]);
+      }
+      pools[c][poolCounts[c]++] = b;
+    }
+  }
+
+  static void reset() {
+    release(0);
+  }
+
+  static long usedBytes() {
+    return top + largeBytes;
+  }
+
+  static String report() {
+    return String.format("staging: %d/%d bytes used, %d peak, %d pooled, %d allocs (%d large, %d direct)",
+        usedBytes(), arena.capacity(), peakBytes, pooledBytes, allocations, largeAllocations, directAllocations);
+  }
+}
+
+
+final class IOUtil {
+  static String readFile(String path) {
+    try {
+      byte[] data = Files.readAllBytes(Paths.get(path));
+      return new String(data, StandardCharsets.UTF_8);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
+
+
+// Game configs
+interface Config {
+  int WIDTH           = 1280;
+  int HEIGHT          = 720;
+  int FPS_CAP         = 60; // 0 for uncapped, the simulation runs at SIM_HZ regardless
+  String TITLE        = "Game";
+
+  float ASPECT_RATIO = (float) WIDTH / (float) HEIGHT;
+
+  float PROJECTION_FOV  = 45;
+  float PROJECTION_NEAR = 0.1f;
+  float PROJECTION_FAR  = 50f;
+
+  float BASE_S = 1; //0.5f; // Base scale applied after the projection matrix
+  float BASE_Z = -13; // Base z translation before the projection matrix is applied
+
+  int SIM_HZ = 60;             // Simulation ticks per second
+  int SIM_MAX_STEPS = 8;       // Ticks per frame before the simulation drops time instead of catching up
+  boolean SIM_THREAD = false;  // Ticks on a dedicated thread instead of the render loop
+  float CAMERA_SPEED = 3;      // Units per second
+
+  boolean INSTANCING = true; // Draw room objects with one instanced draw call per distinct mesh
+
+  int RENDER_QUEUE_CAPACITY = 1024; // Initial number of draw commands per frame, grows as needed
+  int UBO_RING_FRAMES = 3;          // Frames of per draw constants in flight, see UniformBlocks
+  int STREAM_RING_FRAMES = 3;       // Frames of dynamic geometry in flight, see StreamBuffer
+  int STREAM_REGION_BYTES = 1 << 20; // Dynamic geometry per frame
+  boolean STREAM_PERSISTENT = true; // Maps the stream buffer once with GL 4.4, every frame otherwise
+  boolean DYNAMIC_DEMO = true;      // A spinning DynamicMesh in the first demo room
+  int RECORD_THREADS = Runtime.getRuntime().availableProcessors(); // Rooms recorded in parallel, 1 to disable
+  int RECORD_PARALLEL_MIN_ROOMS = 16; // Fewer rooms are recorded on the GL thread
+
+  boolean PROFILER = true;              // Frame timings, see FrameProfiler
+  boolean PROFILER_OVERLAY = false;     // Frame time graph in the bottom left corner, toggled with F3
+  boolean PROFILER_GPU_PER_ROOM = true; // Keeps the draws of each room contiguous in the queue to time them on the gpu
+  int PROFILER_DUMP_PERIOD = 600;       // Frames between two dumps to PROFILER_CSV and PROFILER_JSON, 0 to disable
+  String PROFILER_CSV = "profile.csv";
+  String PROFILER_JSON = "profile.json";
+
+  int STAGING_ARENA_BYTES = 1 << 20; // Bump allocated upload memory, larger uploads use pooled buffers
+
+  boolean TILE_ARRAYS = true;  // Tile materials in a GL_TEXTURE_2D_ARRAY, in a 2D atlas otherwise
+  boolean TILE_MIPMAPS = true; // Texture arrays only
+
+  boolean CULLING = true; // Skips rooms and objects outside of the view frustum
+  int CULL_CELL = 8;      // Side of the object grid cells, in tiles
+  boolean PORTALS = false; // Only draws rooms seen from the camera room through portals. Off: the demo rooms are
+                           // tiled side by side on screen rather than behind each other's walls.
+
+  boolean ASSETS = true;               // Loads meshes and rooms from ASSET_FILE when it exists, Data arrays otherwise
+  String ASSET_FILE = "level.bin";     // Written by 'make assets'
+
+  boolean TILE_MESHING = true;      // Baked rooms keep only the visible faces of their boxes, merged, see TileMesher
+
+  boolean MESH_POOL = true;          // Meshes share the vertex and index buffers of a few MeshPools
+  int MESH_POOL_VERTICES = 1 << 16;  // Capacity of a pool, larger meshes get a pool of their own
+  int MESH_POOL_INDICES = 1 << 18;
+  float MESH_POOL_COMPACT = 0.25f;   // Fraction of a pool lost in holes before it is compacted
+  boolean MULTI_DRAW = true;         // Consecutive pooled draws go out as one glMultiDrawElementsIndirect, GL 4.3
+
+  boolean SHADER_CACHE = true;             // Saves linked programs and loads them back on the next start
+  String SHADER_CACHE_DIR = "shader_cache"; // One binary per program and driver, see ShaderPipeline
+
+  boolean WORLD_STREAMING = true;     // Streams the world from WORLD_DIR when it exists, see ChunkStreamer
+  String WORLD_DIR = "world";         // One file per chunk, written by 'make world'
+  float CHUNK_W = 3 / ASPECT_RATIO;   // Spacing of chunk rooms, after projection
+  float CHUNK_H = 2;
+  int CHUNK_RADIUS = 2;               // Chunks kept in range around the camera chunk, in each direction
+  int CHUNK_BUDGET = 40;              // Resident chunks before out of range ones are evicted
+  int CHUNK_WORKERS = 1;              // File reading threads
+  int CHUNK_UPLOAD_MICROS = 2000;     // Per frame build budget
+
+  boolean TEXTURE_STREAMING = true;        // Uploads tile sets in the background, see TextureStreamer
+  int TEXTURE_WORKERS = 2;                 // Decoding and conversion threads
+  int TEXTURE_PBO_SLOTS = 4;               // Pixel unpack buffers in flight
+  int TEXTURE_PBO_BYTES = 256 << 10;       // Size of one slot, the largest band of rows uploaded at once
+  int TEXTURE_UPLOAD_BYTES = 512 << 10;    // Per frame upload budget
+  int TEXTURE_UPLOAD_MICROS = 1000;        // Per frame upload budget
+
+  boolean VERTEX_COMPACT = true;       // Smallest vertex and index encodings within VERTEX_MAX_ERROR, floats otherwise
+  float VERTEX_MAX_ERROR = 1f / 1024;  // In tiles
+  boolean VERTEX_BYTE_INDICES = false; // 8 bit indices under 256 vertices, some drivers convert them on the cpu
+  boolean VERTEX_CACHE_ORDER = true;   // Reorders triangles and vertices for the vertex caches when loading meshes
+}
+
+
+// Geometry data
+interface Data {
+
+  interface Room {
+    float[] vertices = {
+      // Ground points
+      -6f,      4f,       0f,       // v0: top left
+      6f,       4f,       0f,       // v1: top right
+      6f,       -4f,      0f,       // v2: bot right
+      -6f,      -4f,      0f,       // v3: bot left
+      // Top wall
+      -6f,      4f,       3f,
+      6f,       4f,       3f,
+      6f,       4f,       0f,
+      -6f,      4f,       0f,
+      // Right wall
+      6f,       4f,       3f,
+      6f,       -4f,      3f,
+      6f,       -4f,      0f,
+      6f,       4f,       0f,
+      // Bottom wall
+      6f,       -4f,       3f,
+      -6f,      -4f,       3f,
+      -6f,      -4f,       0f,
+      6f,       -4f,       0f,
+      // Left wall
+      -6f,      -4f,      3f,
+      -6f,      4f,       3f,
+      -6f,      4f,       0f,
+      -6f,      -4f,      0f,
+    };
+
+    int[] indices = {
+      // Ground
+      0, 3, 1,  // upper left triangle
+      1, 3, 2,  // lower right triangle
+      // Top wall
+      4, 7, 5,
+      5, 7, 6,
+      // Right wall
+      8, 11, 9,
+      9, 11, 10,
+      // Bottom wall
+      12, 15, 13,
+      13, 15, 14,
+      // Left wall
+      16, 19, 17,
+      17, 19, 18,
+    };
+
+    float[] uvs = { // same orders as vertices
+      // Ground
+      0.0f,    0.0f,
+      12.0f,   0.0f,
+      12.0f,   8.0f,
+      0.0f,    8.0f,
+      // Top wall
+      0.0f,    0.0f,
+      6.0f,   0.0f,
+      6.0f,   3.0f,
+      0.0f,    3.0f,
+      // Right wall
+      0.0f,    0.0f,
+      4.0f,    0.0f,
+      4.0f,    3.0f,
+      0.0f,    3.0f,
+      // Bottom wall
+      0.0f,    0.0f,
+      6.0f,   0.0f,
+      6.0f,   3.0f,
+      0.0f,    3.0f,
+      // Left wall
+      0.0f,    0.0f,
+      4.0f,    0.0f,
+      4.0f,    3.0f,
+      0.0f,    3.0f,
+    };
+  }
+
+  interface Box {
+    float[] vertices = {
+      // Box top
+      0f,       1f,      0.9f,
+      1f,       1f,      0.9f,
+      1f,       0f,      0.9f,
+      0f,       0f,      0.9f,
+      // Box up
+      0f,       1f,      0.9f,
+      1f,       1f,      0.9f,
+      1f,       1f,      0f,
+      0f,       1f,      0f,
+      // Box right
+      1f,       1f,      0.9f,
+      1f,       0f,      0.9f,
+      1f,       0f,      0f,
+      1f,       1f,      0f,
+      // Box bottom
+      1f,       0f,      0.9f,
+      0f,       0f,      0.9f,
+      0f,       0f,      0f,
+      1f,       0f,      0f,
+      // Box left
+      0f,       0f,      0.9f,
+      0f,       1f,      0.9f,
+      0f,       1f,      0f,
+      0f,       0f,      0f,
+    };
+
+    int[] indices = {
+      0, 3, 1,
+      1, 3, 2,
+      4, 7, 5,
+      5, 7, 6,
+      8, 11, 9,
+      9, 11, 10,
+      12, 15, 13,
+      13, 15, 14,
+      16, 19, 17,
+      17, 19, 18,
+    };
+
+    float[] uvs = {
+      // Box top
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box up
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box right
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box bottom
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box left
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+    };
+  }
+
+  interface Pyramid {
+    float[] vertices = {
+      // Box top
+      0.25f,       0.75f,      0.6f,
+      0.75f,       0.75f,      0.6f,
+      0.75f,       0.25f,      0.6f,
+      0.25f,       0.25f,      0.6f,
+      // Box up
+      0.25f,       0.75f,      0.6f,
+      0.75f,       0.75f,      0.6f,
+      1f,       1f,      0f,
+      0f,       1f,      0f,
+      // Box right
+      0.75f,       0.75f,      0.6f,
+      0.75f,       0.25f,      0.6f,
+      1f,       0f,      0f,
+      1f,       1f,      0f,
+      // Box bottom
+      0.75f,       0.25f,      0.6f,
+      0.25f,       0.25f,      0.6f,
+      0f,       0f,      0f,
+      1f,       0f,      0f,
+      // Box left
+      0.25f,       0.25f,      0.6f,
+      0.25f,       0.75f,      0.6f,
+      0f,       1f,      0f,
+      0f,       0f,      0f,
+    };
+
+    int[] indices = {
+      0, 3, 1,
+      1, 3, 2,
+      4, 7, 5,
+      5, 7, 6,
+      8, 11, 9,
+      9, 11, 10,
+      12, 15, 13,
+      13, 15, 14,
+      16, 19, 17,
+      17, 19, 18,
+    };
+
+    float[] uvs = {
+      // Box top
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box up
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box right
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box bottom
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+      // Box left
+      0.0f,   0.0f,
+      1.0f,   0.0f,
+      1.0f,   1.0f,
+      0.0f,   1.0f,
+    };
+  }
+}
+
+
+// Used to track Vertex Array Object data.
+final class Model {
+  int vaoId;
+  int vertexCount;
+}
+
+
+// Builds the shader programs. Sources are read and preprocessed on a worker thread from startup, see preload(): an
+// #include "file" line is replaced by that file of DIR, and the DEFINES are inserted after the #version line.
+// Programs are issued in batches, every compile and link back to back and their status queried only once all are
+// issued, see Shader.begin() / Shader.end(), so that drivers which compile on their own threads work in parallel.
+// Linked programs are saved to CACHE_DIR with glGetProgramBinary and loaded back with glProgramBinary on the next
+// start, keyed by a hash of their sources, bindings and driver. Drivers without binary formats, or rejecting a
+// binary after an update, fall back to compiling the sources.
+final class ShaderPipeline {
+  static final String DIR = "./src/shaders/";
+  static final String CACHE_DIR = Config.SHADER_CACHE_DIR;
+  static final String[] DEFINES = {
+    "TILE_VARIANTS", TileSet.VARIANTS + ".0",
+  };
+
+  static final Map<String, CompletableFuture<String>> sources = new ConcurrentHashMap<>();
+  static ExecutorService loader;
+  static final List<CompletableFuture<Void>> stores = new ArrayList<>();
+
+  // Binary support, queried on first use from the GL thread
+  static int supported = -1;
+  static String driver;
+
+  // Metrics
+  static final AtomicLong sourceNanos = new AtomicLong();
+  static long startNanos = System.nanoTime();
+  static long waitNanos;
+  static long issueNanos;
+  static long endNanos;
+  static long readyNanos;
+  static int programs;
+  static int hits;
+  static int misses;
+  static int rejected;
+  static int stored;
+
+  // Starts reading and preprocessing every vertex and fragment shader of DIR. Called first thing at startup, it
+  // overlaps the context creation. Harmless when called again.
+  static synchronized void preload() {
+    if (loader != null) {
+      return;
+    }
+    loader = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "shader-loader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(DIR), "*.{vs,fs}")) {
+      for (Path file : files) {
+        request(file.getFileName().toString());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static CompletableFuture<String> request(String file) {
+    preload();
+    return sources.computeIfAbsent(file, f -> CompletableFuture.supplyAsync(() -> {
+      long t = System.nanoTime();
+      String source = preprocess(f);
+      sourceNanos.addAndGet(System.nanoTime() - t);
+      return source;
+    }, loader));
+  }
+
+  // The preprocessed source of a file of DIR, waits for the loader when it is not ready yet.
+  static String source(String file) {
+    long t = System.nanoTime();
+    try {
+      return request(file).join();
+    } finally {
+      waitNanos += System.nanoTime() - t;
+    }
+  }
+
+  static String preprocess(String file) {
+    StringBuilder out = new StringBuilder();
+    include(file, out, new HashSet<>());
+    return out.toString();
+  }
+
+  static void include(String file, StringBuilder out, Set<String> open) {
+    if (!open.add(file)) {
+      throw new IllegalStateException("recursive #include of " + file);
+    }
+    for (String line : IOUtil.readFile(DIR + file).split("\n", -1)) {
+      String l = line.trim();
+      if (l.startsWith("#include")) {
+        int a = l.indexOf('"');
+        int b = l.lastIndexOf('"');
+        if (a < 0 || b <= a) {
+          throw new IllegalStateException(String.format("%s: bad include '%s'", file, l));
+        }
+        include(l.substring(a + 1, b), out, open);
+        continue;
+      }
+      out.append(line).append('\n');
+      if (l.startsWith("#version")) {
+        for (int d = 0; d < DEFINES.length; d += 2) {
+          out.append("#define ").append(DEFINES[d]).append(' ').append(DEFINES[d + 1]).append('\n');
+        }
+      }
+    }
+    open.remove(file);
+  }
+
+  // Program binaries need GL 4.1, or a driver listing at least one binary format.
+  static boolean binaries() {
+    if (supported < 0) {
+      String version = GLUtil.gl.glGetString(GL11.GL_VERSION);
+      driver = GLUtil.gl.glGetString(GL11.GL_VENDOR) + "|" + GLUtil.gl.glGetString(GL11.GL_RENDERER) + "|" + version;
+      boolean ok = Config.SHADER_CACHE && versionOf(version) >= 41
+          && GLUtil.gl.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+      supported = ok ? 1 : 0;
+    }
+    return supported == 1;
+  }
+
+  // "4.5.0 NVIDIA 550.54" is 45, 0 when unknown.
+  static int versionOf(String version) {
+    if (version == null || version.length() < 3 || version.charAt(1) != '.') {
+      return 0;
+    }
+    return 10 * Character.digit(version.charAt(0), 10) + Character.digit(version.charAt(2), 10);
+  }
+
+  // Hex sha-256 of everything the binary depends on.
+  static String key(String vertex, String fragment, String[] bindings) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      for (String part : new String[] {driver, vertex, fragment, String.join(",", bindings)}) {
+        sha.update(part.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : sha.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static Path cacheFile(String key) {
+    return Paths.get(CACHE_DIR, key + ".bin");
+  }
+
+  // The cached binary of a key as its format followed by its bytes, null when missing.
+  static ByteBuffer load(String key) {
+    Path file = cacheFile(key);
+    if (!Files.exists(file)) {
+      misses++;
+      return null;
+    }
+    try {
+      byte[] data = Files.readAllBytes(file);
+      if (data.length <= 4) {
+        misses++;
+        return null;
+      }
+      ByteBuffer b = BufferUtils.createByteBuffer(data.length).order(ByteOrder.LITTLE_ENDIAN);
+      b.put(data).flip();
+      hits++;
+      return b;
+    } catch (IOException e) {
+      misses++;
+      return null;
+    }
+  }
+
+  // Reads the binary of a linked program, the file is written on the loader thread.
+  static void store(String key, int program) {
+    int length = GLUtil.gl.glGetProgrami(program, GL41.GL_PROGRAM_BINARY_LENGTH);
+    if (length <= 0) {
+      return;
+    }
+    IntBuffer lengths = BufferUtils.createIntBuffer(1);
+    IntBuffer format = BufferUtils.createIntBuffer(1);
+    ByteBuffer binary = BufferUtils.createByteBuffer(length);
+    GLUtil.gl.glGetProgramBinary(program, lengths, format, binary);
+    byte[] data = new byte[4 + lengths.get(0)];
+    ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(format.get(0)).put(binary.limit(lengths.get(0)));
+    stored++;
+    stores.add(CompletableFuture.runAsync(() -> {
+      try {
+        Path target = cacheFile(key);
+        Files.createDirectories(target.getParent());
+        Path tmp = Paths.get(target + ".tmp");
+        Files.write(tmp, data);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        System.err.println("could not cache shader binary: " + e);
+      }
+    }, loader));
+  }
+
+  // A binary the driver would not link, most likely saved by another driver version: never tried again.
+  static void reject(String key) {
+    rejected++;
+    try {
+      Files.deleteIfExists(cacheFile(key));
+    } catch (IOException e) {
+      // the next start rejects it again
+    }
+  }
+
+  // Waits for the binaries being written.
+  static void shutdown() {
+    for (CompletableFuture<Void> store : stores) {
+      store.join();
+    }
+    stores.clear();
+    if (loader != null) {
+      loader.shutdown();
+    }
+  }
+
+  static String report() {
+    return String.format("shaders: %d programs ready %.1f ms after start, sources %.1f ms (waited %.1f ms), "
+        + "issue %.1f ms, status %.1f ms, binaries %s: %d hits, %d misses, %d rejected, %d stored",
+        programs, (readyNanos - startNanos) / 1e6, sourceNanos.get() / 1e6, waitNanos / 1e6,
+        issueNanos / 1e6, endNanos / 1e6, supported == 1 ? "on" : "off", hits, misses, rejected, stored);
+  }
+}
+
+
+final class Shader {
+  int programId;
+  int vertexId;
+  int fragmentId;
+  String[] bindings;
+  String vertexName;
+  String fragmentName;
+  String key; // binary cache key, null when binaries are off
+  boolean cached; // linked from a cached binary
+
+  static final String SKIP = "SKIP_BINDING";
+  static final FloatBuffer MATRIX_BUFFER = BufferUtils.createFloatBuffer(4 * 4); // !! not thread safe obviously !!
+
+  // Shader creation
+
+  static Shader make(String shadername, String... bindings) {
+    return makeWith(shadername, shadername, bindings);
+  }
+
+  // Pairs the vertex shader of one name with the fragment shader of another, i.e a variant of a program.
+  static Shader makeWith(String vertexName, String fragmentName, String... bindings) {
+    Shader s = begin(vertexName, fragmentName, bindings);
+    end(s);
+    return s;
+  }
+
+  // Issues the program without waiting for the driver: from its cached binary, or compiled and linked from its
+  // sources. Programs begun together are finished together with end().
+  static Shader begin(String vertexName, String fragmentName, String... bindings) {
+    long t = System.nanoTime();
+    Shader s = new Shader();
+    s.vertexName = vertexName;
+    s.fragmentName = fragmentName;
+    s.bindings = bindings;
+    String vertex = ShaderPipeline.source(vertexName + ".vs");
+    String fragment = ShaderPipeline.source(fragmentName + ".fs");
+    s.programId = GLUtil.gl.glCreateProgram();
+    ByteBuffer binary = null;
+    if (ShaderPipeline.binaries()) {
+      s.key = ShaderPipeline.key(vertex, fragment, bindings);
+      binary = ShaderPipeline.load(s.key);
+    }
+    if (binary != null) {
+      int format = binary.getInt();
+      GLUtil.gl.glProgramBinary(s.programId, format, binary);
+      s.cached = true;
+    } else {
+      compile(s, vertex, fragment);
+    }
+    ShaderPipeline.issueNanos += System.nanoTime() - t;
+    return s;
+  }
+
+  static void compile(Shader s, String vertex, String fragment) {
+    s.vertexId = issueShader(vertex, GL20.GL_VERTEX_SHADER);
+    s.fragmentId = issueShader(fragment, GL20.GL_FRAGMENT_SHADER);
+    GLUtil.gl.glAttachShader(s.programId, s.vertexId);
+    GLUtil.gl.glAttachShader(s.programId, s.fragmentId);
+    for (int i = 0; i < s.bindings.length; i++) {
+      if (s.bindings[i] == SKIP) {
+        continue;
+      }
+      if (K.debug) System.out.println(String.format("binding attr %d to '%s'", i, s.bindings[i]));
+      GLUtil.gl.glBindAttribLocation(s.programId, i, s.bindings[i]);
+    }
+    if (s.key != null) {
+      GLUtil.gl.glProgramParameteri(s.programId, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+    }
+    GLUtil.gl.glLinkProgram(s.programId);
+  }
+
+  static int issueShader(String source, int type) {
+    int id = GLUtil.gl.glCreateShader(type);
+    GLUtil.gl.glShaderSource(id, source);
+    GLUtil.gl.glCompileShader(id);
+    return id;
+  }
+
+  // Queries the status of programs issued with begin(), the first query waits for the driver. Compiles a program
+  // from its sources when the driver rejects its cached binary.
+  static void end(Shader... ss) {
+    long t = System.nanoTime();
+    for (Shader s : ss) {
+      if (s.cached && GLUtil.gl.glGetProgrami(s.programId, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+        ShaderPipeline.reject(s.key);
+        s.cached = false;
+        compile(s, ShaderPipeline.source(s.vertexName + ".vs"), ShaderPipeline.source(s.fragmentName + ".fs"));
+      }
+      if (!s.cached) {
+        checkShader(s.vertexId, s.vertexName + ".vs");
+        checkShader(s.fragmentId, s.fragmentName + ".fs");
+        if (GLUtil.gl.glGetProgrami(s.programId, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+          throw new RuntimeException(String.format("Could not link program %s/%s: %s",
+              s.vertexName, s.fragmentName, GLUtil.gl.glGetProgramInfoLog(s.programId, 500)));
+        }
+        if (s.key != null) {
+          ShaderPipeline.store(s.key, s.programId);
+        }
+      }
+      GLUtil.gl.glValidateProgram(s.programId);
+      shaders.add(s);
+      ShaderPipeline.programs++;
+    }
+    long now = System.nanoTime();
+    ShaderPipeline.endNanos += now - t;
+    ShaderPipeline.readyNanos = now;
+  }
+
+  static void checkShader(int id, String file) {
+    if (GLUtil.gl.glGetShaderi(id, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+      throw new RuntimeException(String.format("Could not compiler shader %s: %s", file, GLUtil.gl.glGetShaderInfoLog(id, 500)));
+    }
+  }
+
+  // Uniform variable loading
+
+  static int locationOf(Shader s, String varName) {
+    return GLUtil.gl.glGetUniformLocation(s.programId, varName);
+  }
+
+  // Uniform blocks: points the block of that name to a binding point, where UniformBlocks binds its buffers.
+  // Blocks the program does not use are ignored.
+  static void bindBlock(Shader s, String blockName, int binding) {
+    int block = GLUtil.gl.glGetUniformBlockIndex(s.programId, blockName);
+    if (block != GL31.GL_INVALID_INDEX) {
+      GLUtil.gl.glUniformBlockBinding(s.programId, block, binding);
+    }
+  }
+
+  static Shader withBlocks(Shader s) {
+    bindBlock(s, "Frame", K.block_frame);
+    bindBlock(s, "Draw", K.block_draw);
+    return s;
+  }
+
+  // Uploads go through GLState, which drops them when the current program already holds the same value.
+
+  static void load1f(int loc, float x) {
+    if (GLState.uniformChanged(loc, x, 0, 0)) {
+      GLUtil.gl.glUniform1f(loc, x);
+    }
+  }
+
+  static void load2f(int loc, float x, float y) {
+    if (GLState.uniformChanged(loc, x, y, 0)) {
+      GLUtil.gl.glUniform2f(loc, x, y);
+    }
+  }
+
+  static void load3f(int loc, float x, float y, float z) {
+    if (GLState.uniformChanged(loc, x, y, z)) {
+      GLUtil.gl.glUniform3f(loc, x, y, z);
+    }
+  }
+
+  static void loadVec3f(int loc, Vector3f v) {
+    load3f(loc, v.x, v.y, v.z);
+  }
+
+  static void loadMat4f(int loc, Matrix4f m) {
+    MATRIX_BUFFER.clear();
+    m.store(MATRIX_BUFFER);
+    MATRIX_BUFFER.flip();
+    if (GLState.uniformChanged(loc, MATRIX_BUFFER)) {
+      GLUtil.gl.glUniformMatrix4(loc, K.no_transpose, MATRIX_BUFFER);
+    }
+  }
+
+  // Shader management
+
+  // Attribute locations are bound once in make(): glBindAttribLocation only takes effect at link time.
+  static void use(Shader s) {
+    GLState.useProgram(s.programId);
+  }
+
+  static void stop() {
+    GLState.useProgram(K.gl_null);
+  }
+
+  // Statically load all shaders
+  static final List<Shader> shaders = new ArrayList<>();
+
+  static void freeAll() {
+    for (Shader s : shaders) {
+      if (s.vertexId != K.gl_null) { // none when linked from a binary
+        GLUtil.gl.glDetachShader(s.programId, s.vertexId);
+        GLUtil.gl.glDetachShader(s.programId, s.fragmentId);
+        GLUtil.gl.glDeleteShader(s.vertexId);
+        GLUtil.gl.glDeleteShader(s.fragmentId);
+      }
+      GLUtil.gl.glDeleteProgram(s.programId);
+    }
+  }
+
+  // Individual shaders are declared and loaded in their own static classes.
+  // This offers a place for managing the uniform variable locations without resorting to subclassing.
+  // Everything ends up being static and final, which is perfect for JIT inlining.
+  //static final class Example {
+  //  static final Shader s = Shader.make("Example", "attr1", "attr2");
+  //  static final int loc_var1 = Shader.locationOf(s, "var1");
+  //  static void loadVar1(float dx, float dy, float dz) {
+  //    Shader.load3f(loc_var1, dx, dy, dz);
+  //  }
+  //}
+}
+
+
+final class PixelUtil {
+  // Getters
+  static int a(int rgba) { return 0xff & (rgba >> 24); }
+  static int r(int rgba) { return 0xff & (rgba >> 16); }
+  static int g(int rgba) { return 0xff & (rgba >>  8); }
+  static int b(int rgba) { return 0xff & rgba; }
+
+  static int rgba(int r, int g, int b, int a) {
+    return (a << 24) | (r << 16) | (g << 8) | b;
+  }
+
+  // Tile operations, on square tiles of 'side' pixels stored row after row.
+
+  // Copies the tile at src[srcOffset] to dst[dstOffset], shifted left by dx pixels with wrap around.
+  static void roll(int[] src, int srcOffset, int side, int dx, int[] dst, int dstOffset) {
+    for (int y = 0; y < side; y++) {
+      for (int x = 0; x < side; x++) {
+        dst[dstOffset + y * side + x] = src[srcOffset + y * side + (x + dx) % side];
+      }
+    }
+  }
+
+  // Recolors a tile: luminance times the (r, g, b) tint, with 128 as the neutral tint.
+  static int[] tint(int[] tile, int r, int g, int b) {
+    int[] out = new int[tile.length];
+    for (int i = 0; i < tile.length; i++) {
+      int p = tile[i];
+      int l = (77 * r(p) + 150 * g(p) + 29 * b(p)) >> 8;
+      out[i] = rgba(Math.min(255, l * r / 128), Math.min(255, l * g / 128), Math.min(255, l * b / 128), a(p));
+    }
+    return out;
+  }
+
+  // Lays out 'layers' tiles stored one after the other as a grid of 'columns' tiles per row.
+  static int[] atlas(int[] tiles, int side, int layers, int columns) {
+    int rows = (layers + columns - 1) / columns;
+    int w = columns * side;
+    int[] out = new int[w * rows * side];
+    for (int l = 0; l < layers; l++) {
+      int x0 = (l % columns) * side;
+      int y0 = (l / columns) * side;
+      for (int y = 0; y < side; y++) {
+        System.arraycopy(tiles, (l * side + y) * side, out, (y0 + y) * w + x0, side);
+      }
+    }
+    return out;
+  }
+}
+
+
+final class Texture {
+
+  int tex; // GLObjects handle
+  int target = GL11.GL_TEXTURE_2D;
+  int w;
+  int h;
+  int layers = 1;
+
+  // Streamed textures only, see TextureStreamer
+  boolean resident = true;
+  boolean failed; // decoding threw: drawn with the placeholder for good
+  boolean mipmaps;
+  int pendingBands;
+
+  static Texture placeholder2D;
+  static Texture placeholderArray;
+
+  // Handle to draw with: a 1x1 placeholder of the same target until every texel is resident.
+  int handle() {
+    return resident ? tex : placeholder(target).tex;
+  }
+
+  static Texture placeholder(int target) {
+    int[] grey = { PixelUtil.rgba(0x80, 0x80, 0x80, 0xff) };
+    if (target == GL30.GL_TEXTURE_2D_ARRAY) {
+      if (placeholderArray == null) {
+        placeholderArray = createArray(1, 1, grey, false); // layer lookups clamp to its only layer
+      }
+      return placeholderArray;
+    }
+    if (placeholder2D == null) {
+      placeholder2D = create(1, 1, grey);
+    }
+    return placeholder2D;
+  }
+
+  static Texture create(int w, int h, int[] pixels) {
+    long mark = StagingArena.mark();
+    ByteBuffer buffer = pack(StagingArena.bytes(4 * w * h), w * h, pixels);
+
+    Texture t = new Texture();
+    t.tex = GLObjects.allocTexture();
+    t.w = w;
+    t.h = h;
+    GLObjects.textures.setBytes(t.tex, 4 * w * h);
+
+    GLUtil.textureBind(t.tex);
+    GLUtil.gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+    GLUtil.gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+    GLUtil.gl.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, w, h, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);
+    StagingArena.release(mark);
+
+    return t;
+  }
+
+  // Uploads a whole tile set at once: 'layers' square tiles of 'side' pixels, one after the other in pixels.
+  static Texture createArray(int side, int layers, int[] pixels, boolean mipmaps) {
+    int len = side * side * layers;
+    long mark = StagingArena.mark();
+    ByteBuffer buffer = pack(StagingArena.bytes(4 * len), len, pixels);
+
+    Texture t = new Texture();
+    t.tex = GLObjects.allocTexture();
+    t.target = GL30.GL_TEXTURE_2D_ARRAY;
+    t.w = side;
+    t.h = side;
+    t.layers = layers;
+    GLObjects.textures.setBytes(t.tex, mipmaps ? 4 * len * 4 / 3 : 4 * len);
+
+    GLUtil.textureBind(t.target, t.tex);
+    GLUtil.gl.glTexParameteri(t.target, GL11.GL_TEXTURE_MIN_FILTER, mipmaps ? GL11.GL_NEAREST_MIPMAP_LINEAR : GL11.GL_NEAREST);
+    GLUtil.gl.glTexParameteri(t.target, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+    GLUtil.gl.glTexImage3D(t.target, 0, GL11.GL_RGBA8, side, side, layers, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);
+    if (mipmaps) {
+      GLUtil.gl.glGenerateMipmap(t.target);
+    }
+    StagingArena.release(mark);
+
+    return t;
+  }
+
+  void free() {
+    GLObjects.freeTexture(tex);
+    tex = K.gl_null;
+  }
+
+  // Converts 'len' argb pixels to the RGBA byte order expected by glTexImage2D, into 'buffer'.
+  static ByteBuffer pack(ByteBuffer buffer, int len, int[] pixels) {
+    return pack(buffer, pixels, 0, len);
+  }
+
+  // Same for pixels[offset .. offset + len]. An argb int rotated left by 8 is rgba, which a big endian store lays
+  // out as the R, G, B, A bytes: one int store per pixel through an IntBuffer view instead of four byte puts.
+  static ByteBuffer pack(ByteBuffer buffer, int[] pixels, int offset, int len) {
+    ByteOrder order = buffer.order();
+    IntBuffer ints = buffer.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+    buffer.order(order);
+    for (int i = 0; i < len; i++) {
+      ints.put(i, Integer.rotateLeft(pixels[offset + i], 8));
+    }
+    buffer.limit(buffer.position() + 4 * len);
+    return buffer;
+  }
+
+  static int[] testPixels() {
+    int turquoise_light = PixelUtil.rgba(72, 216, 255, 0xff);
+    int turquoise_base = PixelUtil.rgba(48, 144, 192, 0xff);
+    int turquoise_dark = PixelUtil.rgba(0x20, 0x60, 0x80, 0xff);
+
+    int w = 16;
+    int h = 16;
+    int l = w * h;
+    int[] pixels = new int[l];
+
+    for (int i = 0; i < l; i++) {
+      pixels[i] = turquoise_base;
+    }
+    for (int i = 0; i < 16; i++) {
+      pixels[i * 16] = turquoise_light;
+      pixels[i] = turquoise_light;
+      pixels[15 * 16 + i] = turquoise_dark;
+      pixels[15 + 16 * i] = turquoise_dark;
+    }
+    pixels[0] = turquoise_base;
+    pixels[l-1] = turquoise_base;
+    pixels[15] = turquoise_base;
+    pixels[l-16] = turquoise_base;
+    return pixels;
+  }
+}
+
+
+// Tile materials. Every material takes VARIANTS consecutive layers: its tile, and the tile rolled by half its width
+// which the fragment shader alternates with floor(z), as the old uv.x + floor(z) * 0.5 shift did. The whole set is
+// uploaded at once as a GL_TEXTURE_2D_ARRAY, or as a 2D atlas when Config.TILE_ARRAYS is off. Either way meshes
+// with different materials share one texture and still batch together.
+final class TileSet {
+  static final int VARIANTS = 2;
+
+  // Materials of the demo set
+  static final int TURQUOISE = 0;
+  static final int SAND = 1;
+  static final int STONE = 2;
+
+  final int side;
+  int[] pixels;
+  int layers;
+
+  Texture texture;
+  int columns = 1; // atlas grid
+  int rows = 1;
+
+  TileSet(int side) {
+    this.side = side;
+    pixels = new int[4 * VARIANTS * side * side];
+  }
+
+  // Adds a material from one tile of side x side pixels, returns the material index.
+  int add(int[] tile) {
+    int n = side * side;
+    if ((layers + VARIANTS) * n > pixels.length) {
+      pixels = Arrays.copyOf(pixels, 2 * pixels.length);
+    }
+    System.arraycopy(tile, 0, pixels, layers * n, n);
+    PixelUtil.roll(tile, 0, side, side / 2, pixels, (layers + 1) * n);
+    layers += VARIANTS;
+    return layers / VARIANTS - 1;
+  }
+
+  // Materials added after the upload are not part of the texture.
+  TileSet upload() {
+    int[] tiles = pixels;
+    int n = layers;
+    if (Config.TILE_ARRAYS) {
+      texture = Config.TEXTURE_STREAMING
+          ? TextureStreamer.stream(GL30.GL_TEXTURE_2D_ARRAY, side, side, n, Config.TILE_MIPMAPS, () -> tiles)
+          : Texture.createArray(side, n, tiles, Config.TILE_MIPMAPS);
+    } else {
+      // No mipmaps: they would bleed across neighbouring tiles.
+      columns = (int) Math.ceil(Math.sqrt(layers));
+      rows = (layers + columns - 1) / columns;
+      int c = columns;
+      texture = Config.TEXTURE_STREAMING
+          ? TextureStreamer.stream(GL11.GL_TEXTURE_2D, c * side, rows * side, 1, false, () -> PixelUtil.atlas(tiles, side, n, c))
+          : Texture.create(c * side, rows * side, PixelUtil.atlas(tiles, side, n, c));
+    }
+    return this;
+  }
+
+  // Value of the layer vertex attribute. Only the parity of 'variant' matters: the shader adds floor(z) to it,
+  // which lets baked meshes keep the variant of the local z of their objects.
+  static float layer(int material, int variant) {
+    return material * VARIANTS + (variant & 1);
+  }
+
+  static TileSet demo() {
+    TileSet t = new TileSet(16);
+    int[] tile = Texture.testPixels();
+    t.add(tile);
+    t.add(PixelUtil.tint(tile, 255, 200, 120));
+    t.add(PixelUtil.tint(tile, 150, 150, 160));
+    return t.upload();
+  }
+
+  static final TileSet tiles = demo();
+}
+
+
+// Background texture uploads. A streamed texture is drawn with a placeholder until it is resident:
+//  1. a worker runs the decoder of the texture, i.e whatever produces its argb pixels,
+//  2. the texture is cut into bands of rows which fit a slot of a ring of pixel unpack buffers. The GL thread maps
+//     free slots and workers convert bands straight into the mapped memory,
+//  3. update() unmaps converted slots and copies them to the texture with glTexSubImage, within the per-frame
+//     budgets Config.TEXTURE_UPLOAD_BYTES and Config.TEXTURE_UPLOAD_MICROS. At least one band goes per frame.
+// Workers never touch GL: stream() and update() must be called from the GL thread.
+final class TextureStreamer {
+
+  static final class Band {
+    Texture texture;
+    int[] pixels;
+    int layer;
+    int y;
+    int rows;
+    int slot;
+    ByteBuffer mapped;
+    boolean failed; // packing threw, see retire()
+  }
+
+  static ExecutorService workers;
+  static int[] slots; // vbo handles
+  static boolean[] busy;
+
+  static final ArrayDeque<Band> waiting = new ArrayDeque<>(); // decoded, waiting for a slot
+  static final ConcurrentLinkedQueue<Band> decoded = new ConcurrentLinkedQueue<>();
+  static final ConcurrentLinkedQueue<Band> converted = new ConcurrentLinkedQueue<>();
+  static final ConcurrentLinkedQueue<Texture> failures = new ConcurrentLinkedQueue<>(); // decoder threw
+
+  static int pending; // textures not resident yet
+  static long streamed;
+  static long failed;
+  static long bands;
+  static long bytes;
+  static long worstFrameNanos;
+
+  // Allocates the storage of a w x h texture with 'layers' layers, 1 for GL_TEXTURE_2D, and queues its pixels.
+  static Texture stream(int target, int w, int h, int layers, boolean mipmaps, Supplier<int[]> decoder) {
+    int rowsPerBand = Config.TEXTURE_PBO_BYTES / (4 * w);
+    if (rowsPerBand == 0) {
+      throw new IllegalArgumentException(String.format("%d pixels rows do not fit a %d bytes pbo", w, Config.TEXTURE_PBO_BYTES));
+    }
+    init();
+    Texture.placeholder(target);
+
+    Texture t = new Texture();
+    t.tex = GLObjects.allocTexture();
+    t.target = target;
+    t.w = w;
+    t.h = h;
+    t.layers = layers;
+    t.mipmaps = mipmaps;
+    t.resident = false;
+    t.pendingBands = layers * ((h + rowsPerBand - 1) / rowsPerBand);
+    GLObjects.textures.setBytes(t.tex, mipmaps ? 4 * w * h * layers * 4 / 3 : 4 * w * h * layers);
+
+    GLUtil.textureBind(target, t.tex);
+    GLUtil.gl.glTexParameteri(target, GL11.GL_TEXTURE_MIN_FILTER, mipmaps ? GL11.GL_NEAREST_MIPMAP_LINEAR : GL11.GL_NEAREST);
+    GLUtil.gl.glTexParameteri(target, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+    if (target == GL11.GL_TEXTURE_2D) {
+      GLUtil.gl.glTexImage2D(target, 0, GL11.GL_RGBA8, w, h, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+    } else {
+      GLUtil.gl.glTexImage3D(target, 0, GL11.GL_RGBA8, w, h, layers, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+    }
+    pending++;
+
+    workers.execute(() -> {
+      int[] pixels;
+      try {
+        pixels = decoder.get();
+      } catch (Throwable e) {
+        // Retired in any case, or pending never drops to zero; an error goes on to the executor after that.
+        System.err.println("texture decoding failed: " + e);
+        failures.add(t);
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+        return;
+      }
+      for (int l = 0; l < layers; l++) {
+        for (int y = 0; y < h; y += rowsPerBand) {
+          Band b = new Band();
+          b.texture = t;
+          b.pixels = pixels;
+          b.layer = l;
+          b.y = y;
+          b.rows = Math.min(rowsPerBand, h - y);
+          decoded.add(b);
+        }
+      }
+    });
+    return t;
+  }
+
+  static void init() {
+    if (workers != null) {
+      return;
+    }
+    workers = Executors.newFixedThreadPool(Config.TEXTURE_WORKERS, r -> {
+      Thread thread = new Thread(r, "texture-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    slots = new int[Config.TEXTURE_PBO_SLOTS];
+    busy = new boolean[slots.length];
+    for (int s = 0; s < slots.length; s++) {
+      slots[s] = GLObjects.allocVbo();
+      GLUtil.pixelUnpackBufferBind(slots[s]);
+      GLUtil.gl.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, Config.TEXTURE_PBO_BYTES, GL15.GL_STREAM_DRAW);
+      GLObjects.vbos.setBytes(slots[s], Config.TEXTURE_PBO_BYTES);
+    }
+    GLUtil.pixelUnpackBufferUnbind();
+  }
+
+  // Once per frame.
+  static void update() {
+    if (pending == 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    for (Texture t = failures.poll(); t != null; t = failures.poll()) {
+      t.failed = true;
+      pending--;
+      failed++;
+    }
+    for (Band b = decoded.poll(); b != null; b = decoded.poll()) {
+      waiting.add(b);
+    }
+    for (int s = 0; s < slots.length && !waiting.isEmpty(); s++) {
+      if (!busy[s]) {
+        Band b = waiting.poll();
+        map(s, b);
+        workers.execute(() -> {
+          try {
+            Texture.pack(b.mapped, b.pixels, (b.layer * b.texture.h + b.y) * b.texture.w, b.rows * b.texture.w);
+          } catch (Throwable e) {
+            System.err.println("texture packing failed: " + e);
+            b.failed = true;
+            converted.add(b);
+            if (e instanceof Error) {
+              throw (Error) e;
+            }
+            return;
+          }
+          converted.add(b);
+        });
+      }
+    }
+    long frameBytes = 0;
+    for (Band b = converted.peek(); b != null; b = converted.peek()) {
+      long n = 4L * b.rows * b.texture.w;
+      if (frameBytes > 0 && (frameBytes + n > Config.TEXTURE_UPLOAD_BYTES
+          || System.nanoTime() - start > 1000L * Config.TEXTURE_UPLOAD_MICROS)) {
+        break;
+      }
+      converted.poll();
+      if (b.failed) {
+        retire(b);
+        continue;
+      }
+      upload(b);
+      frameBytes += n;
+    }
+    worstFrameNanos = Math.max(worstFrameNanos, System.nanoTime() - start);
+  }
+
+  // Orphans the previous content of the slot, so that mapping never waits on an upload still reading from it.
+  static void map(int s, Band b) {
+    busy[s] = true;
+    b.slot = s;
+    GLUtil.pixelUnpackBufferBind(slots[s]);
+    b.mapped = GLUtil.gl.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, 4L * b.rows * b.texture.w,
+        GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT);
+    GLUtil.pixelUnpackBufferUnbind();
+  }
+
+  static void upload(Band b) {
+    Texture t = b.texture;
+    GLUtil.pixelUnpackBufferBind(slots[b.slot]);
+    GLUtil.gl.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+    GLUtil.textureBind(t.target, t.tex);
+    if (t.target == GL11.GL_TEXTURE_2D) {
+      GLUtil.gl.glTexSubImage2D(t.target, 0, 0, b.y, t.w, b.rows, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, 0);
+    } else {
+      GLUtil.gl.glTexSubImage3D(t.target, 0, 0, b.y, b.layer, t.w, b.rows, 1, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, 0);
+    }
+    GLUtil.pixelUnpackBufferUnbind();
+    busy[b.slot] = false;
+    b.mapped = null;
+    bands++;
+    bytes += 4L * b.rows * t.w;
+
+    if (--t.pendingBands == 0 && !t.failed) {
+      if (t.mipmaps) {
+        GLUtil.gl.glGenerateMipmap(t.target);
+      }
+      t.resident = true;
+      pending--;
+      streamed++;
+    }
+  }
+
+  // Frees the slot of a band that failed to pack and fails its texture. Its other bands still upload, harmlessly.
+  static void retire(Band b) {
+    GLUtil.pixelUnpackBufferBind(slots[b.slot]);
+    GLUtil.gl.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+    GLUtil.pixelUnpackBufferUnbind();
+    busy[b.slot] = false;
+    b.mapped = null;
+    Texture t = b.texture;
+    t.pendingBands--;
+    if (!t.failed) {
+      t.failed = true;
+      pending--;
+      failed++;
+    }
+  }
+
+  static void shutdown() {
+    if (workers == null) {
+      return;
+    }
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static String report() {
+    return String.format("textures: %d streamed, %d pending, %d failed, %d bytes in %d bands, worst frame %.3f ms",
+        streamed, pending, failed, bytes, bands, worstFrameNanos / 1e6);
+  }
+}
+
+
+// One room of a streamed world, stored in its own file. Files hold the objects of the room:
+//   int magic, int count, then count x { byte mesh, byte material, short x, short y, short z }
+// in little endian, mesh being an index of Room.meshes.
+final class Chunk {
+  static final int MAGIC = 0x4b4e4843; // "CHNK"
+  static final int OBJECT_BYTES = 8;
+
+  final int cx;
+  final int cy;
+  byte[] mesh;
+  byte[] material;
+  short[] x;
+  short[] y;
+  short[] z;
+  Room room; // null until built, or for a hole in the world
+  boolean failed; // the read threw: a hole until evicted and read again
+
+  Chunk(int cx, int cy) {
+    this.cx = cx;
+    this.cy = cy;
+  }
+
+  static long key(int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xffffffffL);
+  }
+
+  static Path path(String dir, int cx, int cy) {
+    return Paths.get(dir, String.format("chunk_%d_%d.bin", cx, cy));
+  }
+
+  static void write(String dir, int cx, int cy, Room room) {
+    ObjectStore objects = room.objects;
+    int n = objects.size;
+    ByteBuffer b = ByteBuffer.allocate(8 + n * OBJECT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(MAGIC).putInt(n);
+    for (int i = 0; i < n; i++) {
+      int m = Arrays.asList(Room.meshes).indexOf(objects.mesh(i));
+      if (m < 0) {
+        throw new IllegalArgumentException("only Room.meshes can be stored in chunks");
+      }
+      b.put((byte) m).put((byte) objects.material(i));
+      b.putShort((short) objects.x(i)).putShort((short) objects.y(i)).putShort((short) objects.z(i));
+    }
+    try {
+      Files.write(path(dir, cx, cy), b.array());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Worker side: file to arrays, no GL. A missing file is an empty spot of the world.
+  static Chunk read(String dir, int cx, int cy) {
+    Chunk c = new Chunk(cx, cy);
+    Path p = path(dir, cx, cy);
+    if (!Files.exists(p)) {
+      return c;
+    }
+    ByteBuffer b;
+    try {
+      b = ByteBuffer.wrap(Files.readAllBytes(p)).order(ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (b.getInt() != MAGIC) {
+      throw new IllegalStateException("not a chunk file: " + p);
+    }
+    int n = b.getInt();
+    c.mesh = new byte[n];
+    c.material = new byte[n];
+    c.x = new short[n];
+    c.y = new short[n];
+    c.z = new short[n];
+    for (int i = 0; i < n; i++) {
+      c.mesh[i] = b.get();
+      c.material[i] = b.get();
+      c.x[i] = b.getShort();
+      c.y[i] = b.getShort();
+      c.z[i] = b.getShort();
+    }
+    return c;
+  }
+
+  // GL thread side: creates the room and its GL objects.
+  void build() {
+    if (mesh == null) {
+      return;
+    }
+    room = new Room(cx * Config.CHUNK_W, cy * Config.CHUNK_H, 0);
+    for (int i = 0; i < mesh.length; i++) {
+      room.addObj(Room.meshes[mesh[i]], x[i], y[i], z[i], material[i]);
+    }
+    room.bounds();
+    if (room.instanced) {
+      room.rebuildBatches();
+    }
+    mesh = null;
+    material = null;
+    x = y = z = null;
+  }
+
+  // make world: writes a generated world to Config.WORLD_DIR, or the directory given as first argument.
+  public static void main(String[] args) {
+    Headless.install(); // rooms load their meshes, no display needed
+    generate(args.length > 0 ? args[0] : Config.WORLD_DIR, 64, 64, 1);
+  }
+
+  // A w x h world of random rooms centered on chunk (0, 0), for testing and demos.
+  static void generate(String dir, int w, int h, long seed) {
+    try {
+      Files.createDirectories(Paths.get(dir));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Random rand = new Random(seed);
+    for (int cy = -h / 2; cy < h - h / 2; cy++) {
+      for (int cx = -w / 2; cx < w - w / 2; cx++) {
+        Room r = new Room(0, 0, 0);
+        int n = 4 + rand.nextInt(12);
+        for (int i = 0; i < n; i++) {
+          r.addObj(Room.meshes[rand.nextInt(Room.meshes.length)], -6 + rand.nextInt(12), -4 + rand.nextInt(8), 0,
+              rand.nextInt(3));
+        }
+        write(dir, cx, cy, r);
+      }
+    }
+  }
+}
+
+
+// Streams the chunks of a world around the camera:
+//  1. update() requests the chunks within Config.CHUNK_RADIUS of the chunk under the camera, workers read them,
+//  2. read chunks are built on the GL thread within the per-frame budget Config.CHUNK_UPLOAD_MICROS, at least one
+//     per frame,
+//  3. once more than Config.CHUNK_BUDGET chunks are resident, the least recently in range ones are freed.
+// Workers never touch GL: update() must be called from the GL thread.
+final class ChunkStreamer {
+  static String dir;
+  static ExecutorService workers;
+
+  static final LinkedHashMap<Long, Chunk> resident = new LinkedHashMap<>(64, 0.75f, true); // LRU order
+  static final Set<Long> requested = new HashSet<>();
+  static final ConcurrentLinkedQueue<Chunk> read = new ConcurrentLinkedQueue<>();
+
+  // Rooms in range this frame, for rendering.
+  static Room[] rooms = new Room[0];
+  static int count;
+
+  static long loaded;
+  static long evicted;
+  static long dropped;
+  static long failed;
+  static int peakResident;
+  static long worstFrameNanos;
+
+  static void open(String worldDir) {
+    dir = worldDir;
+    workers = Executors.newFixedThreadPool(Config.CHUNK_WORKERS, r -> {
+      Thread thread = new Thread(r, "chunk-loader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  static boolean inRange(int cx, int cy, int ccx, int ccy) {
+    return Math.abs(cx - ccx) <= Config.CHUNK_RADIUS && Math.abs(cy - ccy) <= Config.CHUNK_RADIUS;
+  }
+
+  // Once per frame, with the camera translation. Rooms are placed after projection so the chunk under the camera
+  // is the one whose offset the camera cancels.
+  static void update(float x, float y, float z) {
+    long start = System.nanoTime();
+    int ccx = Math.round(-x / Config.CHUNK_W);
+    int ccy = Math.round(-y / Config.CHUNK_H);
+
+    int side = 2 * Config.CHUNK_RADIUS + 1;
+    if (rooms.length < side * side) {
+      rooms = new Room[side * side];
+    }
+    count = 0;
+    for (int cy = ccy - Config.CHUNK_RADIUS; cy <= ccy + Config.CHUNK_RADIUS; cy++) {
+      for (int cx = ccx - Config.CHUNK_RADIUS; cx <= ccx + Config.CHUNK_RADIUS; cx++) {
+        long key = Chunk.key(cx, cy);
+        Chunk c = resident.get(key); // touches the lru order
+        if (c != null) {
+          if (c.room != null) {
+            rooms[count++] = c.room;
+          }
+        } else if (requested.add(key)) {
+          int rx = cx, ry = cy;
+          workers.execute(() -> {
+            Chunk chunk;
+            try {
+              chunk = Chunk.read(dir, rx, ry);
+            } catch (Throwable e) {
+              // Posted as a hole, or the key would stay requested and the chunk never be read again.
+              System.err.println("chunk reading failed: " + e);
+              chunk = new Chunk(rx, ry);
+              chunk.failed = true;
+              read.add(chunk);
+              if (e instanceof Error) {
+                throw (Error) e;
+              }
+              return;
+            }
+            read.add(chunk);
+          });
+        }
+      }
+    }
+
+    int built = 0; // this frame, the first one ignores the budget
+    for (Chunk c = read.peek(); c != null; c = read.peek()) {
+      if (built > 0 && System.nanoTime() - start > 1000L * Config.CHUNK_UPLOAD_MICROS) {
+        break;
+      }
+      read.poll();
+      requested.remove(Chunk.key(c.cx, c.cy));
+      if (c.failed) {
+        failed++;
+      }
+      if (!inRange(c.cx, c.cy, ccx, ccy)) {
+        dropped++; // the camera moved on while it was read
+        continue;
+      }
+      c.build();
+      resident.put(Chunk.key(c.cx, c.cy), c);
+      if (c.room != null) {
+        rooms[count++] = c.room;
+      }
+      built++;
+      loaded++;
+    }
+
+    Iterator<Chunk> lru = resident.values().iterator();
+    while (resident.size() > Config.CHUNK_BUDGET && lru.hasNext()) {
+      Chunk c = lru.next();
+      if (inRange(c.cx, c.cy, ccx, ccy)) {
+        break; // everything after is in range too
+      }
+      lru.remove();
+      if (c.room != null) {
+        c.room.free();
+      }
+      evicted++;
+    }
+    peakResident = Math.max(peakResident, resident.size());
+    worstFrameNanos = Math.max(worstFrameNanos, System.nanoTime() - start);
+  }
+
+  static void shutdown() {
+    if (workers == null) {
+      return;
+    }
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Chunk c : resident.values()) {
+      if (c.room != null) {
+        c.room.free();
+      }
+    }
+    resident.clear();
+  }
+
+  static String report() {
+    return String.format("chunks: %d loaded, %d evicted, %d dropped, %d failed, %d resident (peak %d), "
+        + "worst frame %.3f ms", loaded, evicted, dropped, failed, resident.size(), peakResident, worstFrameNanos / 1e6);
+  }
+}
+
+// Binary meshes and room placements, memory mapped at load time. Vertex and index streams are stored encoded
+// and ordered as Mesh.update() would upload them, so that the loader hands slices of the mapping straight to
+// glBufferData. Little endian, like the gpus this runs on:
+//   header      int magic, int version, int meshes, int rooms, int placements, int portals, 2 x int 0
+//   mesh table  meshes x { byte[16] name, int vertices, int indices, int index type, byte[4] encodings,
+//                          float[6] bounds, int vertex offset, int index offset }
+//   room table  rooms x { float x, y, z, int first placement, int placements, int flags, int first portal,
+//                         int portals }, flags: ROOM_BAKED
+//   placements  placements x { short mesh, short material, short x, y, z, short 0 }
+//   portals     portals x { int target room, float[6] box }, the box in room space as Room.addPortal() stores it
+//   streams     vertex and index data at the offsets of the mesh table, 16 bytes aligned
+// Every room implicitly has the "room" shell mesh. 'make assets' converts the Data arrays and the demo rooms.
+final class AssetFile {
+  static final int MAGIC = 0x54455341; // "ASET"
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 32;
+  static final int NAME_BYTES = 16;
+  static final int MESH_BYTES = 64;
+  static final int ROOM_BYTES = 32;
+  static final int PLACEMENT_BYTES = 12;
+  static final int PORTAL_BYTES = 4 + 4 * Frustum.BOX;
+
+  static final int ROOM_BAKED = 1; // drawn as one mesh, see Room.bake()
+
+  // The file of Config.ASSET_FILE, null when missing.
+  static final AssetFile level = Config.ASSETS && Files.exists(Paths.get(Config.ASSET_FILE)) ? map(Config.ASSET_FILE) : null;
+
+  final ByteBuffer data;
+  final int meshCount;
+  final int roomCount;
+  final int placementCount;
+  final int portalCount;
+  final Mesh[] meshes;
+
+  AssetFile(ByteBuffer data) {
+    this.data = data;
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IllegalStateException("not a version " + VERSION + " asset file");
+    }
+    meshCount = data.getInt(8);
+    roomCount = data.getInt(12);
+    placementCount = data.getInt(16);
+    portalCount = data.getInt(20);
+    meshes = new Mesh[meshCount];
+  }
+
+  static AssetFile map(String path) {
+    if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+      throw new IllegalStateException("asset files are little endian");
+    }
+    // The mapping stays valid once the channel is closed.
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      return new AssetFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // The mesh of that name in the level file, or the given arrays when there is none.
+  static Mesh mesh(String name, float[] positions, int[] indices, float[] uvs) {
+    int m = level != null ? level.indexOf(name) : -1;
+    return m >= 0 ? level.mesh(m) : Mesh.load(positions, indices, uvs);
+  }
+
+  int indexOf(String name) {
+    for (int m = 0; m < meshCount; m++) {
+      if (name.equals(nameOf(m))) {
+        return m;
+      }
+    }
+    return -1;
+  }
+
+  String nameOf(int m) {
+    int p = HEADER_BYTES + m * MESH_BYTES;
+    int n = 0;
+    while (n < NAME_BYTES && data.get(p + n) != 0) {
+      n++;
+    }
+    byte[] name = new byte[n];
+    data.get(p, name);
+    return new String(name, StandardCharsets.US_ASCII);
+  }
+
+  Mesh mesh(int m) {
+    if (meshes[m] != null) {
+      return meshes[m];
+    }
+    int p = HEADER_BYTES + m * MESH_BYTES + NAME_BYTES;
+    int vertices = data.getInt(p);
+    int indices = data.getInt(p + 4);
+    int indexType = data.getInt(p + 8);
+    VertexFormat format = new VertexFormat(data.get(p + 12), data.get(p + 13), data.get(p + 14));
+    float[] bounds = new float[Frustum.BOX];
+    for (int c = 0; c < Frustum.BOX; c++) {
+      bounds[c] = data.getFloat(p + 16 + 4 * c);
+    }
+    int vertexOffset = data.getInt(p + 40);
+    int indexOffset = data.getInt(p + 44);
+    ByteBuffer vertexData = data.slice(vertexOffset, vertices * format.stride).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer indexData = data.slice(indexOffset, indices * VertexFormat.indexBytes(indexType)).order(ByteOrder.LITTLE_ENDIAN);
+    return meshes[m] = Mesh.load(format, indexType, vertexData, indexData, bounds);
+  }
+
+  Room[] rooms() {
+    Room[] rooms = new Room[roomCount];
+    int roomTable = HEADER_BYTES + meshCount * MESH_BYTES;
+    int placements = roomTable + roomCount * ROOM_BYTES;
+    int portals = placements + placementCount * PLACEMENT_BYTES;
+    for (int r = 0; r < roomCount; r++) {
+      int p = roomTable + r * ROOM_BYTES;
+      rooms[r] = new Room(data.getFloat(p), data.getFloat(p + 4), data.getFloat(p + 8));
+      int first = data.getInt(p + 12);
+      int n = data.getInt(p + 16);
+      for (int i = first; i < first + n; i++) {
+        int q = placements + i * PLACEMENT_BYTES;
+        rooms[r].addObj(mesh(data.getShort(q)), data.getShort(q + 4), data.getShort(q + 6), data.getShort(q + 8),
+            data.getShort(q + 2));
+      }
+    }
+    // Portals point at any room, so they come once every room exists
+    for (int r = 0; r < roomCount; r++) {
+      int p = roomTable + r * ROOM_BYTES;
+      int first = data.getInt(p + 24);
+      int n = data.getInt(p + 28);
+      for (int i = first; i < first + n; i++) {
+        int q = portals + i * PORTAL_BYTES;
+        float[] box = new float[Frustum.BOX];
+        for (int c = 0; c < Frustum.BOX; c++) {
+          box[c] = data.getFloat(q + 4 + 4 * c);
+        }
+        rooms[r].portals.add(new Portal(rooms[data.getInt(q)], box));
+      }
+      if ((data.getInt(p + 20) & ROOM_BAKED) != 0) {
+        rooms[r].bake();
+      }
+    }
+    return rooms;
+  }
+
+  static int align(int offset) {
+    return (offset + 15) & ~15;
+  }
+
+  // Writes names[i] -> meshes[i] and the rooms, whose objects must all be in meshes. Goes through a temporary
+  // file so that a mapping of the previous file stays valid.
+  static void write(String path, String[] names, Mesh[] meshes, Room[] rooms) {
+    List<Mesh> table = Arrays.asList(meshes);
+    List<Room> roomList = Arrays.asList(rooms);
+    int placementCount = 0;
+    int portalCount = 0;
+    for (Room r : rooms) {
+      placementCount += r.objects.size;
+      portalCount += r.portals.size();
+    }
+    int size = HEADER_BYTES + meshes.length * MESH_BYTES + rooms.length * ROOM_BYTES + placementCount * PLACEMENT_BYTES
+        + portalCount * PORTAL_BYTES;
+    int[] vertexOffsets = new int[meshes.length];
+    int[] indexOffsets = new int[meshes.length];
+    for (int m = 0; m < meshes.length; m++) {
+      meshes[m].decode();
+      vertexOffsets[m] = size = align(size);
+      size += meshes[m].positions.length / K.float_per_vertex * meshes[m].format.stride;
+      indexOffsets[m] = size = align(size);
+      size += meshes[m].indices.length * VertexFormat.indexBytes(meshes[m].indexType);
+    }
+
+    ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(MAGIC).putInt(VERSION).putInt(meshes.length).putInt(rooms.length).putInt(placementCount).putInt(portalCount);
+    b.position(HEADER_BYTES);
+    for (int m = 0; m < meshes.length; m++) {
+      Mesh mesh = meshes[m];
+      byte[] name = names[m].getBytes(StandardCharsets.US_ASCII);
+      if (name.length > NAME_BYTES) {
+        throw new IllegalArgumentException("mesh name longer than " + NAME_BYTES + " bytes: " + names[m]);
+      }
+      b.put(name).position(b.position() + NAME_BYTES - name.length);
+      int vertices = mesh.positions.length / K.float_per_vertex;
+      b.putInt(vertices).putInt(mesh.indices.length).putInt(mesh.indexType);
+      b.put((byte) mesh.format.encodings[0]).put((byte) mesh.format.encodings[1]).put((byte) mesh.format.encodings[2]).put((byte) 0);
+      for (float f : mesh.bounds) {
+        b.putFloat(f);
+      }
+      b.putInt(vertexOffsets[m]).putInt(indexOffsets[m]);
+
+      ByteBuffer vertexData = b.slice(vertexOffsets[m], vertices * mesh.format.stride).order(ByteOrder.LITTLE_ENDIAN);
+      mesh.format.put(vertexData, 0, mesh.positions, vertices);
+      mesh.format.put(vertexData, 1, mesh.uvs, vertices);
+      mesh.format.put(vertexData, 2, mesh.layers, vertices);
+      ByteBuffer indexData = b.slice(indexOffsets[m], mesh.indices.length * VertexFormat.indexBytes(mesh.indexType));
+      VertexFormat.putIndices(indexData.order(ByteOrder.LITTLE_ENDIAN), mesh.indices, mesh.indexType);
+    }
+    int first = 0;
+    int firstPortal = 0;
+    for (Room r : rooms) {
+      b.putFloat(r.x).putFloat(r.y).putFloat(r.z).putInt(first).putInt(r.objects.size);
+      b.putInt(r.baked != null ? ROOM_BAKED : 0).putInt(firstPortal).putInt(r.portals.size());
+      first += r.objects.size;
+      firstPortal += r.portals.size();
+    }
+    for (Room r : rooms) {
+      ObjectStore objects = r.objects;
+      for (int i = 0; i < objects.size; i++) {
+        int m = table.indexOf(objects.mesh(i));
+        if (m < 0) {
+          throw new IllegalArgumentException("room object mesh missing from the mesh table");
+        }
+        b.putShort((short) m).putShort((short) objects.material(i));
+        b.putShort((short) objects.x(i)).putShort((short) objects.y(i)).putShort((short) objects.z(i));
+        b.putShort((short) 0);
+      }
+    }
+    for (Room r : rooms) {
+      for (Portal portal : r.portals) {
+        int to = roomList.indexOf(portal.to);
+        if (to < 0) {
+          throw new IllegalArgumentException("portal to a room missing from the room table");
+        }
+        b.putInt(to);
+        for (float f : portal.box) {
+          b.putFloat(f);
+        }
+      }
+    }
+
+    try {
+      Path target = Paths.get(path);
+      Path tmp = Paths.get(path + ".tmp");
+      Files.write(tmp, b.array());
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // make assets: the offline converter, writes the Data meshes and the demo rooms to Config.ASSET_FILE or the
+  // path given as first argument.
+  public static void main(String[] args) {
+    Headless.install(); // meshes are loaded through GL, no display needed
+    String path = args.length > 0 ? args[0] : Config.ASSET_FILE;
+    write(path, new String[] { "room", "box", "pyr" }, new Mesh[] { Room.room, Room.box, Room.pyr }, Game.demoRooms());
+    AssetFile f = map(path);
+    System.out.println(String.format("%s: %d meshes, %d rooms, %d placements, %d portals, %d bytes",
+        path, f.meshCount, f.roomCount, f.placementCount, f.portalCount, f.data.capacity()));
+  }
+}
+
+final class VecUtil {
+
+  static void translationMatrix(Matrix4f out, Vector3f trans, float scale) {
+    out.setIdentity();
+    Matrix4f.translate(trans, out, out);
+    Matrix4f.scale(new Vector3f(scale, scale, scale), out, out);
+  }
+
+  static void transformationMatrix(Matrix4f out, Vector3f trans, float rx, float ry, float rz, float scale) {
+    out.setIdentity();
+    Matrix4f.translate(trans, out, out);
+    Matrix4f.rotate((float) Math.toRadians(rx), new Vector3f(1, 0, 0), out, out);
+    Matrix4f.rotate((float) Math.toRadians(ry), new Vector3f(0, 1, 0), out, out);
+    Matrix4f.rotate((float) Math.toRadians(rz), new Vector3f(0, 0, 1), out, out);
+    Matrix4f.scale(new Vector3f(scale, scale, scale), out, out);
+  }
+
+  static Matrix4f projectionMatrix(float fov, float near, float far) {
+    float a = Config.ASPECT_RATIO;
+    float len = far - near;
+    float scale = (float) (1.0f / Math.tan(Math.toRadians(fov / 2)));
+
+    Matrix4f proj = new Matrix4f();
+    proj.m00 = scale / a;
+    proj.m11 = scale;
+    proj.m22 = - (near + far) / len;
+    proj.m33 = 0;
+    proj.m23 = -1;
+    proj.m32 = - 2 * near * far / len;
+    if (K.debug) System.out.println(proj);
+    return proj;
+  }
+}
+
+final class Mesh {
+  static final int ATTR_POS = K.attr0;
+  static final int ATTR_UVS = K.attr1;
+  static final int ATTR_OFS = K.attr2;
+  static final int ATTR_LAYER = K.attr3;
+  static final int ATTR_DRAW = K.attr4; // entry of the Draw block, per instance, see IndirectDraws
+
+  // Per frame and per draw constants come from the Frame and Draw uniform blocks, see UniformBlocks.
+  static final Shader shader        = Shader.withBlocks(Config.TILE_ARRAYS
+      ? Shader.make("static_room", "position", "uv", "offset", "layer", "draw")
+      : Shader.makeWith("static_room", "static_room_atlas", "position", "uv", "offset", "layer", "draw"));
+  static final int loc_atlas_grid   = Shader.locationOf(shader, "atlas_grid");
+
+  static final int textureTarget = TileSet.tiles.texture.target;
+
+  static {
+      Shader.use(shader);
+      Shader.load2f(loc_atlas_grid, TileSet.tiles.columns, TileSet.tiles.rows);
+      Shader.stop();
+  }
+
+  // Upload sizes of every mesh load and update, against the float / uint layout they replace.
+  static int uploads;
+  static int reorders; // uploads of float arrays, the others come ordered from asset files
+  static long floatBytes;
+  static long packedBytes;
+  static double acmrBefore;
+  static double acmrAfter;
+
+  // GLObjects handles
+  int vao;
+  int vertexCount;
+  Texture texture = TileSet.tiles.texture;
+
+  VertexFormat format;
+  int indexType;
+
+  // vbos kept around so that other vaos (i.e instance batches) can share the mesh data.
+  int indicesVbo;
+  int verticesVbo;
+
+  // With Config.MESH_POOL, vao and vbos are those of the pool, shared with other meshes, and the mesh is drawn
+  // from its ranges. Both are 0 otherwise.
+  MeshPool pool;
+  int baseVertex;
+  int firstIndex;
+  int vertices; // vertices of the pool range
+
+  int id = -1; // index in ObjectStore.meshes once placed in a room
+
+  // Asset file slices of a mesh loaded by AssetFile, decoded into the cpu side arrays on first use.
+  ByteBuffer mappedVertices;
+  ByteBuffer mappedIndices;
+
+  // cpu side copy of the mesh data, used for baking static rooms. See decode() for mapped meshes.
+  float[] positions;
+  int[] indices;
+  float[] uvs;
+  float[] layers; // TileSet.layer() of every vertex
+  final float[] bounds = new float[Frustum.BOX]; // local aabb
+
+  // Rendering only records draw commands, GL calls happen when the queue is flushed.
+
+  void render(RenderQueue q, float dx, float dy, float dz) {
+    render(q, 0, 0, 0, 0, dx, dy, dz);
+  }
+
+  // (wx, wy, wz) is the tile offset of the object in its room, (dx, dy, dz) the post-projection translation.
+  // The material is added to the layers of the mesh.
+  void render(RenderQueue q, float wx, float wy, float wz, int material, float dx, float dy, float dz) {
+    q.add(shader.programId, vao, texture.handle(), vertexCount, indexType, indexOffset(), baseVertex,
+        RenderQueue.NOT_INSTANCED, wx, wy, Config.BASE_Z + wz, TileSet.layer(material, 0), dx, dy, dz);
+  }
+
+  // Draws 'instances' copies of this mesh with the vao of an InstanceBatch, whose per-instance offsets and
+  // layers replace the world_xy, base_z and world_layer uniforms of the non-instanced path.
+  void renderInstanced(RenderQueue q, int instanceVao, int instances, float dx, float dy, float dz) {
+    q.add(shader.programId, instanceVao, texture.handle(), vertexCount, indexType, indexOffset(), baseVertex,
+        instances, 0, 0, Config.BASE_Z, 0, dx, dy, dz);
+  }
+
+  // Byte offset of the first index in the element buffer.
+  int indexOffset() {
+    return firstIndex * VertexFormat.indexBytes(indexType);
+  }
+
+  static Mesh load(float[] positions, int[] indices, float[] uvs) {
+    return load(positions, indices, uvs, new float[positions.length / K.float_per_vertex]);
+  }
+
+  static Mesh load(float[] positions, int[] indices, float[] uvs, float[] layers) {
+    Mesh m = new Mesh();
+    if (!Config.MESH_POOL) {
+      m.vao = GLObjects.allocVao();
+      m.indicesVbo = GLObjects.allocVbo();
+      m.verticesVbo = GLObjects.allocVbo();
+    }
+    m.update(positions, indices, uvs, layers);
+    return m;
+  }
+
+  // Uploads vertices and indices already encoded and ordered, straight from the given buffers: slices of a mapped
+  // AssetFile, so that no copy of the mesh ever lives on the java heap.
+  static Mesh load(VertexFormat format, int indexType, ByteBuffer vertexData, ByteBuffer indexData, float[] bounds) {
+    Mesh m = new Mesh();
+    m.format = format;
+    m.indexType = indexType;
+    m.vertexCount = indexData.remaining() / VertexFormat.indexBytes(indexType);
+    m.mappedVertices = vertexData;
+    m.mappedIndices = indexData;
+    System.arraycopy(bounds, 0, m.bounds, 0, Frustum.BOX);
+    int vertices = vertexData.remaining() / format.stride;
+    if (Config.MESH_POOL) {
+      MeshPool.alloc(m, vertices, m.vertexCount).upload(m, vertexData, indexData);
+    } else {
+      m.vao = GLObjects.allocVao();
+      m.indicesVbo = GLObjects.allocVbo();
+      m.verticesVbo = GLObjects.allocVbo();
+      GLUtil.vaoBind(m.vao);
+      GLUtil.elementBufferStore(m.indicesVbo, indexData);
+      GLUtil.arrayBufferStore(m.verticesVbo, vertexData, GL15.GL_STATIC_DRAW);
+      format.bind(m.verticesVbo);
+      GLUtil.vaoUnbind();
+    }
+
+    uploads++;
+    floatBytes += 4L * (vertices * (K.float_per_vertex + K.float_per_uv + K.float_per_layer) + m.vertexCount);
+    packedBytes += (long) vertexData.remaining() + indexData.remaining();
+    return m;
+  }
+
+  // Fills the cpu side arrays of a mapped mesh, only needed for baking.
+  void decode() {
+    if (positions != null) {
+      return;
+    }
+    int vertices = mappedVertices.remaining() / format.stride;
+    positions = format.get(mappedVertices, 0, vertices);
+    uvs = format.get(mappedVertices, 1, vertices);
+    layers = format.get(mappedVertices, 2, vertices);
+    indices = VertexFormat.getIndices(mappedIndices, vertexCount, indexType);
+  }
+
+  // Replaces the mesh data in place, reusing the existing vao and vbos, or moves it to new pool ranges. Instance
+  // batch vaos sharing the vbos keep the previous vertex format.
+  void update(float[] positions, int[] indices, float[] uvs, float[] layers) {
+    int vertices = positions.length / K.float_per_vertex;
+    acmrBefore += VertexCache.acmr(indices, vertices, VertexCache.SIZE);
+    if (Config.VERTEX_CACHE_ORDER) {
+      indices = VertexCache.tipsify(indices, vertices, VertexCache.SIZE);
+      int[] remap = VertexCache.fetchOrder(indices, vertices);
+      positions = VertexCache.remap(positions, K.float_per_vertex, remap);
+      uvs = VertexCache.remap(uvs, K.float_per_uv, remap);
+      layers = VertexCache.remap(layers, K.float_per_layer, remap);
+    }
+    acmrAfter += VertexCache.acmr(indices, vertices, VertexCache.SIZE);
+    reorders++;
+
+    format = VertexFormat.fit(positions, uvs, layers);
+    indexType = VertexFormat.indexType(vertices);
+
+    long mark = StagingArena.mark();
+    ByteBuffer vertexData = StagingArena.bytes(vertices * format.stride);
+    format.put(vertexData, 0, positions, vertices);
+    format.put(vertexData, 1, uvs, vertices);
+    format.put(vertexData, 2, layers, vertices);
+    ByteBuffer indexData = StagingArena.bytes(indices.length * VertexFormat.indexBytes(indexType));
+    VertexFormat.putIndices(indexData, indices, indexType);
+    if (Config.MESH_POOL) {
+      if (pool != null) {
+        pool.free(this);
+      }
+      MeshPool.alloc(this, vertices, indices.length).upload(this, vertexData, indexData);
+    } else {
+      GLUtil.vaoBind(vao);
+      GLUtil.elementBufferStore(indicesVbo, indexData);
+      GLUtil.arrayBufferStore(verticesVbo, vertexData, GL15.GL_STATIC_DRAW);
+      format.bind(verticesVbo);
+      GLUtil.vaoUnbind();
+    }
+    StagingArena.release(mark);
+
+    uploads++;
+    floatBytes += 4L * (positions.length + uvs.length + layers.length + indices.length);
+    packedBytes += (long) vertexData.limit() + indexData.limit();
+    if (K.debug) {
+      System.out.println(String.format("mesh: %d vertices, %s, %d bytes indices", vertices, format, indexData.limit()));
+    }
+
+    this.vertexCount = indices.length;
+    this.positions = positions;
+    this.indices = indices;
+    this.uvs = uvs;
+    this.layers = layers;
+    mappedVertices = mappedIndices = null;
+    Frustum.boundsOf(positions, bounds);
+  }
+
+  // Releases the GL objects of the mesh, or its pool ranges. The texture is not owned.
+  void free() {
+    if (pool != null) {
+      pool.free(this);
+      return;
+    }
+    GLObjects.freeVao(vao);
+    GLObjects.freeVbo(indicesVbo);
+    GLObjects.freeVbo(verticesVbo);
+    vao = indicesVbo = verticesVbo = K.gl_null;
+  }
+
+  static String report() {
+    int n = Math.max(uploads, 1);
+    return String.format("meshes: %d uploads, %d bytes/mesh as floats, %d bytes/mesh packed (%.1fx), acmr %.2f -> %.2f",
+        uploads, floatBytes / n, packedBytes / n, (double) floatBytes / Math.max(packedBytes, 1),
+        acmrBefore / Math.max(reorders, 1), acmrAfter / Math.max(reorders, 1));
+  }
+}
+
+
+// All the placements of one Mesh inside one Room, drawn with a single instanced draw call.
+// The batch owns a vao which shares the mesh vbos and adds a per-instance (x, y, z) tile offset and tile layer,
+// the instance layer replacing the vertex layers of the mesh.
+final class InstanceBatch {
+  final Mesh mesh;
+  final int vao;
+  final int offsetsVbo;
+
+  float[] offsets = new float[16 * K.float_per_instance];
+  int instances;
+
+  InstanceBatch(Mesh m) {
+    mesh = m;
+    vao = GLObjects.allocVao();
+    offsetsVbo = GLObjects.allocVbo();
+    GLUtil.vaoBind(vao);
+    GLUtil.vboElementArrayBufferBind(m.indicesVbo);
+    m.format.bind(m.verticesVbo);
+    int stride = 4 * K.float_per_instance;
+    GLUtil.instanceAttributeBind(Mesh.ATTR_OFS, K.float_per_offset, offsetsVbo, stride, 0);
+    GLUtil.instanceAttributeBind(Mesh.ATTR_LAYER, K.float_per_layer, offsetsVbo, stride, 4 * K.float_per_offset);
+    GLUtil.vertexAttribArrayBind(Mesh.ATTR_OFS);
+    GLUtil.vaoUnbind();
+  }
+
+  void clear() {
+    instances = 0;
+  }
+
+  void add(int x, int y, int z, int material) {
+    int i = instances * K.float_per_instance;
+    if (i == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+    }
+    offsets[i + 0] = x;
+    offsets[i + 1] = y;
+    offsets[i + 2] = z;
+    offsets[i + 3] = TileSet.layer(material, 0);
+    instances++;
+  }
+
+  void upload() {
+    GLUtil.arrayBufferStore(offsetsVbo, offsets, instances * K.float_per_instance, GL15.GL_DYNAMIC_DRAW);
+  }
+
+  void render(RenderQueue q, float dx, float dy, float dz) {
+    if (instances == 0) {
+      return;
+    }
+    mesh.renderInstanced(q, vao, instances, dx, dy, dz);
+  }
+
+  // The mesh vbos are shared and stay alive.
+  void free() {
+    GLObjects.freeVao(vao);
+    GLObjects.freeVbo(offsetsVbo);
+  }
+}
+
+
+// Shared vertex and index buffers for the meshes of one VertexFormat and index type, with one vao. A mesh gets a
+// range of vertices and a range of indices and is drawn with its base vertex and first index instead of a vao of
+// its own: a frame of rooms, boxes and pyramids binds one vao, and consecutive draws with the same program and
+// texture go out as one glMultiDrawElementsIndirect, see RenderQueue.flush() and IndirectDraws.
+// Ranges come from first fit free lists, merged with their neighbors when freed. Pools never grow, a mesh which
+// does not fit opens a new pool. Between frames, maintain() compacts the pools that streamed rooms left full of
+// holes: live ranges are copied packed into a scratch buffer and back with glCopyBufferSubData, so the buffers keep
+// their ids and the instance batch vaos sharing them stay valid, and the meshes get their new offsets.
+final class MeshPool {
+  static final List<MeshPool> pools = new ArrayList<>();
+
+  static int allocs;
+  static int frees;
+  static int compactions;
+  static long bytesMoved;
+  static long multiDraws;  // glMultiDrawElementsIndirect calls
+  static long mergedDraws; // draws they replaced
+
+  // First fit allocator of [0, capacity) units, free ranges sorted by start.
+  static final class Ranges {
+    final int capacity;
+    int[] starts = new int[16];
+    int[] lengths = new int[16];
+    int holes;
+    int used;
+
+    Ranges(int capacity) {
+      this.capacity = capacity;
+      reset(0);
+    }
+
+    // First unit of n free ones, -1 if no free range is large enough.
+    int alloc(int n) {
+      for (int h = 0; h < holes; h++) {
+        if (lengths[h] >= n) {
+          int start = starts[h];
+          starts[h] += n;
+          lengths[h] -= n;
+          if (lengths[h] == 0) {
+            remove(h);
+          }
+          used += n;
+          return start;
+        }
+      }
+      return -1;
+    }
+
+    void free(int start, int n) {
+      int h = 0;
+      while (h < holes && starts[h] < start) {
+        h++;
+      }
+      boolean before = h > 0 && starts[h - 1] + lengths[h - 1] == start;
+      boolean after = h < holes && start + n == starts[h];
+      if (before && after) {
+        lengths[h - 1] += n + lengths[h];
+        remove(h);
+      } else if (before) {
+        lengths[h - 1] += n;
+      } else if (after) {
+        starts[h] = start;
+        lengths[h] += n;
+      } else {
+        insert(h, start, n);
+      }
+      used -= n;
+    }
+
+    // Free units outside of the free range at the end, which only compaction gets back.
+    int fragmented() {
+      int tail = holes > 0 && starts[holes - 1] + lengths[holes - 1] == capacity ? lengths[holes - 1] : 0;
+      return capacity - used - tail;
+    }
+
+    // After compaction: the first 'used' units are taken, the rest is free.
+    void reset(int used) {
+      this.used = used;
+      holes = 0;
+      if (used < capacity) {
+        insert(0, used, capacity - used);
+      }
+    }
+
+    void insert(int h, int start, int n) {
+      if (holes == starts.length) {
+        starts = Arrays.copyOf(starts, 2 * holes);
+        lengths = Arrays.copyOf(lengths, 2 * holes);
+      }
+      System.arraycopy(starts, h, starts, h + 1, holes - h);
+      System.arraycopy(lengths, h, lengths, h + 1, holes - h);
+      starts[h] = start;
+      lengths[h] = n;
+      holes++;
+    }
+
+    void remove(int h) {
+      System.arraycopy(starts, h + 1, starts, h, holes - h - 1);
+      System.arraycopy(lengths, h + 1, lengths, h, holes - h - 1);
+      holes--;
+    }
+  }
+
+  final VertexFormat format;
+  final int indexType;
+  final int indexBytes;
+  final Ranges vertices;
+  final Ranges indices;
+  final List<Mesh> meshes = new ArrayList<>();
+
+  // GLObjects handles
+  final int vao;
+  final int verticesVbo;
+  final int indicesVbo;
+
+  MeshPool(VertexFormat format, int indexType, int maxVertices, int maxIndices) {
+    this.format = format;
+    this.indexType = indexType;
+    indexBytes = VertexFormat.indexBytes(indexType);
+    vertices = new Ranges(maxVertices);
+    indices = new Ranges(maxIndices);
+    vao = GLObjects.allocVao();
+    verticesVbo = GLObjects.allocVbo();
+    indicesVbo = GLObjects.allocVbo();
+    GLUtil.vaoBind(vao);
+    GLUtil.vboElementArrayBufferBind(indicesVbo);
+    GLUtil.gl.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, (long) maxIndices * indexBytes, GL15.GL_STATIC_DRAW);
+    GLObjects.vbos.setBytes(indicesVbo, maxIndices * indexBytes);
+    GLUtil.vboArrayBufferBind(verticesVbo);
+    GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, (long) maxVertices * format.stride, GL15.GL_STATIC_DRAW);
+    GLObjects.vbos.setBytes(verticesVbo, maxVertices * format.stride);
+    format.bind(verticesVbo);
+    IndirectDraws.bindDrawAttribute(vao);
+    GLUtil.vaoUnbind();
+  }
+
+  // Places mesh m, whose format and index type are set, in the first pool of its kind with room for it.
+  static MeshPool alloc(Mesh m, int nVertices, int nIndices) {
+    for (MeshPool p : pools) {
+      if (p.format.same(m.format) && p.indexType == m.indexType && p.place(m, nVertices, nIndices)) {
+        return p;
+      }
+    }
+    MeshPool p = new MeshPool(m.format, m.indexType,
+        Math.max(Config.MESH_POOL_VERTICES, nVertices), Math.max(Config.MESH_POOL_INDICES, nIndices));
+    pools.add(p);
+    p.place(m, nVertices, nIndices);
+    return p;
+  }
+
+  boolean place(Mesh m, int nVertices, int nIndices) {
+    int v = vertices.alloc(nVertices);
+    if (v < 0) {
+      return false;
+    }
+    int i = indices.alloc(nIndices);
+    if (i < 0) {
+      vertices.free(v, nVertices);
+      return false;
+    }
+    m.pool = this;
+    m.baseVertex = v;
+    m.firstIndex = i;
+    m.vertices = nVertices;
+    m.vao = vao;
+    m.verticesVbo = verticesVbo;
+    m.indicesVbo = indicesVbo;
+    meshes.add(m);
+    allocs++;
+    return true;
+  }
+
+  // m.vertexCount must still be the index count it was placed with.
+  void free(Mesh m) {
+    vertices.free(m.baseVertex, m.vertices);
+    indices.free(m.firstIndex, m.vertexCount);
+    meshes.remove(m);
+    frees++;
+    m.pool = null;
+    m.vao = m.verticesVbo = m.indicesVbo = K.gl_null;
+  }
+
+  void upload(Mesh m, ByteBuffer vertexData, ByteBuffer indexData) {
+    GLUtil.vboArrayBufferBind(verticesVbo);
+    GLUtil.gl.glBufferSubData(GL15.GL_ARRAY_BUFFER, (long) m.baseVertex * format.stride, vertexData);
+    GLUtil.vboArrayBufferUnbind();
+    GLUtil.vaoBind(vao);
+    GLUtil.gl.glBufferSubData(GL15.GL_ELEMENT_ARRAY_BUFFER, (long) m.firstIndex * indexBytes, indexData);
+    GLUtil.vaoUnbind();
+  }
+
+  // Once per frame after the queue is flushed, so that no recorded command holds an old offset: compacts the
+  // pools with more than Config.MESH_POOL_COMPACT of their capacity in holes, and releases empty pools but the
+  // first of their kind.
+  static void maintain() {
+    for (int p = pools.size() - 1; p >= 0; p--) {
+      MeshPool pool = pools.get(p);
+      if (pool.meshes.isEmpty() && pool.sibling(p) >= 0) {
+        pool.release();
+        pools.remove(p);
+      } else if (pool.vertices.fragmented() > Config.MESH_POOL_COMPACT * pool.vertices.capacity
+          || pool.indices.fragmented() > Config.MESH_POOL_COMPACT * pool.indices.capacity) {
+        pool.compact();
+      }
+    }
+  }
+
+  // Index of an earlier pool of the same kind, -1 if none.
+  int sibling(int p) {
+    for (int q = 0; q < p; q++) {
+      if (pools.get(q).format.same(format) && pools.get(q).indexType == indexType) {
+        return q;
+      }
+    }
+    return -1;
+  }
+
+  void compact() {
+    int scratch = GLObjects.allocVbo();
+    meshes.sort((a, b) -> Integer.compare(a.baseVertex, b.baseVertex));
+    int v = pack(verticesVbo, format.stride, scratch, true);
+    meshes.sort((a, b) -> Integer.compare(a.firstIndex, b.firstIndex));
+    int i = pack(indicesVbo, indexBytes, scratch, false);
+    GLObjects.freeVbo(scratch);
+    vertices.reset(v);
+    indices.reset(i);
+    compactions++;
+  }
+
+  // Copies the vertex or index ranges of the meshes, in their current order, to the start of the scratch buffer
+  // then back to the start of vbo. Returns the units used.
+  int pack(int vbo, int unitBytes, int scratch, boolean vertexRanges) {
+    int scratchId = GLObjects.vbos.id(scratch);
+    int vboId = GLObjects.vbos.id(vbo);
+    long bytes = (long) (vertexRanges ? vertices.used : indices.used) * unitBytes;
+    GLUtil.gl.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, scratchId);
+    GLUtil.gl.glBufferData(GL31.GL_COPY_WRITE_BUFFER, Math.max(bytes, 1), GL15.GL_STREAM_COPY);
+    GLUtil.gl.glBindBuffer(GL31.GL_COPY_READ_BUFFER, vboId);
+    int at = 0;
+    for (Mesh m : meshes) {
+      int start = vertexRanges ? m.baseVertex : m.firstIndex;
+      int n = vertexRanges ? m.vertices : m.vertexCount;
+      if (n > 0) {
+        GLUtil.gl.glCopyBufferSubData(GL31.GL_COPY_READ_BUFFER, GL31.GL_COPY_WRITE_BUFFER,
+            (long) start * unitBytes, (long) at * unitBytes, (long) n * unitBytes);
+      }
+      if (vertexRanges) {
+        m.baseVertex = at;
+      } else {
+        m.firstIndex = at;
+      }
+      at += n;
+    }
+    if (bytes > 0) {
+      GLUtil.gl.glBindBuffer(GL31.GL_COPY_READ_BUFFER, scratchId);
+      GLUtil.gl.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, vboId);
+      GLUtil.gl.glCopyBufferSubData(GL31.GL_COPY_READ_BUFFER, GL31.GL_COPY_WRITE_BUFFER, 0, 0, bytes);
+    }
+    GLUtil.gl.glBindBuffer(GL31.GL_COPY_READ_BUFFER, K.gl_null);
+    GLUtil.gl.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, K.gl_null);
+    bytesMoved += 2 * bytes;
+    return at;
+  }
+
+  void release() {
+    IndirectDraws.vaos.clear(vao);
+    GLObjects.freeVao(vao);
+    GLObjects.freeVbo(verticesVbo);
+    GLObjects.freeVbo(indicesVbo);
+  }
+
+  static String report() {
+    long usedVertices = 0;
+    long maxVertices = 0;
+    long usedIndices = 0;
+    long maxIndices = 0;
+    int meshes = 0;
+    for (MeshPool p : pools) {
+      usedVertices += p.vertices.used;
+      maxVertices += p.vertices.capacity;
+      usedIndices += p.indices.used;
+      maxIndices += p.indices.capacity;
+      meshes += p.meshes.size();
+    }
+    return String.format("mesh pools: %d pools of %d meshes, %d/%d vertices, %d/%d indices, %d allocs, %d frees, "
+        + "%d compactions moving %d bytes, %d multi-draws replacing %d draws", pools.size(), meshes,
+        usedVertices, maxVertices, usedIndices, maxIndices, allocs, frees, compactions, bytesMoved,
+        multiDraws, mergedDraws);
+  }
+}
+
+
+// The std140 uniform blocks shared by all programs, declared in uniform_blocks.glsl, see Shader.withBlocks():
+//   Frame, at K.block_frame: projection, camera translation, base_s and base_z, written once per frame,
+//   Draw, at K.block_draw: an array of the constants of RUN_DRAWS draws, the tile offset and layer and the room
+//     translation. The constants of every draw of a frame are written at once in a region of a ring of
+//     Config.UBO_RING_FRAMES regions, so that a frame never overwrites constants the gpu may still read. They are
+//     packed in runs, each bound once as a range of the block, and a draw reads its entry of the run.
+// Runs start at GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, the granularity of glBindBufferRange.
+final class UniformBlocks {
+  static final int FRAME_BYTES = 96; // mat4 projection, vec4 camera, vec4 params
+  static final int DRAW_BYTES = 32;  // vec4 world, vec4 translation
+  static final int RUN_DRAWS = 128;  // size of the Draw block array
+  static final int RUN_BYTES = RUN_DRAWS * DRAW_BYTES;
+
+  static int frameUbo; // GLObjects handles
+  static int drawUbo;
+  static int drawUboId; // GL id, bound on every run
+  static int align;
+  static int slotBytes;   // most bytes a draw takes, when it is alone in its run
+  static int regionSlots; // draws per ring region
+  static int region;
+  static final ByteBuffer frameStaged = BufferUtils.createByteBuffer(FRAME_BYTES);
+  static final FloatBuffer frameMatrix = frameStaged.asFloatBuffer();
+  static ByteBuffer staged; // constants of the frame, as large as a region
+  static int head;  // bytes written this frame
+  static int draws; // entries written this frame
+  static int runs;
+
+  static long frames;
+  static long totalDraws;
+  static long totalRuns;
+  static long bytes;
+
+  static void init() {
+    if (frameUbo != K.gl_null) {
+      return;
+    }
+    align = Math.max(GLUtil.gl.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT), 16);
+    slotBytes = (DRAW_BYTES + align - 1) / align * align;
+    frameUbo = GLObjects.allocVbo();
+    GLUtil.uniformBufferBind(frameUbo);
+    GLUtil.gl.glBufferData(GL31.GL_UNIFORM_BUFFER, FRAME_BYTES, GL15.GL_DYNAMIC_DRAW);
+    GLObjects.vbos.setBytes(frameUbo, FRAME_BYTES);
+    GLUtil.gl.glBindBufferBase(GL31.GL_UNIFORM_BUFFER, K.block_frame, GLObjects.vbos.id(frameUbo));
+    drawUbo = GLObjects.allocVbo();
+    drawUboId = GLObjects.vbos.id(drawUbo);
+    reserve(Config.RENDER_QUEUE_CAPACITY);
+  }
+
+  // Grows the ring to regions of at least n draws. The last run of the last region is bound whole.
+  static void reserve(int n) {
+    if (n <= regionSlots) {
+      return;
+    }
+    regionSlots = Math.max(n, 2 * regionSlots);
+    int size = Config.UBO_RING_FRAMES * regionSlots * slotBytes + RUN_BYTES;
+    GLUtil.uniformBufferBind(drawUbo);
+    GLUtil.gl.glBufferData(GL31.GL_UNIFORM_BUFFER, size, GL15.GL_STREAM_DRAW);
+    GLObjects.vbos.setBytes(drawUbo, size);
+    Arrays.fill(GLState.uniformBuffers, GLState.UNKNOWN); // old ranges are gone
+    staged = BufferUtils.createByteBuffer(regionSlots * slotBytes);
+  }
+
+  static void frame(Matrix4f proj, float x, float y, float z) {
+    init();
+    ByteBuffer b = frameStaged;
+    proj.store(frameMatrix.clear());
+    b.putFloat(64, x).putFloat(68, y).putFloat(72, z).putFloat(76, Config.BASE_S);
+    b.putFloat(80, Config.BASE_Z);
+    GLUtil.uniformBufferBind(frameUbo);
+    GLUtil.gl.glBufferSubData(GL31.GL_UNIFORM_BUFFER, 0, b.clear());
+    bytes += FRAME_BYTES;
+    frames++;
+  }
+
+  // Starts the constants of a frame of at most n draws.
+  static void beginDraws(int n) {
+    init();
+    reserve(n);
+    region = (region + 1) % Config.UBO_RING_FRAMES;
+    staged.clear();
+    head = 0;
+    draws = 0;
+    runs = 0;
+  }
+
+  // Starts a run, returns its offset in the region for bindDraw(). Entries of the run follow with addDraw().
+  static int beginRun() {
+    head = (head + align - 1) / align * align;
+    runs++;
+    return head;
+  }
+
+  // wz is the tile z, relative to base_z.
+  static void addDraw(float wx, float wy, float wz, float layer, float tx, float ty, float tz) {
+    int p = head;
+    staged.putFloat(p, wx).putFloat(p + 4, wy).putFloat(p + 8, wz).putFloat(p + 12, layer);
+    staged.putFloat(p + 16, tx).putFloat(p + 20, ty).putFloat(p + 24, tz).putFloat(p + 28, 0);
+    head += DRAW_BYTES;
+    draws++;
+  }
+
+  static void endDraws() {
+    if (draws > 0) {
+      ByteBuffer b = staged.limit(head);
+      GLUtil.uniformBufferBind(drawUbo);
+      GLUtil.gl.glBufferSubData(GL31.GL_UNIFORM_BUFFER, (long) region * regionSlots * slotBytes, b);
+      bytes += b.remaining();
+      totalDraws += draws;
+      totalRuns += runs;
+    }
+  }
+
+  static void bindDraw(int run) {
+    GLState.bindUniformRange(K.block_draw, drawUboId, (long) region * regionSlots * slotBytes + run, RUN_BYTES);
+  }
+
+  static String report() {
+    return String.format("uniform blocks: %d frames, %.1f draw entries/frame of %d bytes in %.1f runs, %d bytes written",
+        frames, (double) totalDraws / Math.max(frames, 1), DRAW_BYTES, (double) totalRuns / Math.max(frames, 1), bytes);
+  }
+}
+
+
+// Commands of the glMultiDrawElementsIndirect calls of RenderQueue.flush(), GL 4.3: one per sorted command of a
+// frame, so that any run of consecutive commands is a range of them. Like the draw constants they are written at
+// once in a region of a ring of Config.UBO_RING_FRAMES regions. The base instance of a command is its entry in
+// the Draw block: the pooled meshes vao has a per instance draw attribute reading 0, 1, 2... from drawIndices(),
+// which the instance offsets by the base instance. Vaos without that attribute would read entry 0 for every command
+// and are never merged.
+final class IndirectDraws {
+  static final int COMMAND_BYTES = 20; // count, instances, first index, base vertex, base instance
+
+  static final BitSet vaos = new BitSet(); // GLObjects handles of the vaos with the draw attribute
+
+  static int supported = -1; // unknown until the first frame
+  static int indices; // GLObjects handles
+  static int vbo;
+  static int vboId;
+  static int regionCommands;
+  static int region;
+  static ByteBuffer staged; // commands of the frame, as large as a region
+  static int commands;
+
+  static boolean supported() {
+    if (supported < 0) {
+      boolean gl43 = ShaderPipeline.versionOf(GLUtil.gl.glGetString(GL11.GL_VERSION)) >= 43;
+      supported = Config.MULTI_DRAW && Config.MESH_POOL && gl43 ? 1 : 0;
+    }
+    return supported == 1;
+  }
+
+  // 0 to UniformBlocks.RUN_DRAWS - 1, the values of the draw attribute of the instances.
+  static int drawIndices() {
+    if (indices == K.gl_null) {
+      float[] draw = new float[UniformBlocks.RUN_DRAWS];
+      for (int d = 0; d < draw.length; d++) {
+        draw[d] = d;
+      }
+      indices = GLObjects.allocVbo();
+      GLUtil.arrayBufferStore(indices, draw, draw.length, GL15.GL_STATIC_DRAW);
+    }
+    return indices;
+  }
+
+  // Gives the bound vao, whose handle is vao, the draw attribute.
+  static void bindDrawAttribute(int vao) {
+    GLUtil.instanceAttributeBind(Mesh.ATTR_DRAW, 1, drawIndices());
+    GLUtil.vertexAttribArrayBind(Mesh.ATTR_DRAW);
+    vaos.set(vao);
+  }
+
+  static void reserve(int n) {
+    if (n <= regionCommands) {
+      return;
+    }
+    if (vbo == K.gl_null) {
+      vbo = GLObjects.allocVbo();
+      vboId = GLObjects.vbos.id(vbo);
+    }
+    regionCommands = Math.max(n, 2 * regionCommands);
+    int size = Config.UBO_RING_FRAMES * regionCommands * COMMAND_BYTES;
+    GLUtil.gl.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, vboId);
+    GLUtil.gl.glBufferData(GL40.GL_DRAW_INDIRECT_BUFFER, size, GL15.GL_STREAM_DRAW);
+    GLObjects.vbos.setBytes(vbo, size);
+    staged = BufferUtils.createByteBuffer(regionCommands * COMMAND_BYTES);
+  }
+
+  // Starts the commands of a frame of at most n draws.
+  static void begin(int n) {
+    reserve(Math.max(n, 1));
+    region = (region + 1) % Config.UBO_RING_FRAMES;
+    staged.clear();
+    commands = 0;
+  }
+
+  static void add(int count, int instances, int firstIndex, int baseVertex, int baseInstance) {
+    int p = commands * COMMAND_BYTES;
+    staged.putInt(p, count).putInt(p + 4, instances).putInt(p + 8, firstIndex).putInt(p + 12, baseVertex)
+        .putInt(p + 16, baseInstance);
+    commands++;
+  }
+
+  // Uploads the commands and leaves the buffer bound for the draws.
+  static void end() {
+    GLUtil.gl.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, vboId);
+    if (commands > 0) {
+      GLUtil.gl.glBufferSubData(GL40.GL_DRAW_INDIRECT_BUFFER, offset(0), staged.limit(commands * COMMAND_BYTES));
+    }
+  }
+
+  // Byte offset of command c of the frame.
+  static long offset(int c) {
+    return ((long) region * regionCommands + c) * COMMAND_BYTES;
+  }
+}
+
+
+// Ring of Config.STREAM_RING_FRAMES regions in one vbo, for geometry written again every frame, see DynamicMesh.
+// A frame writes its region then fences it once its draws are flushed. A region comes back STREAM_RING_FRAMES frames
+// later: if its fence is not signaled by then, the gpu is that far behind and the buffer is orphaned rather than
+// waited on, the driver keeping the old storage alive for the draws still reading it.
+// With GL 4.4 the storage is immutable and mapped once, persistent and coherent. Before that, every frame maps the
+// buffer unsynchronized, which the fences make safe, and flushes and unmaps what it wrote before the queue draws.
+// Not thread safe: writes happen on the GL thread, before the frame is flushed.
+final class StreamBuffer {
+  static int vbo; // GLObjects handle
+  static int vao; // vertices in VertexFormat.floats, indices from the same vbo
+  static boolean persistent;
+  static long regionBytes;
+  static int region;
+  static int[] fences; // of every region, 0 once waited on
+  static ByteBuffer mapped; // the whole buffer while writable
+  static long head; // next free byte in the region
+  static boolean writing;
+
+  static long frames;
+  static long bytes;
+  static long orphans;
+  static long dropped; // allocations which did not fit their region
+  static long peakBytes;
+
+  static void init() {
+    if (vbo != K.gl_null) {
+      return;
+    }
+    persistent = Config.STREAM_PERSISTENT && ShaderPipeline.versionOf(GLUtil.gl.glGetString(GL11.GL_VERSION)) >= 44;
+    regionBytes = Config.STREAM_REGION_BYTES;
+    fences = new int[Config.STREAM_RING_FRAMES];
+    region = fences.length - 1;
+    vao = GLObjects.allocVao();
+    allocate();
+  }
+
+  static void allocate() {
+    long size = fences.length * regionBytes;
+    vbo = GLObjects.allocVbo();
+    GLUtil.vboArrayBufferBind(vbo);
+    if (persistent) {
+      int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+      GLUtil.gl.glBufferStorage(GL15.GL_ARRAY_BUFFER, size, flags);
+      mapped = GLUtil.gl.glMapBufferRange(GL15.GL_ARRAY_BUFFER, 0, size, flags, null);
+    } else {
+      GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, size, GL15.GL_STREAM_DRAW);
+    }
+    GLUtil.vboArrayBufferUnbind();
+    GLObjects.vbos.setBytes(vbo, (int) size);
+    GLUtil.vaoBind(vao);
+    GLUtil.vboElementArrayBufferBind(vbo);
+    VertexFormat.floats.bind(vbo);
+    IndirectDraws.bindDrawAttribute(vao);
+    GLUtil.vaoUnbind();
+  }
+
+  // Moves to the next region and makes the buffer writable. Nothing to do until a DynamicMesh exists.
+  static void beginFrame() {
+    if (vbo == K.gl_null) {
+      return;
+    }
+    region = (region + 1) % fences.length;
+    int fence = fences[region];
+    if (fence != 0) {
+      int status = GLUtil.gl.glClientWaitSync(fence, 0, 0);
+      if (status == GL32.GL_ALREADY_SIGNALED || status == GL32.GL_CONDITION_SATISFIED) {
+        GLUtil.gl.glDeleteSync(fence);
+        fences[region] = 0;
+      } else {
+        orphan();
+      }
+    }
+    head = 0;
+    if (!persistent) {
+      GLUtil.vboArrayBufferBind(vbo);
+      mapped = GLUtil.gl.glMapBufferRange(GL15.GL_ARRAY_BUFFER, 0, fences.length * regionBytes,
+          GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT | GL30.GL_MAP_FLUSH_EXPLICIT_BIT, mapped);
+      GLUtil.vboArrayBufferUnbind();
+    }
+    writing = true;
+  }
+
+  // The gpu still reads the region: new storage for the whole ring, every fence is moot.
+  static void orphan() {
+    for (int r = 0; r < fences.length; r++) {
+      if (fences[r] != 0) {
+        GLUtil.gl.glDeleteSync(fences[r]);
+        fences[r] = 0;
+      }
+    }
+    if (persistent) {
+      GLObjects.freeVbo(vbo); // immutable storage cannot be respecified, its deletion waits for the gpu
+      allocate();
+    } else {
+      GLUtil.vboArrayBufferBind(vbo);
+      GLUtil.gl.glBufferData(GL15.GL_ARRAY_BUFFER, fences.length * regionBytes, GL15.GL_STREAM_DRAW);
+      GLUtil.vboArrayBufferUnbind();
+    }
+    orphans++;
+  }
+
+  // Byte offset in the buffer of 'n' bytes aligned on 'align', -1 when the region is full. Write them in mapped.
+  // The offset itself is aligned, not only its place in the region: regions need not be multiples of a vertex
+  // stride, and a base vertex is the offset divided by the stride.
+  static long alloc(int n, int align) {
+    if (!writing) {
+      throw new IllegalStateException("stream buffer written outside of beginFrame() / submit()");
+    }
+    long start = region * regionBytes;
+    long p = (start + head + align - 1) / align * align;
+    if (p + n > start + regionBytes) {
+      dropped++;
+      return -1;
+    }
+    head = p + n - start;
+    return p;
+  }
+
+  // Before the queue is flushed.
+  static void submit() {
+    if (!writing) {
+      return;
+    }
+    if (!persistent) {
+      GLUtil.vboArrayBufferBind(vbo);
+      if (head > 0) {
+        GLUtil.gl.glFlushMappedBufferRange(GL15.GL_ARRAY_BUFFER, region * regionBytes, head);
+      }
+      GLUtil.gl.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+      GLUtil.vboArrayBufferUnbind();
+    }
+    writing = false;
+    bytes += head;
+    peakBytes = Math.max(peakBytes, head);
+  }
+
+  // After the queue is flushed: the region is free again once the gpu is past its draws.
+  static void endFrame() {
+    if (vbo == K.gl_null) {
+      return;
+    }
+    fences[region] = GLUtil.gl.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    frames++;
+  }
+
+  static String report() {
+    return String.format("stream buffer: %s, %d frames, %d bytes written (peak %d of %d per frame), %d orphans, %d dropped",
+        persistent ? "persistent" : "mapped per frame", frames, bytes, peakBytes, regionBytes, orphans, dropped);
+  }
+}
+
+
+// Geometry written into the StreamBuffer every frame, e.g moving props. The caller owns the arrays it updates the
+// mesh from and reuses them, so that updating allocates nothing. Only the last update of the frame is drawn.
+final class DynamicMesh {
+  static final VertexFormat format = VertexFormat.floats;
+
+  Texture texture = TileSet.tiles.texture;
+  int vertexCount; // indices
+  int indexType;
+  int indexOffset; // bytes, in the stream buffer
+  int vertexOffset;
+  int baseVertex;
+  long frame = -1; // StreamBuffer.frames of the last update
+
+  DynamicMesh() {
+    StreamBuffer.init();
+  }
+
+  // First 'vertices' vertices and 'count' indices of the arrays. Returns false when the frame has no room left,
+  // the mesh is then not drawn this frame.
+  boolean update(float[] positions, float[] uvs, float[] layers, int vertices, int[] indices, int count) {
+    int type = vertices <= 1 << 16 ? GL11.GL_UNSIGNED_SHORT : GL11.GL_UNSIGNED_INT;
+    int indexBytes = VertexFormat.indexBytes(type);
+    long v = StreamBuffer.alloc(vertices * format.stride, format.stride);
+    long i = v < 0 ? -1 : StreamBuffer.alloc(count * indexBytes, indexBytes);
+    if (i < 0) {
+      frame = -1;
+      return false;
+    }
+    ByteBuffer b = StreamBuffer.mapped;
+    int p = (int) v;
+    for (int k = 0; k < vertices; k++, p += format.stride) {
+      b.putFloat(p, positions[3 * k]).putFloat(p + 4, positions[3 * k + 1]).putFloat(p + 8, positions[3 * k + 2]);
+      b.putFloat(p + 12, uvs[2 * k]).putFloat(p + 16, uvs[2 * k + 1]);
+      b.putFloat(p + 20, layers[k]);
+    }
+    p = (int) i;
+    for (int k = 0; k < count; k++, p += indexBytes) {
+      if (indexBytes == 2) {
+        b.putShort(p, (short) indices[k]);
+      } else {
+        b.putInt(p, indices[k]);
+      }
+    }
+    vertexCount = count;
+    indexType = type;
+    indexOffset = (int) i;
+    vertexOffset = (int) v;
+    baseVertex = (int) (v / format.stride);
+    frame = StreamBuffer.frames;
+    return true;
+  }
+
+  // Same arguments as Mesh.render().
+  void render(RenderQueue q, float wx, float wy, float wz, int material, float dx, float dy, float dz) {
+    if (frame != StreamBuffer.frames) {
+      return;
+    }
+    q.add(Mesh.shader.programId, StreamBuffer.vao, texture.handle(), vertexCount, indexType, indexOffset, baseVertex,
+        RenderQueue.NOT_INSTANCED, wx, wy, Config.BASE_Z + wz, TileSet.layer(material, 0), dx, dy, dz);
+  }
+}
+
+
+// Demo of a DynamicMesh: a pyramid spinning in the middle of the first demo room, its vertices rotated on the cpu.
+final class Spinner {
+  static final float TURNS_PER_SECOND = 0.25f;
+
+  static DynamicMesh mesh;
+  static float[] source;
+  static float[] positions;
+  static long start;
+
+  // Before the first frame.
+  static void init() {
+    mesh = new DynamicMesh();
+    Room.pyr.decode();
+    source = Room.pyr.positions;
+    positions = new float[source.length];
+    start = System.nanoTime();
+  }
+
+  static void update() {
+    double a = 2 * Math.PI * TURNS_PER_SECOND * (System.nanoTime() - start) / 1e9;
+    float c = (float) Math.cos(a), s = (float) Math.sin(a);
+    for (int i = 0; i < source.length; i += 3) {
+      positions[i] = c * source[i] - s * source[i + 1];
+      positions[i + 1] = s * source[i] + c * source[i + 1];
+      positions[i + 2] = source[i + 2];
+    }
+    Mesh m = Room.pyr;
+    mesh.update(positions, m.uvs, m.layers, positions.length / 3, m.indices, m.indices.length);
+  }
+
+  static void render(RenderQueue q, float x, float y, float z) {
+    mesh.render(q, 0, 0, 0, 0, x, y, z);
+  }
+}
+
+
+// Records the draw commands of the rooms of a frame. With enough rooms, records them on a ForkJoinPool: every task
+// takes the next room not recorded yet and adds its commands to its own queue, and the task queues are then
+// appended to the frame queue on the calling thread, which keeps GL to itself. The frame queue sorts commands by
+// key, so the order rooms were recorded in does not matter.
+final class ParallelRecorder {
+  static final class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final RenderQueue queue = new RenderQueue(Config.RENDER_QUEUE_CAPACITY);
+
+    protected void compute() {
+      for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+        long start = System.nanoTime();
+        queue.group = i;
+        rooms[i].record(queue, x, y, z);
+        roomNanos[i] = System.nanoTime() - start;
+      }
+    }
+  }
+
+  static final class Root extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    protected void compute() {
+      invokeAll(tasks);
+    }
+  }
+
+  static boolean enabled = Config.RECORD_THREADS > 1;
+  static ForkJoinPool pool;
+  static Task[] tasks;
+  static final Root root = new Root();
+  static final AtomicInteger next = new AtomicInteger();
+
+  // Frame being recorded, read by the tasks: published by pool.invoke()
+  static Room[] rooms;
+  static int count;
+  static float x, y, z;
+  // Record time of every room, each written by the task which recorded it, read back by FrameProfiler
+  static long[] roomNanos = new long[0];
+
+  static long serialFrames;
+  static long parallelFrames;
+
+  static void init() {
+    if (pool != null) {
+      return;
+    }
+    pool = new ForkJoinPool(Config.RECORD_THREADS, p -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+      thread.setName("record-worker-" + thread.getPoolIndex());
+      thread.setDaemon(true);
+      return thread;
+    }, null, false);
+    tasks = new Task[Config.RECORD_THREADS];
+    for (int t = 0; t < tasks.length; t++) {
+      tasks[t] = new Task();
+    }
+  }
+
+  // Records rooms[0 .. n) translated by x, y, z into q. On the GL thread.
+  static void record(Room[] rs, int n, RenderQueue q, float dx, float dy, float dz) {
+    for (int i = 0; i < n; i++) {
+      rs[i].prepare();
+    }
+    if (!enabled || n < Config.RECORD_PARALLEL_MIN_ROOMS) {
+      for (int i = 0; i < n; i++) {
+        FrameProfiler.beginRoom(i);
+        q.group = i;
+        rs[i].record(q, dx, dy, dz);
+        FrameProfiler.endRoom(i);
+      }
+      serialFrames++;
+    } else {
+      init();
+      rooms = rs;
+      count = n;
+      x = dx;
+      y = dy;
+      z = dz;
+      if (roomNanos.length < n) {
+        roomNanos = new long[Math.max(n, 2 * roomNanos.length)];
+      }
+      next.set(0);
+      root.reinitialize();
+      for (Task t : tasks) {
+        t.reinitialize();
+        t.queue.keyByGroup = q.keyByGroup;
+      }
+      pool.invoke(root);
+      for (Task t : tasks) {
+        q.append(t.queue);
+      }
+      for (int i = 0; i < n; i++) {
+        FrameProfiler.roomCpu(i, roomNanos[i]);
+      }
+      rooms = null;
+      parallelFrames++;
+    }
+    for (int i = 0; i < n; i++) {
+      rs[i].finish();
+    }
+  }
+
+  static void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  static String report() {
+    return String.format("record: %d serial and %d parallel frames on %d threads", serialFrames, parallelFrames,
+        Config.RECORD_THREADS);
+  }
+}
+
+
+// Draw commands of a frame, sorted by state before being sent to GL so that state changes are minimized
+// across all rooms. Commands live in primitive arenas, which only grow until the largest frame seen:
+// no allocation in steady state.
+final class RenderQueue {
+  static final int NOT_INSTANCED = 0;
+
+  // int arena layout of a command
+  static final int CMD_PROGRAM    = 0;
+  static final int CMD_VAO        = 1;
+  static final int CMD_TEXTURE    = 2;
+  static final int CMD_COUNT      = 3;
+  static final int CMD_INSTANCES  = 4;
+  static final int CMD_GROUP      = 5;
+  static final int CMD_INDEX_TYPE = 6;
+  static final int CMD_OFFSET     = 7; // bytes to the first index, see MeshPool
+  static final int CMD_BASE_VERTEX = 8;
+  static final int CMD_INTS       = 9;
+
+  // float arena layout of a command: uniforms of the static_room shader, the only program so far
+  static final int CMD_WORLD_X    = 0;
+  static final int CMD_WORLD_Y    = 1;
+  static final int CMD_BASE_Z     = 2;
+  static final int CMD_DX         = 3;
+  static final int CMD_DY         = 4;
+  static final int CMD_DZ         = 5;
+  static final int CMD_LAYER      = 6;
+  static final int CMD_FLOATS     = 7;
+
+  // Sort key, most significant first: program | texture | vao | depth. Ids are truncated to their field
+  // width, a collision only costs a redundant state change.
+  static final int KEY_DEPTH_BITS   = 24;
+  static final int KEY_VAO_BITS     = 16;
+  static final int KEY_TEXTURE_BITS = 14;
+  static final int KEY_PROGRAM_BITS = 10;
+  static final int KEY_VAO_SHIFT      = KEY_DEPTH_BITS;
+  static final int KEY_TEXTURE_SHIFT  = KEY_VAO_SHIFT + KEY_VAO_BITS;
+  static final int KEY_PROGRAM_SHIFT  = KEY_TEXTURE_SHIFT + KEY_TEXTURE_BITS;
+  static final int KEY_GROUP_BITS     = 8;
+  static final float KEY_DEPTH_SCALE  = ((1 << KEY_DEPTH_BITS) - 1) / Config.PROJECTION_FAR;
+
+  static final int RADIX_BITS = 8;
+  static final int RADIX = 1 << RADIX_BITS;
+
+  int[] ints;
+  float[] floats;
+  long[] keys;
+  int[] order;    // command index of every key
+  long[] keysTmp;
+  int[] orderTmp;
+  final int[] counts = new int[RADIX];
+
+  int size;
+  int[] runs;    // Draw block range of every sorted command, see flush()
+  int[] entries; // and its entry in the range
+  float cameraX, cameraY, cameraZ;
+
+  // Group of the commands being added, i.e the room slot. When keyByGroup is set the group becomes the most
+  // significant part of the key: the commands of a group stay contiguous and can be timed on the gpu.
+  int group;
+  boolean keyByGroup;
+
+  // Counts of the last flush
+  int drawCalls;
+  long triangles;
+
+  RenderQueue(int capacity) {
+    ints = new int[capacity * CMD_INTS];
+    floats = new float[capacity * CMD_FLOATS];
+    keys = new long[capacity];
+    order = new int[capacity];
+    keysTmp = new long[capacity];
+    orderTmp = new int[capacity];
+    runs = new int[capacity];
+    entries = new int[capacity];
+  }
+
+  void add(int program, int vao, int texture, int count, int indexType, int offset, int baseVertex, int instances,
+           float wx, float wy, float baseZ, float layer, float dx, float dy, float dz) {
+    if (size == keys.length) {
+      grow();
+    }
+    int i = size * CMD_INTS;
+    ints[i + CMD_PROGRAM] = program;
+    ints[i + CMD_VAO] = vao;
+    ints[i + CMD_TEXTURE] = texture;
+    ints[i + CMD_COUNT] = count;
+    ints[i + CMD_INSTANCES] = instances;
+    ints[i + CMD_GROUP] = group;
+    ints[i + CMD_INDEX_TYPE] = indexType;
+    ints[i + CMD_OFFSET] = offset;
+    ints[i + CMD_BASE_VERTEX] = baseVertex;
+    int f = size * CMD_FLOATS;
+    floats[f + CMD_WORLD_X] = wx;
+    floats[f + CMD_WORLD_Y] = wy;
+    floats[f + CMD_BASE_Z] = baseZ;
+    floats[f + CMD_DX] = dx;
+    floats[f + CMD_DY] = dy;
+    floats[f + CMD_DZ] = dz;
+    floats[f + CMD_LAYER] = layer;
+    long key = key(program, texture, vao, -baseZ);
+    if (keyByGroup) {
+      key = ((long) group << (Long.SIZE - KEY_GROUP_BITS)) | (key >>> KEY_GROUP_BITS);
+    }
+    keys[size] = key;
+    order[size] = size;
+    size++;
+  }
+
+  // Moves the commands of o at the end of this queue, o is left empty.
+  void append(RenderQueue o) {
+    while (keys.length < size + o.size) {
+      grow();
+    }
+    System.arraycopy(o.ints, 0, ints, size * CMD_INTS, o.size * CMD_INTS);
+    System.arraycopy(o.floats, 0, floats, size * CMD_FLOATS, o.size * CMD_FLOATS);
+    System.arraycopy(o.keys, 0, keys, size, o.size);
+    for (int i = 0; i < o.size; i++) {
+      order[size + i] = size + i;
+    }
+    size += o.size;
+    o.size = 0;
+  }
+
+  // depth is the distance to the camera: front to back inside a given state.
+  static long key(int program, int texture, int vao, float depth) {
+    long d = (long) Math.min(Math.max(depth * KEY_DEPTH_SCALE, 0), (1 << KEY_DEPTH_BITS) - 1);
+    return ((long) (program & ((1 << KEY_PROGRAM_BITS) - 1)) << KEY_PROGRAM_SHIFT)
+         | ((long) (texture & ((1 << KEY_TEXTURE_BITS) - 1)) << KEY_TEXTURE_SHIFT)
+         | ((long) (vao & ((1 << KEY_VAO_BITS) - 1)) << KEY_VAO_SHIFT)
+         | d;
+  }
+
+  void grow() {
+    int capacity = 2 * keys.length;
+    ints = Arrays.copyOf(ints, capacity * CMD_INTS);
+    floats = Arrays.copyOf(floats, capacity * CMD_FLOATS);
+    keys = Arrays.copyOf(keys, capacity);
+    order = Arrays.copyOf(order, capacity);
+    keysTmp = new long[capacity];
+    orderTmp = new int[capacity];
+    runs = new int[capacity];
+    entries = new int[capacity];
+  }
+
+  // LSD radix sort of (key, order) pairs, 8 bits per pass. Passes where every key has the same digit are
+  // skipped, which is most of them since few programs, textures and vaos are alive at once.
+  void sort() {
+    for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < size; i++) {
+        counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+      }
+      if (size == 0 || counts[(int) (keys[0] >>> shift) & (RADIX - 1)] == size) {
+        continue;
+      }
+      int sum = 0;
+      for (int b = 0; b < RADIX; b++) {
+        int c = counts[b];
+        counts[b] = sum;
+        sum += c;
+      }
+      for (int i = 0; i < size; i++) {
+        int p = counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+        keysTmp[p] = keys[i];
+        orderTmp[p] = order[i];
+      }
+      long[] k = keys;
+      keys = keysTmp;
+      keysTmp = k;
+      int[] o = order;
+      order = orderTmp;
+      orderTmp = o;
+    }
+  }
+
+  // Sorts and sends every command to GL, then empties the queue.
+  // Post-projection translation of the camera, shared by all draws through the Frame block. Draws keep the
+  // remainder, i.e their room offset.
+  void camera(float x, float y, float z) {
+    cameraX = x;
+    cameraY = y;
+    cameraZ = z;
+  }
+
+  void flush() {
+    sort();
+    UniformBlocks.frame(Game.proj, cameraX, cameraY, cameraZ);
+    // One write of the per draw constants of the whole frame. Consecutive commands which may go out as one draw,
+    // see mergeable(), form a run: their constants are consecutive entries of one range of the Draw block, and
+    // each one draws with its entry as base instance. Consecutive commands with the same constants share them.
+    boolean merge = IndirectDraws.supported();
+    UniformBlocks.beginDraws(size);
+    if (merge) {
+      IndirectDraws.begin(size);
+    }
+    int previous = -1; // floats of the command of the last entry
+    int first = -1;    // command of the first entry of the run, -1 once nothing may join the run
+    int run = 0;
+    int length = 0;    // entries of the run
+    for (int n = 0; n < size; n++) {
+      int f = order[n] * CMD_FLOATS;
+      boolean same = previous >= 0 && Arrays.equals(floats, f, f + CMD_FLOATS, floats, previous, previous + CMD_FLOATS);
+      boolean joins = merge && first >= 0 && mergeable(first, n) && (same || length < UniformBlocks.RUN_DRAWS);
+      if (!joins && !(same && length == 1)) {
+        run = UniformBlocks.beginRun();
+        first = n;
+        length = 0;
+        same = false;
+      } else if (!joins) {
+        first = -1; // drawn alone with the first entry
+      }
+      if (!same) {
+        UniformBlocks.addDraw(floats[f + CMD_WORLD_X], floats[f + CMD_WORLD_Y], floats[f + CMD_BASE_Z] - Config.BASE_Z,
+            floats[f + CMD_LAYER], floats[f + CMD_DX] - cameraX, floats[f + CMD_DY] - cameraY, floats[f + CMD_DZ] - cameraZ);
+        previous = f;
+        length++;
+      }
+      runs[n] = run;
+      entries[n] = length - 1;
+      if (merge) {
+        int i = order[n] * CMD_INTS;
+        IndirectDraws.add(ints[i + CMD_COUNT], Math.max(ints[i + CMD_INSTANCES], 1),
+            ints[i + CMD_OFFSET] / VertexFormat.indexBytes(ints[i + CMD_INDEX_TYPE]), ints[i + CMD_BASE_VERTEX], entries[n]);
+      }
+    }
+    if (merge) {
+      IndirectDraws.end();
+    }
+    UniformBlocks.endDraws();
+
+    drawCalls = 0;
+    triangles = 0;
+    int timedGroup = -1;
+    for (int n = 0; n < size; n++) {
+      int i = order[n] * CMD_INTS;
+      if (keyByGroup && ints[i + CMD_GROUP] != timedGroup) {
+        timedGroup = ints[i + CMD_GROUP];
+        FrameProfiler.endGpu();
+        FrameProfiler.beginGpu(timedGroup);
+      }
+      GLState.useProgram(ints[i + CMD_PROGRAM]);
+      UniformBlocks.bindDraw(runs[n]);
+      GLUtil.vaoBind(ints[i + CMD_VAO]);
+      GLUtil.activeTexture(0);
+      GLUtil.textureBind(Mesh.textureTarget, ints[i + CMD_TEXTURE]);
+      int instances = ints[i + CMD_INSTANCES];
+      int type = ints[i + CMD_INDEX_TYPE];
+      int offset = ints[i + CMD_OFFSET];
+      int baseVertex = ints[i + CMD_BASE_VERTEX];
+      drawCalls++;
+      if (instances != NOT_INSTANCED) {
+        if (baseVertex == 0) {
+          GLUtil.gl.glDrawElementsInstanced(GL11.GL_TRIANGLES, ints[i + CMD_COUNT], type, offset, instances);
+        } else {
+          GLUtil.gl.glDrawElementsInstancedBaseVertex(GL11.GL_TRIANGLES, ints[i + CMD_COUNT], type, offset, instances,
+              baseVertex);
+        }
+        triangles += (long) (ints[i + CMD_COUNT] / 3) * instances;
+        continue;
+      }
+      int last = n;
+      while (merge && last + 1 < size && runs[last + 1] == runs[n] && mergeable(n, last + 1)) {
+        last++;
+      }
+      if (last > n) {
+        n = multiDraw(n, last);
+      } else if (baseVertex == 0) {
+        GLUtil.gl.glDrawElements(GL11.GL_TRIANGLES, ints[i + CMD_COUNT], type, offset);
+        triangles += ints[i + CMD_COUNT] / 3;
+      } else {
+        GLUtil.gl.glDrawElementsBaseVertex(GL11.GL_TRIANGLES, ints[i + CMD_COUNT], type, offset, baseVertex);
+        triangles += ints[i + CMD_COUNT] / 3;
+      }
+    }
+    FrameProfiler.endGpu();
+    size = 0;
+  }
+
+  // Sorted commands a and b are drawn with the same state, i.e the same vao of a MeshPool or of the StreamBuffer,
+  // one with the draw attribute, and neither is instanced.
+  boolean mergeable(int a, int b) {
+    int i = order[a] * CMD_INTS;
+    int j = order[b] * CMD_INTS;
+    return IndirectDraws.vaos.get(ints[i + CMD_VAO])
+        && ints[i + CMD_INSTANCES] == NOT_INSTANCED
+        && ints[j + CMD_INSTANCES] == NOT_INSTANCED
+        && ints[i + CMD_PROGRAM] == ints[j + CMD_PROGRAM]
+        && ints[i + CMD_VAO] == ints[j + CMD_VAO]
+        && ints[i + CMD_TEXTURE] == ints[j + CMD_TEXTURE]
+        && ints[i + CMD_INDEX_TYPE] == ints[j + CMD_INDEX_TYPE]
+        && ints[i + CMD_GROUP] == ints[j + CMD_GROUP];
+  }
+
+  // One draw call for the sorted commands first to last, whose indirect commands are consecutive. Returns last.
+  int multiDraw(int first, int last) {
+    int n = last - first + 1;
+    for (int d = first; d <= last; d++) {
+      triangles += ints[order[d] * CMD_INTS + CMD_COUNT] / 3;
+    }
+    GLUtil.gl.glMultiDrawElementsIndirect(GL11.GL_TRIANGLES, ints[order[first] * CMD_INTS + CMD_INDEX_TYPE],
+        IndirectDraws.offset(first), n, 0);
+    MeshPool.multiDraws++;
+    MeshPool.mergedDraws += n;
+    return last;
+  }
+}
+
+
+// Per frame timings: cpu time of every phase and of every room submission, gpu time of every room measured with
+// GL_TIME_ELAPSED queries, draw and triangle counts. Queries are read back QUERY_LATENCY frames later and dropped if
+// still not available, so the pipeline never waits on them. Samples go to ring buffers holding the last FRAMES
+// frames, summarized as p50 / p95 / p99.
+final class FrameProfiler {
+  static final int FRAMES = 1024; // power of 2
+  static final int MAX_ROOMS = 64;
+  static final int QUERY_LATENCY = 3;
+  static final long UNKNOWN = -1;
+
+  static final int INPUT = 0, SIMULATION = 1, SUBMIT = 2, FLUSH = 3, SWAP = 4, PHASES = 5;
+  static final String[] PHASE_NAMES = { "input", "simulation", "submit", "flush", "swap" };
+
+  static final int OVERLAY_BARS = 120;
+  static final int OVERLAY_BAR_WIDTH = 3;
+  static final int OVERLAY_MARGIN = 8;
+  static final long OVERLAY_NANOS_PER_PIXEL = 100_000;
+  static final long FRAME_BUDGET_NANOS = 1_000_000_000L / (Config.FPS_CAP > 0 ? Config.FPS_CAP : Config.SIM_HZ);
+
+  static boolean enabled = Config.PROFILER;
+  static boolean overlay = Config.PROFILER_OVERLAY;
+  static int dumpPeriod = Config.PROFILER_DUMP_PERIOD;
+
+  static long frame = -1; // frame being recorded
+  static int slot;        // ring index of that frame
+  static int rooms;       // highest room slot seen + 1
+  static long lastDumped = -1;
+
+  static final long[] frameNanos = new long[FRAMES];
+  static final long[][] phaseNanos = new long[PHASES][FRAMES];
+  static final long[][] roomCpuNanos = new long[MAX_ROOMS][FRAMES];
+  static final long[][] roomGpuNanos = new long[MAX_ROOMS][FRAMES];
+  static final long[] gpuNanos = new long[FRAMES];
+  static final long[] drawCalls = new long[FRAMES];
+  static final long[] triangles = new long[FRAMES];
+  static final long[] scratch = new long[FRAMES];
+
+  static long frameStart;
+  static long phaseStart;
+  static long roomStart;
+
+  // One query per room for each of the QUERY_LATENCY frames in flight, created on first use.
+  static int[][] queries;
+  static final boolean[][] issued = new boolean[QUERY_LATENCY][MAX_ROOMS];
+  static int gpuRoom = -1;
+
+  static int ring(long f) {
+    return (int) (f & (FRAMES - 1));
+  }
+
+  static void beginFrame() {
+    if (!enabled) {
+      return;
+    }
+    frame++;
+    collectGpu();
+    slot = ring(frame);
+    for (int p = 0; p < PHASES; p++) {
+      phaseNanos[p][slot] = 0;
+    }
+    for (int r = 0; r < MAX_ROOMS; r++) {
+      roomCpuNanos[r][slot] = 0;
+      roomGpuNanos[r][slot] = UNKNOWN;
+    }
+    gpuNanos[slot] = UNKNOWN;
+    frameStart = System.nanoTime();
+  }
+
+  static void endFrame(long draws, long tris) {
+    if (!enabled) {
+      return;
+    }
+    frameNanos[slot] = System.nanoTime() - frameStart;
+    drawCalls[slot] = draws;
+    triangles[slot] = tris;
+    if (dumpPeriod > 0 && frame - lastDumped >= dumpPeriod + QUERY_LATENCY) {
+      dump();
+    }
+  }
+
+  static void begin(int phase) {
+    phaseStart = System.nanoTime();
+  }
+
+  static void end(int phase) {
+    if (enabled) {
+      phaseNanos[phase][slot] += System.nanoTime() - phaseStart;
+    }
+  }
+
+  static void beginRoom(int room) {
+    roomStart = System.nanoTime();
+  }
+
+  static void endRoom(int room) {
+    roomCpu(room, System.nanoTime() - roomStart);
+  }
+
+  // Cpu time of a room timed elsewhere, e.g on a record worker. On the GL thread.
+  static void roomCpu(int room, long nanos) {
+    if (enabled && room < MAX_ROOMS) {
+      roomCpuNanos[room][slot] += nanos;
+      rooms = Math.max(rooms, room + 1);
+    }
+  }
+
+  // Gpu timing, called by RenderQueue.flush() around the draws of every room.
+
+  static void beginGpu(int room) {
+    if (!enabled || room >= MAX_ROOMS) {
+      return;
+    }
+    if (queries == null) {
+      queries = new int[QUERY_LATENCY][MAX_ROOMS];
+      for (int[] set : queries) {
+        for (int r = 0; r < MAX_ROOMS; r++) {
+          set[r] = GLUtil.gl.glGenQueries();
+        }
+      }
+    }
+    int set = (int) (frame % QUERY_LATENCY);
+    GLUtil.gl.glBeginQuery(GL33.GL_TIME_ELAPSED, queries[set][room]);
+    issued[set][room] = true;
+    gpuRoom = room;
+  }
+
+  static void endGpu() {
+    if (gpuRoom < 0) {
+      return;
+    }
+    GLUtil.gl.glEndQuery(GL33.GL_TIME_ELAPSED);
+    gpuRoom = -1;
+  }
+
+  // Reads the queries issued QUERY_LATENCY frames ago, whose set is about to be reused by the current frame.
+  static void collectGpu() {
+    int set = (int) (frame % QUERY_LATENCY);
+    long f = frame - QUERY_LATENCY;
+    if (queries == null || f < 0) {
+      return;
+    }
+    int s = ring(f);
+    long total = 0;
+    for (int r = 0; r < MAX_ROOMS; r++) {
+      if (!issued[set][r]) {
+        continue;
+      }
+      issued[set][r] = false;
+      int id = queries[set][r];
+      if (GLUtil.gl.glGetQueryObjecti(id, GL15.GL_QUERY_RESULT_AVAILABLE) == GL11.GL_FALSE) {
+        total = UNKNOWN; // dropped rather than stalling
+        continue;
+      }
+      long ns = GLUtil.gl.glGetQueryObjectui64(id, GL15.GL_QUERY_RESULT);
+      roomGpuNanos[r][s] = ns;
+      if (total != UNKNOWN) {
+        total += ns;
+      }
+    }
+    gpuNanos[s] = total;
+  }
+
+  // Reporting
+
+  // p-th percentile of the known samples of the last FRAMES completed frames, UNKNOWN if there are none.
+  static long percentile(long[] samples, double p) {
+    long n = Math.min(frame, FRAMES);
+    int k = 0;
+    for (long f = frame - n; f < frame; f++) {
+      long v = samples[ring(f)];
+      if (v != UNKNOWN) {
+        scratch[k++] = v;
+      }
+    }
+    if (k == 0) {
+      return UNKNOWN;
+    }
+    Arrays.sort(scratch, 0, k);
+    return scratch[(int) Math.min(k - 1, Math.round(p * (k - 1)))];
+  }
+
+  static String millis(long nanos) {
+    return nanos == UNKNOWN ? "-" : String.format("%.3f", nanos / 1e6);
+  }
+
+  static String percentiles(long[] samples) {
+    return String.format("p50 %s p95 %s p99 %s ms",
+        millis(percentile(samples, 0.50)), millis(percentile(samples, 0.95)), millis(percentile(samples, 0.99)));
+  }
+
+  // One line, e.g for the window title.
+  static String summary() {
+    return String.format("frame %s | gpu %s | %d draws", percentiles(frameNanos), percentiles(gpuNanos),
+        frame > 0 ? drawCalls[ring(frame - 1)] : 0);
+  }
+
+  static String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("frames %d, last %d draws %d triangles%n", frame + 1,
+        drawCalls[slot], triangles[slot]));
+    sb.append(String.format("  %-12s %s%n", "frame", percentiles(frameNanos)));
+    for (int p = 0; p < PHASES; p++) {
+      sb.append(String.format("  %-12s %s%n", PHASE_NAMES[p], percentiles(phaseNanos[p])));
+    }
+    sb.append(String.format("  %-12s %s%n", "gpu", percentiles(gpuNanos)));
+    for (int r = 0; r < rooms; r++) {
+      sb.append(String.format("  room %-7d cpu %s, gpu %s%n", r, percentiles(roomCpuNanos[r]), percentiles(roomGpuNanos[r])));
+    }
+    return sb.toString();
+  }
+
+  // Appends the frames completed since the last dump to the csv file, and rewrites the json summary. Only frames
+  // whose gpu queries have been read back are dumped.
+  static void dump() {
+    long last = frame - QUERY_LATENCY;
+    long first = Math.max(lastDumped + 1, last - FRAMES + 1);
+    boolean header = !Files.exists(Paths.get(Config.PROFILER_CSV));
+    StringBuilder csv = new StringBuilder();
+    if (header) {
+      csv.append("frame,frame_ns");
+      for (String name : PHASE_NAMES) {
+        csv.append(',').append(name).append("_ns");
+      }
+      csv.append(",gpu_ns,draws,triangles");
+      for (int r = 0; r < rooms; r++) {
+        csv.append(",room").append(r).append("_cpu_ns,room").append(r).append("_gpu_ns");
+      }
+      csv.append('\n');
+    }
+    for (long f = first; f <= last; f++) {
+      int s = ring(f);
+      csv.append(f).append(',').append(frameNanos[s]);
+      for (int p = 0; p < PHASES; p++) {
+        csv.append(',').append(phaseNanos[p][s]);
+      }
+      csv.append(',').append(gpuNanos[s]).append(',').append(drawCalls[s]).append(',').append(triangles[s]);
+      for (int r = 0; r < rooms; r++) {
+        csv.append(',').append(roomCpuNanos[r][s]).append(',').append(roomGpuNanos[r][s]);
+      }
+      csv.append('\n');
+    }
+    lastDumped = last;
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"frames\": ").append(frame + 1).append(",\n");
+    appendJson(json, "frame", frameNanos);
+    for (int p = 0; p < PHASES; p++) {
+      appendJson(json, PHASE_NAMES[p], phaseNanos[p]);
+    }
+    appendJson(json, "gpu", gpuNanos);
+    for (int r = 0; r < rooms; r++) {
+      appendJson(json, "room" + r + "_cpu", roomCpuNanos[r]);
+      appendJson(json, "room" + r + "_gpu", roomGpuNanos[r]);
+    }
+    json.setLength(json.length() - 2);
+    json.append("\n}\n");
+
+    try {
+      Files.write(Paths.get(Config.PROFILER_CSV), csv.toString().getBytes(StandardCharsets.UTF_8),
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      Files.write(Paths.get(Config.PROFILER_JSON), json.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      System.err.println("profiler dump failed: " + e);
+    }
+  }
+
+  static void appendJson(StringBuilder json, String name, long[] samples) {
+    json.append(String.format("  \"%s\": { \"p50_ns\": %d, \"p95_ns\": %d, \"p99_ns\": %d },%n",
+        name, percentile(samples, 0.50), percentile(samples, 0.95), percentile(samples, 0.99)));
+  }
+
+  // Frame time graph in the bottom left corner, one bar per frame, drawn with scissored clears so that it needs
+  // neither a shader nor geometry. Bars are green under the frame budget, red above, the white line is the budget.
+  static void drawOverlay() {
+    if (!enabled || !overlay) {
+      return;
+    }
+    GLUtil.gl.glEnable(GL11.GL_SCISSOR_TEST);
+    for (int i = 1; i <= OVERLAY_BARS && frame - i >= 0; i++) {
+      long ns = frameNanos[ring(frame - i)];
+      int h = (int) Math.max(1, ns / OVERLAY_NANOS_PER_PIXEL);
+      int x = OVERLAY_MARGIN + (OVERLAY_BARS - i) * OVERLAY_BAR_WIDTH;
+      GLUtil.gl.glScissor(x, OVERLAY_MARGIN, OVERLAY_BAR_WIDTH - 1, h);
+      if (ns <= FRAME_BUDGET_NANOS) {
+        GLUtil.gl.glClearColor(0.2f, 0.8f, 0.2f, 1);
+      } else {
+        GLUtil.gl.glClearColor(0.9f, 0.2f, 0.2f, 1);
+      }
+      GLUtil.gl.glClear(GL11.GL_COLOR_BUFFER_BIT);
+    }
+    GLUtil.gl.glScissor(OVERLAY_MARGIN, OVERLAY_MARGIN + (int) (FRAME_BUDGET_NANOS / OVERLAY_NANOS_PER_PIXEL),
+        OVERLAY_BARS * OVERLAY_BAR_WIDTH, 1);
+    GLUtil.gl.glClearColor(1, 1, 1, 1);
+    GLUtil.gl.glClear(GL11.GL_COLOR_BUFFER_BIT);
+    GLUtil.gl.glDisable(GL11.GL_SCISSOR_TEST);
+  }
+}
+
+
+// Clip planes of the static_room vertex transform, clip = diag(1, 1, 1, s) * translate(t) * proj where t is the
+// post-projection translation of a room. Planes are combinations of the clip matrix rows (Gribb & Hartmann) for
+// the NDC rectangle [l, r] x [b, t], the whole screen by default. A point p is inside when a.p + d >= 0 for all.
+final class Frustum {
+  static final int PLANES = 6;
+  static final int BOX = 6; // minX, minY, minZ, maxX, maxY, maxZ
+
+  final float[] planes = new float[4 * PLANES]; // a, b, c, d
+
+  void set(Matrix4f proj, float tx, float ty, float tz, float s) {
+    set(proj, tx, ty, tz, s, -1, 1, -1, 1);
+  }
+
+  void set(Matrix4f p, float tx, float ty, float tz, float s, float l, float r, float b, float t) {
+    // Rows of the clip matrix. LWJGL matrices are column major: mCR is column C, row R.
+    float wx = s * p.m03, wy = s * p.m13, wz = s * p.m23, ww = s * p.m33;
+    float xx = p.m00 + tx * p.m03, xy = p.m10 + tx * p.m13, xz = p.m20 + tx * p.m23, xw = p.m30 + tx * p.m33;
+    float yx = p.m01 + ty * p.m03, yy = p.m11 + ty * p.m13, yz = p.m21 + ty * p.m23, yw = p.m31 + ty * p.m33;
+    float zx = p.m02 + tz * p.m03, zy = p.m12 + tz * p.m13, zz = p.m22 + tz * p.m23, zw = p.m32 + tz * p.m33;
+    plane(0, xx - l * wx, xy - l * wy, xz - l * wz, xw - l * ww); // x >= l w
+    plane(1, r * wx - xx, r * wy - xy, r * wz - xz, r * ww - xw); // x <= r w
+    plane(2, yx - b * wx, yy - b * wy, yz - b * wz, yw - b * ww); // y >= b w
+    plane(3, t * wx - yx, t * wy - yy, t * wz - yz, t * ww - yw); // y <= t w
+    plane(4, zx + wx, zy + wy, zz + wz, zw + ww);                 // z >= -w
+    plane(5, wx - zx, wy - zy, wz - zz, ww - zw);                 // z <= w
+  }
+
+  void plane(int i, float a, float b, float c, float d) {
+    planes[4 * i + 0] = a;
+    planes[4 * i + 1] = b;
+    planes[4 * i + 2] = c;
+    planes[4 * i + 3] = d;
+  }
+
+  // False when the box is entirely behind one plane. Conservative: a box crossing two planes outside of the
+  // frustum corner still intersects.
+  boolean intersects(float[] box) {
+    for (int i = 0; i < PLANES; i++) {
+      float a = planes[4 * i], b = planes[4 * i + 1], c = planes[4 * i + 2], d = planes[4 * i + 3];
+      float dist = Math.max(a * box[0], a * box[3]) + Math.max(b * box[1], b * box[4]) + Math.max(c * box[2], c * box[5]) + d;
+      if (dist < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Same test for the packed boxes [from, to) of SoA arrays, into inside[]. One pass per plane without branches
+  // nor early exits, which the JIT can vectorize.
+  void cull(float[] minX, float[] minY, float[] minZ, float[] maxX, float[] maxY, float[] maxZ,
+            int from, int to, boolean[] inside) {
+    Arrays.fill(inside, from, to, true);
+    for (int i = 0; i < PLANES; i++) {
+      float a = planes[4 * i], b = planes[4 * i + 1], c = planes[4 * i + 2], d = planes[4 * i + 3];
+      for (int j = from; j < to; j++) {
+        float dist = Math.max(a * minX[j], a * maxX[j]) + Math.max(b * minY[j], b * maxY[j])
+                   + Math.max(c * minZ[j], c * maxZ[j]) + d;
+        inside[j] &= dist >= 0;
+      }
+    }
+  }
+
+  // Screen rectangle [l, r] x [b, t] in NDC covered by the box, clamped to [-1, 1]. Boxes crossing the eye plane
+  // cover the whole screen.
+  static void project(Matrix4f p, float tx, float ty, float tz, float s, float[] box, float[] rect) {
+    rect[0] = rect[2] = Float.POSITIVE_INFINITY;
+    rect[1] = rect[3] = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < 8; i++) {
+      float x = box[(i & 1) == 0 ? 0 : 3], y = box[(i & 2) == 0 ? 1 : 4], z = box[(i & 4) == 0 ? 2 : 5];
+      float w = p.m03 * x + p.m13 * y + p.m23 * z + p.m33;
+      float cx = p.m00 * x + p.m10 * y + p.m20 * z + p.m30 + tx * w;
+      float cy = p.m01 * x + p.m11 * y + p.m21 * z + p.m31 + ty * w;
+      w *= s;
+      if (w <= 0) {
+        rect[0] = rect[2] = -1;
+        rect[1] = rect[3] = 1;
+        return;
+      }
+      rect[0] = Math.min(rect[0], cx / w);
+      rect[1] = Math.max(rect[1], cx / w);
+      rect[2] = Math.min(rect[2], cy / w);
+      rect[3] = Math.max(rect[3], cy / w);
+    }
+    rect[0] = Math.max(rect[0], -1);
+    rect[1] = Math.min(rect[1], 1);
+    rect[2] = Math.max(rect[2], -1);
+    rect[3] = Math.min(rect[3], 1);
+  }
+
+  static void boundsOf(float[] positions, float[] box) {
+    Arrays.fill(box, 0, 3, Float.POSITIVE_INFINITY);
+    Arrays.fill(box, 3, 6, Float.NEGATIVE_INFINITY);
+    for (int i = 0; i < positions.length; i += K.float_per_vertex) {
+      for (int c = 0; c < 3; c++) {
+        box[c] = Math.min(box[c], positions[i + c]);
+        box[3 + c] = Math.max(box[3 + c], positions[i + c]);
+      }
+    }
+  }
+}
+
+
+// The objects of a room as a structure of primitive arrays, 13 bytes per object: a mesh id, the tile packed in one
+// int, the material and the result of the last cull, each in its own column so a pass only touches what it reads.
+// Adding is amortized O(1), removing moves
+// the last object into the hole, so indices only hold until the next remove. group() sorts the objects by mesh for
+// the instance batches. Meshes get their id on their first placement and are found back in meshes[].
+final class ObjectStore {
+  // Tile: x and y in 12 bits, z in 8 bits, all signed
+  static final int XY_BITS = 12;
+  static final int Z_BITS = 8;
+  static final int XY_MAX = (1 << (XY_BITS - 1)) - 1;
+  static final int Z_MAX = (1 << (Z_BITS - 1)) - 1;
+
+  static Mesh[] meshes = new Mesh[8];
+  static int meshCount;
+
+  int size;
+  int[] mesh = new int[8];
+  int[] tile = new int[8];
+  int[] material = new int[8];
+  boolean[] visible = new boolean[8];
+
+  // Objects by mesh: the objects of group g are grouped[groupStart[g]] .. grouped[groupStart[g + 1] - 1], all of
+  // mesh groupMesh[g]. Rebuilt by group() after objects are added or removed.
+  int groups;
+  int[] groupMesh = new int[0];
+  int[] groupStart = new int[1];
+  int[] grouped = new int[0];
+  boolean groupsDirty;
+
+  static synchronized int idOf(Mesh m) {
+    if (m.id < 0) {
+      if (meshCount == meshes.length) {
+        meshes = Arrays.copyOf(meshes, 2 * meshCount);
+      }
+      meshes[meshCount] = m;
+      m.id = meshCount++;
+    }
+    return m.id;
+  }
+
+  static int pack(int x, int y, int z) {
+    if (Math.abs(x) > XY_MAX || Math.abs(y) > XY_MAX || Math.abs(z) > Z_MAX) {
+      throw new IllegalArgumentException(String.format("tile (%d, %d, %d) out of range", x, y, z));
+    }
+    return (x & ((1 << XY_BITS) - 1)) | ((y & ((1 << XY_BITS) - 1)) << XY_BITS) | (z << (2 * XY_BITS));
+  }
+
+  int add(Mesh m, int x, int y, int z, int material) {
+    if (size == mesh.length) {
+      mesh = Arrays.copyOf(mesh, 2 * size);
+      tile = Arrays.copyOf(tile, 2 * size);
+      this.material = Arrays.copyOf(this.material, 2 * size);
+      visible = Arrays.copyOf(visible, 2 * size);
+    }
+    mesh[size] = idOf(m);
+    tile[size] = pack(x, y, z);
+    this.material[size] = material;
+    visible[size] = true;
+    groupsDirty = true;
+    return size++;
+  }
+
+  void remove(int i) {
+    size--;
+    mesh[i] = mesh[size];
+    tile[i] = tile[size];
+    material[i] = material[size];
+    visible[i] = visible[size];
+    groupsDirty = true;
+  }
+
+  void clear() {
+    size = 0;
+    groupsDirty = true;
+  }
+
+  Mesh mesh(int i) {
+    return meshes[mesh[i]];
+  }
+
+  // Sign extension by shifts, no branch.
+  int x(int i) {
+    return (tile[i] << (32 - XY_BITS)) >> (32 - XY_BITS);
+  }
+
+  int y(int i) {
+    return (tile[i] << (32 - 2 * XY_BITS)) >> (32 - XY_BITS);
+  }
+
+  int z(int i) {
+    return tile[i] >> (2 * XY_BITS);
+  }
+
+  int material(int i) {
+    return material[i];
+  }
+
+  // Counting sort of the objects by mesh id.
+  void group() {
+    if (!groupsDirty) {
+      return;
+    }
+    int[] counts = new int[meshCount + 1];
+    for (int i = 0; i < size; i++) {
+      counts[mesh[i] + 1]++;
+    }
+    groups = 0;
+    for (int m = 0; m < meshCount; m++) {
+      groups += counts[m + 1] > 0 ? 1 : 0;
+      counts[m + 1] += counts[m];
+    }
+    groupMesh = new int[groups];
+    groupStart = new int[groups + 1];
+    for (int m = 0, g = 0; m < meshCount; m++) {
+      if (counts[m + 1] > counts[m]) {
+        groupMesh[g] = m;
+        groupStart[++g] = counts[m + 1];
+      }
+    }
+    grouped = new int[size];
+    for (int i = 0; i < size; i++) {
+      grouped[counts[mesh[i]]++] = i;
+    }
+    groupsDirty = false;
+  }
+}
+
+
+// Which object occupies every tile of a room, for collision, picking and area queries without scanning the objects.
+// Object (x, y, z) fills the tile [x, x + 1) x [y, y + 1) x [z, z + 1). The index covers a box of tiles, grown when
+// an object lands outside of it, with a bitset of occupied tiles per z level, rows padded to whole words, and the
+// object index of every tile. A tile holding several objects maps to one of them. Kept up to date by Room.addObj()
+// and Room.removeObj().
+final class TileIndex {
+  // Covered box: x in [x0, x0 + w), w a multiple of 64, same for y and z
+  int x0, y0, z0;
+  int w, h, d;
+  int words; // per row
+  long[][] levels = new long[0][]; // row y of level z starts at word (y - y0) * words of levels[z - z0]
+  int[] objects = new int[0];      // object index + 1 of tile ((z - z0) * h + y - y0) * w + x - x0, 0 when free
+  int count;    // objects indexed
+  int occupied; // tiles with at least one object
+
+  float hitT; // ray parameter of the last pick() hit
+
+  // Tile number, -1 when (x, y, z) is not covered.
+  int tile(int x, int y, int z) {
+    int tx = x - x0, ty = y - y0, tz = z - z0;
+    if (Integer.compareUnsigned(tx, w) >= 0 || Integer.compareUnsigned(ty, h) >= 0 || Integer.compareUnsigned(tz, d) >= 0) {
+      return -1;
+    }
+    return (tz * h + ty) * w + tx;
+  }
+
+  void add(int object, int x, int y, int z) {
+    cover(x, y, z);
+    int t = tile(x, y, z);
+    if (objects[t] == 0) {
+      levels[z - z0][(y - y0) * words + ((x - x0) >>> 6)] |= 1L << (x - x0);
+      occupied++;
+    }
+    objects[t] = object + 1;
+    count++;
+  }
+
+  // Before store.remove(i): forgets object i, and renames the last object of the store, which takes its index.
+  void remove(ObjectStore store, int i) {
+    int x = store.x(i), y = store.y(i), z = store.z(i);
+    int t = tile(x, y, z);
+    if (objects[t] == i + 1) {
+      int other = count > occupied ? stackedOn(store, i) : -1;
+      if (other >= 0) {
+        objects[t] = other + 1;
+      } else {
+        objects[t] = 0;
+        levels[z - z0][(y - y0) * words + ((x - x0) >>> 6)] &= ~(1L << (x - x0));
+        occupied--;
+      }
+    }
+    count--;
+    int last = store.size - 1;
+    int moved = tile(store.x(last), store.y(last), store.z(last));
+    if (last != i && objects[moved] == last + 1) {
+      objects[moved] = i + 1;
+    }
+  }
+
+  // Another object on the tile of object i, -1 if none. Only needed when some tile holds several objects.
+  static int stackedOn(ObjectStore store, int i) {
+    int tile = store.tile[i];
+    for (int j = 0; j < store.size; j++) {
+      if (j != i && store.tile[j] == tile) {
+        return j;
+      }
+    }
+    return -1;
+  }
+
+  boolean occupied(int x, int y, int z) {
+    int t = tile(x, y, z);
+    return t >= 0 && objects[t] != 0;
+  }
+
+  // Object index at (x, y, z), -1 when free.
+  int at(int x, int y, int z) {
+    int t = tile(x, y, z);
+    return t < 0 ? -1 : objects[t] - 1;
+  }
+
+  // Occupied tiles in the box [xa, xb] x [ya, yb] x [za, zb], bounds included.
+  int count(int xa, int ya, int za, int xb, int yb, int zb) {
+    return query(xa, ya, za, xb, yb, zb, null);
+  }
+
+  // Same, and writes the objects of the first out.length occupied tiles to out, level by level and row by row.
+  int query(int xa, int ya, int za, int xb, int yb, int zb, int[] out) {
+    xa = Math.max(xa - x0, 0);
+    xb = Math.min(xb - x0, w - 1);
+    ya = Math.max(ya - y0, 0);
+    yb = Math.min(yb - y0, h - 1);
+    za = Math.max(za - z0, 0);
+    zb = Math.min(zb - z0, d - 1);
+    if (xa > xb || ya > yb || za > zb) {
+      return 0;
+    }
+    int first = xa >>> 6, last = xb >>> 6;
+    long firstMask = -1L << xa, lastMask = -1L >>> (63 - (xb & 63));
+    int n = 0;
+    for (int z = za; z <= zb; z++) {
+      long[] level = levels[z];
+      for (int y = ya; y <= yb; y++) {
+        int row = y * words;
+        for (int k = first; k <= last; k++) {
+          long bits = level[row + k];
+          if (k == first) {
+            bits &= firstMask;
+          }
+          if (k == last) {
+            bits &= lastMask;
+          }
+          if (out == null) {
+            n += Long.bitCount(bits);
+            continue;
+          }
+          for (; bits != 0; bits &= bits - 1) {
+            if (n < out.length) {
+              out[n] = objects[(z * h + y) * w + 64 * k + Long.numberOfTrailingZeros(bits)] - 1;
+            }
+            n++;
+          }
+        }
+      }
+    }
+    return n;
+  }
+
+  // First object hit by the ray o + t * dir, 0 <= t <= maxT, in tile units. Walks the tiles the ray crosses in
+  // order (Amanatides & Woo), from where it enters the covered box. Returns -1 if none, hitT is set otherwise.
+  int pick(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+    if (count == 0) {
+      return -1;
+    }
+    float tEnter = Math.max(Math.max(0, enter(ox, dx, x0, w)), Math.max(enter(oy, dy, y0, h), enter(oz, dz, z0, d)));
+    float tExit = Math.min(Math.min(maxT, exit(ox, dx, x0, w)), Math.min(exit(oy, dy, y0, h), exit(oz, dz, z0, d)));
+    if (tEnter > tExit) {
+      return -1;
+    }
+    float px = ox + tEnter * dx, py = oy + tEnter * dy, pz = oz + tEnter * dz;
+    int cx = Math.min(Math.max((int) Math.floor(px), x0), x0 + w - 1);
+    int cy = Math.min(Math.max((int) Math.floor(py), y0), y0 + h - 1);
+    int cz = Math.min(Math.max((int) Math.floor(pz), z0), z0 + d - 1);
+    int sx = dx > 0 ? 1 : -1, sy = dy > 0 ? 1 : -1, sz = dz > 0 ? 1 : -1;
+    float deltaX = Math.abs(1 / dx), deltaY = Math.abs(1 / dy), deltaZ = Math.abs(1 / dz);
+    float nextX = next(tEnter, px, cx, dx, deltaX); // t of the next tile boundary on x
+    float nextY = next(tEnter, py, cy, dy, deltaY);
+    float nextZ = next(tEnter, pz, cz, dz, deltaZ);
+    float t = tEnter;
+    while (t <= tExit) {
+      int tx = cx - x0, ty = cy - y0, tz = cz - z0;
+      if (Integer.compareUnsigned(tx, w) >= 0 || Integer.compareUnsigned(ty, h) >= 0 || Integer.compareUnsigned(tz, d) >= 0) {
+        return -1;
+      }
+      if ((levels[tz][ty * words + (tx >>> 6)] & (1L << tx)) != 0) {
+        hitT = t;
+        return objects[(tz * h + ty) * w + tx] - 1;
+      }
+      if (nextX <= nextY && nextX <= nextZ) {
+        t = nextX;
+        nextX += deltaX;
+        cx += sx;
+      } else if (nextY <= nextZ) {
+        t = nextY;
+        nextY += deltaY;
+        cy += sy;
+      } else {
+        t = nextZ;
+        nextZ += deltaZ;
+        cz += sz;
+      }
+    }
+    return -1;
+  }
+
+  // Ray parameter where the ray enters the slab [lo, lo + size) of one axis, and leaves it. A ray parallel to the
+  // slab is inside it everywhere or nowhere.
+  static float enter(float o, float dir, int lo, int size) {
+    if (dir == 0) {
+      return o >= lo && o < lo + size ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+    }
+    return Math.min((lo - o) / dir, (lo + size - o) / dir);
+  }
+
+  static float exit(float o, float dir, int lo, int size) {
+    if (dir == 0) {
+      return o >= lo && o < lo + size ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY;
+    }
+    return Math.max((lo - o) / dir, (lo + size - o) / dir);
+  }
+
+  static float next(float t, float p, int cell, float dir, float delta) {
+    if (dir == 0) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return t + (dir > 0 ? cell + 1 - p : p - cell) * delta;
+  }
+
+  // Grows the covered box to hold (x, y, z), at least doubling the sides it extends so that growing is amortized.
+  void cover(int x, int y, int z) {
+    if (tile(x, y, z) >= 0) {
+      return;
+    }
+    int nx0, ny0, nz0, nw, nh, nd;
+    if (d == 0) {
+      nx0 = x - 32;
+      ny0 = y - 8;
+      nz0 = z - 2;
+      nw = 64;
+      nh = 16;
+      nd = 4;
+    } else {
+      nx0 = grownLo(x0, w, x);
+      ny0 = grownLo(y0, h, y);
+      nz0 = grownLo(z0, d, z);
+      nw = (grownHi(x0, w, x) - nx0 + 63) & ~63;
+      nh = grownHi(y0, h, y) - ny0;
+      nd = grownHi(z0, d, z) - nz0;
+    }
+    int nwords = nw >>> 6;
+    long[][] nlevels = new long[nd][nwords * nh];
+    int[] nobjects = new int[nw * nh * nd];
+    for (int tz = 0; tz < d; tz++) {
+      for (int ty = 0; ty < h; ty++) {
+        int from = (tz * h + ty) * w;
+        int to = ((tz + z0 - nz0) * nh + ty + y0 - ny0) * nw + x0 - nx0;
+        System.arraycopy(objects, from, nobjects, to, w);
+        for (int tx = 0; tx < w; tx++) {
+          if (objects[from + tx] != 0) {
+            int bx = tx + x0 - nx0;
+            nlevels[tz + z0 - nz0][(ty + y0 - ny0) * nwords + (bx >>> 6)] |= 1L << bx;
+          }
+        }
+      }
+    }
+    x0 = nx0;
+    y0 = ny0;
+    z0 = nz0;
+    w = nw;
+    h = nh;
+    d = nd;
+    words = nwords;
+    levels = nlevels;
+    objects = nobjects;
+  }
+
+  static int grownLo(int lo, int size, int v) {
+    return v < lo ? Math.min(v, lo - size) : lo;
+  }
+
+  // Exclusive upper bound.
+  static int grownHi(int lo, int size, int v) {
+    return v >= lo + size ? Math.max(v + 1, lo + 2 * size) : lo + size;
+  }
+}
+
+
+// Objects of a room bucketed by cells of Config.CULL_CELL x Config.CULL_CELL tiles, with their aabbs packed in
+// cell order. Culling tests the cells first, then only the objects of the cells in view.
+final class ObjectGrid {
+  // Per slot, i.e object in cell order
+  float[] minX = new float[0], minY = new float[0], minZ = new float[0];
+  float[] maxX = new float[0], maxY = new float[0], maxZ = new float[0];
+  int[] object = new int[0];
+  boolean[] inside = new boolean[0];
+
+  // Per cell
+  int cells;
+  int[] cellStart = new int[1]; // slots of cell c are [cellStart[c], cellStart[c + 1])
+  float[] cMinX = new float[0], cMinY = new float[0], cMinZ = new float[0];
+  float[] cMaxX = new float[0], cMaxY = new float[0], cMaxZ = new float[0];
+  boolean[] cellInside = new boolean[0];
+
+  // Objects whose visible column the last cull updated
+  ObjectStore objects;
+  boolean changed;
+
+  // Room shell and all objects, in room space.
+  final float[] bounds = new float[Frustum.BOX];
+
+  void build(Room room) {
+    objects = room.objects;
+    int n = objects.size;
+    Map<Long, Integer> cellIds = new HashMap<>();
+    int[] cellOf = new int[n];
+    for (int i = 0; i < n; i++) {
+      long cx = Math.floorDiv(objects.x(i), Config.CULL_CELL);
+      long cy = Math.floorDiv(objects.y(i), Config.CULL_CELL);
+      Integer id = cellIds.putIfAbsent((cx << 32) | (cy & 0xffffffffL), cellIds.size());
+      cellOf[i] = id != null ? id : cellIds.size() - 1;
+    }
+    cells = cellIds.size();
+
+    cellStart = new int[cells + 1];
+    for (int i = 0; i < n; i++) {
+      cellStart[cellOf[i] + 1]++;
+    }
+    for (int c = 0; c < cells; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+    int[] fill = Arrays.copyOf(cellStart, cells);
+    object = new int[n];
+    for (int i = 0; i < n; i++) {
+      object[fill[cellOf[i]]++] = i;
+    }
+
+    minX = new float[n]; minY = new float[n]; minZ = new float[n];
+    maxX = new float[n]; maxY = new float[n]; maxZ = new float[n];
+    inside = new boolean[n];
+    for (int j = 0; j < n; j++) {
+      int i = object[j];
+      float[] b = objects.mesh(i).bounds;
+      float x = objects.x(i), y = objects.y(i), z = Config.BASE_Z + objects.z(i);
+      minX[j] = b[0] + x; minY[j] = b[1] + y; minZ[j] = b[2] + z;
+      maxX[j] = b[3] + x; maxY[j] = b[4] + y; maxZ[j] = b[5] + z;
+    }
+
+    cMinX = new float[cells]; cMinY = new float[cells]; cMinZ = new float[cells];
+    cMaxX = new float[cells]; cMaxY = new float[cells]; cMaxZ = new float[cells];
+    cellInside = new boolean[cells];
+    float[] shell = Room.room.bounds;
+    bounds[0] = shell[0]; bounds[1] = shell[1]; bounds[2] = shell[2] + Config.BASE_Z;
+    bounds[3] = shell[3]; bounds[4] = shell[4]; bounds[5] = shell[5] + Config.BASE_Z;
+    for (int c = 0; c < cells; c++) {
+      cMinX[c] = cMinY[c] = cMinZ[c] = Float.POSITIVE_INFINITY;
+      cMaxX[c] = cMaxY[c] = cMaxZ[c] = Float.NEGATIVE_INFINITY;
+      for (int j = cellStart[c]; j < cellStart[c + 1]; j++) {
+        cMinX[c] = Math.min(cMinX[c], minX[j]); cMaxX[c] = Math.max(cMaxX[c], maxX[j]);
+        cMinY[c] = Math.min(cMinY[c], minY[j]); cMaxY[c] = Math.max(cMaxY[c], maxY[j]);
+        cMinZ[c] = Math.min(cMinZ[c], minZ[j]); cMaxZ[c] = Math.max(cMaxZ[c], maxZ[j]);
+      }
+      bounds[0] = Math.min(bounds[0], cMinX[c]); bounds[3] = Math.max(bounds[3], cMaxX[c]);
+      bounds[1] = Math.min(bounds[1], cMinY[c]); bounds[4] = Math.max(bounds[4], cMaxY[c]);
+      bounds[2] = Math.min(bounds[2], cMinZ[c]); bounds[5] = Math.max(bounds[5], cMaxZ[c]);
+    }
+
+    Arrays.fill(objects.visible, 0, n, true);
+  }
+
+  // Updates objects.visible, returns the number of visible objects. 'changed' tells if any object changed visibility.
+  int cull(Frustum f) {
+    f.cull(cMinX, cMinY, cMinZ, cMaxX, cMaxY, cMaxZ, 0, cells, cellInside);
+    int count = 0;
+    changed = false;
+    for (int c = 0; c < cells; c++) {
+      int from = cellStart[c], to = cellStart[c + 1];
+      if (cellInside[c]) {
+        f.cull(minX, minY, minZ, maxX, maxY, maxZ, from, to, inside);
+      } else {
+        Arrays.fill(inside, from, to, false);
+      }
+      boolean[] visible = objects.visible;
+      for (int j = from; j < to; j++) {
+        boolean v = inside[j];
+        changed |= visible[object[j]] != v;
+        visible[object[j]] = v;
+        count += v ? 1 : 0;
+      }
+    }
+    return count;
+  }
+}
+
+
+// An opening in a wall of a room leading into a neighbor room, as an aabb in room space flat along the wall.
+final class Portal {
+  final Room to;
+  final float[] box;
+
+  Portal(Room to, float[] box) {
+    this.to = to;
+    this.box = box;
+  }
+}
+
+
+// Room visibility by portal traversal: starting from the room under the camera, a neighbor is reached if its
+// portal is on screen within the rectangle the current room is seen through, and is then seen through the
+// intersection of both. A room reached through several portals is seen through the union of their rectangles.
+final class Portals {
+  static final ArrayDeque<Room> open = new ArrayDeque<>();
+  static final float[] rect = new float[4];
+
+  // Sets Room.reached and Room.clip of all rooms for the camera translation x, y, z.
+  static void traverse(Room[] rooms, int count, float x, float y, float z) {
+    Room start = null;
+    for (int i = 0; i < count; i++) {
+      Room r = rooms[i];
+      r.reached = false;
+      r.frustum.set(Game.proj, r.x + x, r.y + y, r.z + z, Config.BASE_S, 0, 0, 0, 0);
+      if (start == null && r.frustum.intersects(r.bounds())) {
+        start = r;
+      }
+    }
+    if (start == null) {
+      // Camera outside of the map: no portal information, everything goes to frustum culling.
+      for (int i = 0; i < count; i++) {
+        Room r = rooms[i];
+        r.reached = true;
+        r.clip(-1, 1, -1, 1);
+      }
+      return;
+    }
+    start.reached = true;
+    start.clip(-1, 1, -1, 1);
+    open.add(start);
+    while (!open.isEmpty()) {
+      Room r = open.poll();
+      for (Portal p : r.portals) {
+        Frustum.project(Game.proj, r.x + x, r.y + y, r.z + z, Config.BASE_S, p.box, rect);
+        float l = Math.max(rect[0], r.clip[0]), rt = Math.min(rect[1], r.clip[1]);
+        float b = Math.max(rect[2], r.clip[2]), t = Math.min(rect[3], r.clip[3]);
+        if (l >= rt || b >= t) {
+          continue;
+        }
+        Room n = p.to;
+        if (!n.reached) {
+          n.reached = true;
+          n.clip(l, rt, b, t);
+          open.add(n);
+        } else if (l < n.clip[0] || rt > n.clip[1] || b < n.clip[2] || t > n.clip[3]) {
+          // Rectangles only grow and are bounded by portal corners, so this terminates.
+          n.clip(Math.min(l, n.clip[0]), Math.max(rt, n.clip[1]), Math.min(b, n.clip[2]), Math.max(t, n.clip[3]));
+          open.add(n);
+        }
+      }
+    }
+  }
+}
+
+
+// Per frame visibility counts, summed over all rooms.
+final class Culling {
+  static int visibleRooms;
+  static int culledRooms;
+  static int visibleObjects;
+  static int culledObjects;
+
+  static long frames;
+  static long totalVisibleObjects;
+  static long totalCulledObjects;
+
+  static void add(Room r) {
+    visibleRooms += r.seen ? 1 : 0;
+    culledRooms += r.seen ? 0 : 1;
+    visibleObjects += r.seenObjects;
+    culledObjects += r.objects.size - r.seenObjects;
+  }
+
+  static void beginFrame() {
+    if (frames > 0) {
+      totalVisibleObjects += visibleObjects;
+      totalCulledObjects += culledObjects;
+    }
+    frames++;
+    visibleRooms = culledRooms = visibleObjects = culledObjects = 0;
+  }
+
+  static String summary() {
+    return String.format("rooms %d/%d, objects %d/%d", visibleRooms, visibleRooms + culledRooms,
+        visibleObjects, visibleObjects + culledObjects);
+  }
+
+  static String report() {
+    long n = Math.max(frames - 1, 1);
+    return String.format("culling: last frame %s visible, %.1f visible and %.1f culled objects/frame",
+        summary(), (double) totalVisibleObjects / n, (double) totalCulledObjects / n);
+  }
+}
+
+
+final class Room {
+
+  static final Mesh room = AssetFile.mesh("room", Data.Room.vertices, Data.Room.indices, Data.Room.uvs);
+  static final Mesh box = AssetFile.mesh("box", Data.Box.vertices, Data.Box.indices, Data.Box.uvs);
+  static final Mesh pyr = AssetFile.mesh("pyr", Data.Pyramid.vertices, Data.Pyramid.indices, Data.Pyramid.uvs);
+  static final Mesh[] meshes = { box, pyr }; // by Chunk file index
+
+  float x;
+  float y;
+  float z;
+
+  Room(float x0, float y0, float z0) {
+    x = x0;
+    y = y0;
+    z = z0;
+  }
+
+  final ObjectStore objects = new ObjectStore();
+  final TileIndex tiles = new TileIndex();
+
+  // Instanced mode: one batch per distinct Mesh, rebuilt lazily after objects are added.
+  boolean instanced = Config.INSTANCING;
+  List<InstanceBatch> batches = new ArrayList<>();
+  boolean batchesDirty;
+  boolean batchesFilled; // offsets filled by record(), uploaded by finish()
+
+  // Static mode: the room shell and all objects pre-transformed into a single mesh, rebaked lazily.
+  Mesh baked;
+  boolean bakeDirty;
+
+  // Culling: objects by grid cell, rebuilt lazily after objects are added.
+  final Frustum frustum = new Frustum();
+  final ObjectGrid grid = new ObjectGrid();
+  boolean gridDirty = true;
+
+  // Portals: openings to neighbor rooms, and the result of the last Portals.traverse().
+  final List<Portal> portals = new ArrayList<>();
+  boolean reached = true;
+  final float[] clip = { -1, 1, -1, 1 }; // NDC rectangle the room is seen through
+
+  // Culling counts of the last record(), added to Culling by finish().
+  boolean seen;
+  int seenObjects;
+
+  // Rendering is split in three so that the middle part can run on any thread, see ParallelRecorder:
+  //  prepare() on the GL thread: rebakes, builds the grid and creates the batches of new meshes,
+  //  record() anywhere: culls and adds draw commands to q, never calls GL,
+  //  finish() on the GL thread, before q is flushed: uploads the instance offsets filled by record().
+  void render(RenderQueue q, float dx, float dy, float dz) {
+    prepare();
+    record(q, dx, dy, dz);
+    finish();
+  }
+
+  void prepare() {
+    bounds();
+    if (baked != null && bakeDirty) {
+      bake();
+    }
+    if (instanced && batchesDirty) {
+      objects.group();
+      for (int g = 0; g < objects.groups; g++) {
+        batchOf(ObjectStore.meshes[objects.groupMesh[g]]);
+      }
+    }
+  }
+
+  void finish() {
+    if (batchesFilled) {
+      for (InstanceBatch b : batches) {
+        b.upload();
+      }
+      batchesFilled = false;
+    }
+    Culling.add(this);
+  }
+
+  void record(RenderQueue q, float dx, float dy, float dz) {
+    dx += x;
+    dy += y;
+    dz += z;
+    seen = false;
+    seenObjects = 0;
+    if (Config.PORTALS && !reached) {
+      return;
+    }
+    if (Config.CULLING || Config.PORTALS) {
+      frustum.set(Game.proj, dx, dy, dz, Config.BASE_S, clip[0], clip[1], clip[2], clip[3]);
+      if (!cull()) {
+        return;
+      }
+    } else {
+      seen = true;
+      seenObjects = objects.size;
+    }
+    if (baked != null) {
+      baked.render(q, dx, dy, dz);
+      return;
+    }
+    room.render(q, dx, dy, dz);
+    if (instanced) {
+      renderInstanced(q, dx, dy, dz);
+      return;
+    }
+    ObjectStore o = objects;
+    for (int i = 0; i < o.size; i++) {
+      if (o.visible[i]) {
+        ObjectStore.meshes[o.mesh[i]].render(q, o.x(i), o.y(i), o.z(i), o.material[i], dx, dy, dz);
+      }
+    }
+  }
+
+  // Room shell and objects aabb in room space.
+  float[] bounds() {
+    if (gridDirty) {
+      grid.build(this);
+      gridDirty = false;
+      batchesDirty = true;
+    }
+    return grid.bounds;
+  }
+
+  void clip(float l, float r, float b, float t) {
+    clip[0] = l;
+    clip[1] = r;
+    clip[2] = b;
+    clip[3] = t;
+  }
+
+  // Adds an opening from this room into 'to', with z relative to the floor like objects.
+  void addPortal(Room to, float x0, float y0, float z0, float x1, float y1, float z1) {
+    portals.add(new Portal(to, new float[] { x0, y0, Config.BASE_Z + z0, x1, y1, Config.BASE_Z + z1 }));
+  }
+
+  // Tests the room then its objects against the frustum, returns false if the whole room is out of view.
+  boolean cull() {
+    if (!frustum.intersects(grid.bounds)) {
+      return false;
+    }
+    seen = true;
+    if (baked != null) {
+      seenObjects = objects.size;
+      return true;
+    }
+    seenObjects = grid.cull(frustum);
+    batchesDirty |= grid.changed;
+    return true;
+  }
+
+  void renderInstanced(RenderQueue q, float dx, float dy, float dz) {
+    if (batchesDirty) {
+      fillBatches();
+      batchesFilled = true;
+    }
+    for (int i = 0; i < batches.size(); i++) {
+      batches.get(i).render(q, dx, dy, dz);
+    }
+  }
+
+  void rebuildBatches() {
+    fillBatches();
+    for (InstanceBatch b : batches) {
+      b.upload();
+    }
+  }
+
+  // Cpu side only: the batches of all meshes must exist, see prepare(). Walks the objects mesh by mesh.
+  void fillBatches() {
+    for (InstanceBatch b : batches) {
+      b.clear();
+    }
+    ObjectStore o = objects;
+    o.group();
+    for (int g = 0; g < o.groups; g++) {
+      InstanceBatch b = batchOf(ObjectStore.meshes[o.groupMesh[g]]);
+      for (int k = o.groupStart[g]; k < o.groupStart[g + 1]; k++) {
+        int i = o.grouped[k];
+        if (!Config.CULLING || o.visible[i]) {
+          b.add(o.x(i), o.y(i), o.z(i), o.material[i]);
+        }
+      }
+    }
+    batchesDirty = false;
+  }
+
+  // Switches the room to static mode: concatenates the shell and every object, with their tile offsets
+  // applied, into one mesh drawn with a single call.
+  void bake() {
+    // Boxes go through the TileMesher, which only keeps their visible faces, merged.
+    int[] quads = Config.TILE_MESHING ? TileMesher.mesh(this) : new int[0];
+    room.decode();
+    int nVertices = room.positions.length / K.float_per_vertex + 4 * (quads.length / TileMesher.Q_INTS);
+    int nIndices = room.indices.length + 6 * (quads.length / TileMesher.Q_INTS);
+    for (int i = 0; i < objects.size; i++) {
+      Mesh m = objects.mesh(i);
+      if (Config.TILE_MESHING && m == box) {
+        continue;
+      }
+      m.decode();
+      nVertices += m.positions.length / K.float_per_vertex;
+      nIndices += m.indices.length;
+    }
+
+    float[] positions = new float[nVertices * K.float_per_vertex];
+    float[] uvs = new float[nVertices * K.float_per_uv];
+    float[] layers = new float[nVertices];
+    int[] indices = new int[nIndices];
+
+    int v = bakeMesh(room, 0, 0, 0, TileSet.TURQUOISE, positions, uvs, layers, indices, 0, 0);
+    int n = room.indices.length;
+    for (int i = 0; i < objects.size; i++) {
+      Mesh m = objects.mesh(i);
+      if (Config.TILE_MESHING && m == box) {
+        continue;
+      }
+      v = bakeMesh(m, objects.x(i), objects.y(i), objects.z(i), objects.material(i), positions, uvs, layers, indices, v, n);
+      n += m.indices.length;
+    }
+    TileMesher.emit(quads, positions, uvs, layers, indices, v, n);
+
+    if (baked == null) {
+      baked = Mesh.load(positions, indices, uvs, layers);
+    } else {
+      baked.update(positions, indices, uvs, layers);
+    }
+    bakeDirty = false;
+  }
+
+  // Appends mesh m translated by (ox, oy, oz) at vertex v and index n, returns the next free vertex.
+  static int bakeMesh(Mesh m, int ox, int oy, int oz, int material,
+                      float[] positions, float[] uvs, float[] layers, int[] indices, int v, int n) {
+    int nv = m.positions.length / K.float_per_vertex;
+    for (int j = 0; j < nv; j++) {
+      int p = (v + j) * K.float_per_vertex;
+      int q = j * K.float_per_vertex;
+      positions[p + 0] = m.positions[q + 0] + ox;
+      positions[p + 1] = m.positions[q + 1] + oy;
+      positions[p + 2] = m.positions[q + 2] + oz;
+      int t = (v + j) * K.float_per_uv;
+      int u = j * K.float_per_uv;
+      uvs[t + 0] = m.uvs[u + 0];
+      uvs[t + 1] = m.uvs[u + 1];
+      // the fragment shader picks the variant with floor(z) and z is now the world z: flip the variant of odd
+      // z offsets so that objects keep the variant of their local z.
+      int l = (int) m.layers[j];
+      layers[v + j] = TileSet.layer(l / TileSet.VARIANTS + material, l + oz);
+    }
+    for (int j = 0; j < m.indices.length; j++) {
+      indices[n + j] = m.indices[j] + v;
+    }
+    return v + nv;
+  }
+
+  // Linear scan: rooms only hold a handful of distinct meshes.
+  InstanceBatch batchOf(Mesh m) {
+    for (InstanceBatch b : batches) {
+      if (b.mesh == m) {
+        return b;
+      }
+    }
+    InstanceBatch b = new InstanceBatch(m);
+    batches.add(b);
+    return b;
+  }
+
+  // Releases the GL objects owned by the room: instance batches and baked mesh. Shared meshes stay alive.
+  void free() {
+    for (InstanceBatch b : batches) {
+      b.free();
+    }
+    batches.clear();
+    batchesDirty = true;
+    if (baked != null) {
+      baked.free();
+      baked = null;
+    }
+  }
+
+  void addObj(Mesh m, int x, int y) {
+    addObj(m, x, y, 0);
+  }
+
+  void addObj(Mesh m, int x, int y, int z) {
+    addObj(m, x, y, z, TileSet.TURQUOISE);
+  }
+
+  void addObj(Mesh m, int x, int y, int z, int material) {
+    tiles.add(objects.add(m, x, y, z, material), x, y, z);
+    changedObjects();
+  }
+
+  // Swap-removes object i: the last object takes its index.
+  void removeObj(int i) {
+    tiles.remove(objects, i);
+    objects.remove(i);
+    changedObjects();
+  }
+
+  void changedObjects() {
+    batchesDirty = true;
+    bakeDirty = true;
+    gridDirty = true;
+  }
+
+  void addBox(int x, int y) {
+    addObj(box, x, y);
+  }
+
+  void addPyr(int x, int y) {
+    addObj(pyr, x, y);
+  }
+
+}
+
+
+// Bakes the Room.box objects of a room, which sit on the integer tile grid, as their visible faces only. A side
+// face against a box on the neighbor tile at the same z is dropped, and so is a top face under a box at z + 1 on the
+// same tile. Coplanar faces of the same material are merged
+// greedily: top faces into rectangles, side faces into runs along their wall. Side faces of boxes stacked in z are
+// not merged, boxes are 0.9 high. Uvs are scaled with the quads so that tiles still repeat once per tile, and a
+// tile holding several boxes is drawn once, with the material of the first.
+final class TileMesher {
+  // Faces of Data.Box, 4 vertices and 2 triangles each, in this order.
+  static final int TOP = 0, NORTH = 1, EAST = 2, SOUTH = 3, WEST = 4, FACES = 5;
+  static final int[] DX = { 0, 0, 1, 0, -1 }; // neighbor tile covering each side face
+  static final int[] DY = { 0, 1, 0, -1, 0 };
+  static final int[][] UV_AXES = { { 0, 1 }, { 0, -1 }, { 1, -1 }, { 0, -1 }, { 1, -1 } }; // axis scaling u and v
+
+  // Quad layout: face, tile, extent in tiles along x and y, material
+  static final int Q_FACE = 0, Q_X = 1, Q_Y = 2, Q_Z = 3, Q_W = 4, Q_H = 5, Q_MATERIAL = 6, Q_INTS = 7;
+
+  static long boxes;
+  static long faces;  // of the distinct boxes
+  static long hidden;
+  static long quads;
+
+  static int[] out = new int[64 * Q_INTS];
+  static int count;
+
+  // Quads of the boxes of room r.
+  static synchronized int[] mesh(Room r) {
+    ObjectStore o = r.objects;
+    int box = ObjectStore.idOf(Room.box);
+    int n = 0;
+    for (int i = 0; i < o.size; i++) {
+      n += o.mesh[i] == box ? 1 : 0;
+    }
+    int[] xs = new int[n];
+    int[] ys = new int[n];
+    long[] levels = new long[n]; // z in the high bits, to visit boxes level by level
+    int[] materials = new int[n];
+    for (int i = 0, b = 0; i < o.size; i++) {
+      if (o.mesh[i] == box) {
+        xs[b] = o.x(i);
+        ys[b] = o.y(i);
+        materials[b] = o.material(i);
+        levels[b] = ((long) o.z(i) << 32) | b;
+        b++;
+      }
+    }
+    Arrays.sort(levels);
+    count = 0;
+    boxes += n;
+    for (int first = 0; first < n; ) {
+      int z = (int) (levels[first] >> 32);
+      int last = levelEnd(levels, first, n);
+      int next = last + 1;
+      if (next < n && (int) (levels[next] >> 32) == z + 1) {
+        level(z, levels, first, last, next, levelEnd(levels, next, n), xs, ys, materials);
+      } else {
+        level(z, levels, first, last, n, n - 1, xs, ys, materials);
+      }
+      first = next;
+    }
+    quads += count;
+    return Arrays.copyOf(out, count * Q_INTS);
+  }
+
+  // Last index of the level starting at levels[first].
+  static int levelEnd(long[] levels, int first, int n) {
+    int z = (int) (levels[first] >> 32);
+    int last = first;
+    while (last + 1 < n && (int) (levels[last + 1] >> 32) == z) {
+      last++;
+    }
+    return last;
+  }
+
+  // Boxes levels[first..last], all at z, on a grid of material + 1 per tile, 0 for none. The boxes
+  // levels[above..aboveLast] are at z + 1, none if above > aboveLast.
+  static void level(int z, long[] levels, int first, int last, int above, int aboveLast, int[] xs, int[] ys,
+      int[] materials) {
+    int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+    for (int l = first; l <= last; l++) {
+      int b = (int) levels[l];
+      x0 = Math.min(x0, xs[b]);
+      y0 = Math.min(y0, ys[b]);
+      x1 = Math.max(x1, xs[b]);
+      y1 = Math.max(y1, ys[b]);
+    }
+    int w = x1 - x0 + 1;
+    int h = y1 - y0 + 1;
+    int[] grid = new int[w * h];
+    for (int l = first; l <= last; l++) {
+      int b = (int) levels[l];
+      int c = (ys[b] - y0) * w + xs[b] - x0;
+      if (grid[c] == 0) {
+        grid[c] = materials[b] + 1;
+        faces += FACES;
+      }
+    }
+
+    // Top faces: rectangles, grown along x then along y, on the grid less the tiles covered by the level above.
+    int[] tops = grid.clone();
+    for (int l = above; l <= aboveLast; l++) {
+      int b = (int) levels[l];
+      int x = xs[b] - x0;
+      int y = ys[b] - y0;
+      if (x >= 0 && y >= 0 && x < w && y < h && tops[y * w + x] != 0) {
+        tops[y * w + x] = 0;
+        hidden++;
+      }
+    }
+    boolean[] done = new boolean[w * h];
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int c = y * w + x;
+        int m = tops[c];
+        if (m == 0 || done[c]) {
+          continue;
+        }
+        int rw = 1;
+        while (x + rw < w && tops[c + rw] == m && !done[c + rw]) {
+          rw++;
+        }
+        int rh = 1;
+        grow:
+        while (y + rh < h) {
+          for (int k = 0; k < rw; k++) {
+            int d = c + rh * w + k;
+            if (tops[d] != m || done[d]) {
+              break grow;
+            }
+          }
+          rh++;
+        }
+        for (int j = 0; j < rh; j++) {
+          Arrays.fill(done, c + j * w, c + j * w + rw, true);
+        }
+        add(TOP, x0 + x, y0 + y, z, rw, rh, m - 1);
+      }
+    }
+
+    // Side faces: runs of exposed faces of the same material, along x for north and south, along y otherwise.
+    for (int f = NORTH; f < FACES; f++) {
+      boolean alongX = DY[f] != 0;
+      int rows = alongX ? h : w;
+      int cols = alongX ? w : h;
+      for (int r = 0; r < rows; r++) {
+        for (int k = 0; k < cols; ) {
+          int x = alongX ? k : r;
+          int y = alongX ? r : k;
+          int m = grid[y * w + x];
+          if (m == 0) {
+            k++;
+            continue;
+          }
+          if (!exposed(grid, w, h, x, y, f)) {
+            hidden++;
+            k++;
+            continue;
+          }
+          int run = 1;
+          while (k + run < cols) {
+            int xr = alongX ? x + run : x;
+            int yr = alongX ? y : y + run;
+            if (grid[yr * w + xr] != m || !exposed(grid, w, h, xr, yr, f)) {
+              break;
+            }
+            run++;
+          }
+          add(f, x0 + x, y0 + y, z, alongX ? run : 1, alongX ? 1 : run, m - 1);
+          k += run;
+        }
+      }
+    }
+  }
+
+  static boolean exposed(int[] grid, int w, int h, int x, int y, int f) {
+    int nx = x + DX[f];
+    int ny = y + DY[f];
+    return nx < 0 || ny < 0 || nx >= w || ny >= h || grid[ny * w + nx] == 0;
+  }
+
+  static void add(int face, int x, int y, int z, int w, int h, int material) {
+    int q = count * Q_INTS;
+    if (q == out.length) {
+      out = Arrays.copyOf(out, 2 * out.length);
+    }
+    out[q + Q_FACE] = face;
+    out[q + Q_X] = x;
+    out[q + Q_Y] = y;
+    out[q + Q_Z] = z;
+    out[q + Q_W] = w;
+    out[q + Q_H] = h;
+    out[q + Q_MATERIAL] = material;
+    count++;
+  }
+
+  // Appends the quads at vertex v and index n, like Room.bakeMesh(): the Data.Box face stretched over the quad.
+  static void emit(int[] quads, float[] positions, float[] uvs, float[] layers, int[] indices, int v, int n) {
+    for (int q = 0; q < quads.length; q += Q_INTS) {
+      int f = quads[q + Q_FACE];
+      int z = quads[q + Q_Z];
+      int[] extent = { quads[q + Q_W], quads[q + Q_H] };
+      float layer = TileSet.layer(quads[q + Q_MATERIAL], z);
+      for (int j = 0; j < 4; j++) {
+        int t = 4 * f + j;
+        int p = (v + j) * K.float_per_vertex;
+        positions[p + 0] = quads[q + Q_X] + Data.Box.vertices[3 * t + 0] * extent[0];
+        positions[p + 1] = quads[q + Q_Y] + Data.Box.vertices[3 * t + 1] * extent[1];
+        positions[p + 2] = z + Data.Box.vertices[3 * t + 2];
+        for (int k = 0; k < K.float_per_uv; k++) {
+          int axis = UV_AXES[f][k];
+          uvs[(v + j) * K.float_per_uv + k] = Data.Box.uvs[2 * t + k] * (axis < 0 ? 1 : extent[axis]);
+        }
+        layers[v + j] = layer;
+      }
+      for (int j = 0; j < 6; j++) {
+        indices[n + j] = Data.Box.indices[6 * f + j] - 4 * f + v;
+      }
+      v += 4;
+      n += 6;
+    }
+  }
+
+  static String report() {
+    return String.format("tile mesher: %d boxes, %d of %d faces hidden, %d quads (%.1fx fewer triangles)",
+        boxes, hidden, faces, quads, (double) faces / Math.max(quads, 1));
+  }
+}
+
+
+final class Input {
+
+  static final int[] arrow_keys = {
+    Keyboard.KEY_W,
+    Keyboard.KEY_A,
+    Keyboard.KEY_S,
+    Keyboard.KEY_D,
+  };
+
+  // Camera controls, as a bitmask handed to the simulation.
+  static final int LEFT = 1, RIGHT = 2, UP = 4, DOWN = 8, FORWARD = 16, BACKWARD = 32;
+
+  static void process() {
+    for (int k : arrow_keys) {
+      if (Keyboard.isKeyDown(k)) {
+        System.out.println("keydown: " + k);
+      }
+    }
+  }
+
+  // Keyboard state is only readable from the display thread.
+  static int controls() {
+    int c = 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_LEFT)  ? LEFT : 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_RIGHT) ? RIGHT : 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_UP)    ? UP : 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_DOWN)  ? DOWN : 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_W)     ? FORWARD : 0;
+    c |= Keyboard.isKeyDown(Keyboard.KEY_S)     ? BACKWARD : 0;
+    return c;
+  }
+}
+
+
+// Camera state after one simulation tick. Published snapshots are never modified, the simulation writes the next
+// tick into a spare one.
+final class SimState {
+  long tick;
+  long nanos;       // System.nanoTime() when the tick was simulated
+  float x, y, z;    // camera translation
+  float px, py, pz; // camera translation at the previous tick
+  float s;          // speed of the x oscillation, in units per second
+
+  void set(SimState o) {
+    tick = o.tick;
+    nanos = o.nanos;
+    x = o.x; y = o.y; z = o.z;
+    px = o.px; py = o.py; pz = o.pz;
+    s = o.s;
+  }
+
+  static float lerp(float a, float b, float t) {
+    return a + (b - a) * t;
+  }
+}
+
+
+// Lock-free triple buffer of SimStates between one writer and one reader. The writer always has a spare state to
+// fill, the reader keeps the latest published one until a newer one exists: neither ever waits on the other.
+final class SnapshotBuffer {
+  static final int DIRTY = 4; // the middle state is newer than the front one
+
+  final SimState[] states = { new SimState(), new SimState(), new SimState() };
+  final AtomicInteger middle = new AtomicInteger(1);
+  int back = 0;  // writer side
+  int front = 2; // reader side
+
+  SimState back() {
+    return states[back];
+  }
+
+  void publish() {
+    back = middle.getAndSet(back | DIRTY) & ~DIRTY;
+  }
+
+  SimState latest() {
+    if ((middle.get() & DIRTY) != 0) {
+      front = middle.getAndSet(front) & ~DIRTY;
+    }
+    return states[front];
+  }
+}
+
+
+// Fixed timestep simulation: the camera advances by ticks of 1 / Config.SIM_HZ seconds whatever the frame rate,
+// and frames draw the camera interpolated between the last two ticks. Ticks either run on the render thread,
+// catching up the time elapsed since the previous frame, or on their own thread (Config.SIM_THREAD), which
+// publishes them through a SnapshotBuffer.
+final class GameLoop {
+  static final long TICK_NANOS = 1_000_000_000L / Config.SIM_HZ;
+  static final float DT = 1f / Config.SIM_HZ;
+
+  static final SnapshotBuffer snapshots = new SnapshotBuffer();
+  static final SimState state = new SimState(); // writer side copy of the last tick
+  static final AtomicInteger controls = new AtomicInteger();
+
+  static Thread thread;
+  static volatile boolean running;
+  static long lastNanos;
+  static long accumulator; // nanos not simulated yet, render thread mode
+
+  // Interpolated camera of the current frame
+  static float x, y, z;
+
+  static long ticks;
+  static long frames;
+  static long clampedNanos; // simulation time dropped when a frame needs more than Config.SIM_MAX_STEPS ticks
+
+  static void start(float s) {
+    state.s = s;
+    state.nanos = lastNanos = System.nanoTime();
+    snapshots.back().set(state);
+    snapshots.publish();
+    if (!Config.SIM_THREAD) {
+      return;
+    }
+    running = true;
+    thread = new Thread(GameLoop::run, "simulation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static void run() {
+    long next = System.nanoTime() + TICK_NANOS;
+    while (running) {
+      long now = System.nanoTime();
+      if (now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      int steps = 0;
+      while (next <= now && steps < Config.SIM_MAX_STEPS) {
+        tick(controls.get(), next);
+        next += TICK_NANOS;
+        steps++;
+      }
+      if (next <= now) {
+        clampedNanos += now - next;
+        next = now + TICK_NANOS;
+      }
+      snapshots.back().set(state);
+      snapshots.publish();
+    }
+  }
+
+  static void tick(int c, long nanos) {
+    float speed = Config.CAMERA_SPEED * DT;
+    state.px = state.x;
+    state.py = state.y;
+    state.pz = state.z;
+    if ((c & Input.LEFT) != 0)     { state.x += speed; }
+    if ((c & Input.RIGHT) != 0)    { state.x -= speed; }
+    if ((c & Input.UP) != 0)       { state.y -= speed; }
+    if ((c & Input.DOWN) != 0)     { state.y += speed; }
+    if ((c & Input.FORWARD) != 0)  { state.z -= speed; }
+    if ((c & Input.BACKWARD) != 0) { state.z += speed; }
+    state.x += state.s * DT;
+    if (Math.abs(state.x) > 1) {
+      state.s *= -1;
+    }
+    state.tick++;
+    state.nanos = nanos;
+    ticks++;
+  }
+
+  // Once per frame from the render thread, with the controls sampled for this frame. Sets x, y, z.
+  static void update(int c) {
+    frames++;
+    long now = System.nanoTime();
+    float alpha;
+    if (thread != null) {
+      controls.set(c);
+      SimState st = snapshots.latest();
+      alpha = Math.min((float) (now - st.nanos) / TICK_NANOS, 1);
+      interpolate(st, alpha);
+      return;
+    }
+    accumulator += now - lastNanos;
+    lastNanos = now;
+    int steps = 0;
+    while (accumulator >= TICK_NANOS && steps < Config.SIM_MAX_STEPS) {
+      tick(c, now - accumulator + TICK_NANOS);
+      accumulator -= TICK_NANOS;
+      steps++;
+    }
+    if (accumulator >= TICK_NANOS) {
+      clampedNanos += accumulator - accumulator % TICK_NANOS;
+      accumulator %= TICK_NANOS;
+    }
+    interpolate(state, (float) accumulator / TICK_NANOS);
+  }
+
+  static void interpolate(SimState st, float alpha) {
+    x = SimState.lerp(st.px, st.x, alpha);
+    y = SimState.lerp(st.py, st.y, alpha);
+    z = SimState.lerp(st.pz, st.z, alpha);
+  }
+
+  static void stop() {
+    running = false;
+    if (thread != null) {
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      thread = null;
+    }
+  }
+
+  static String report() {
+    return String.format("simulation: %d ticks at %d Hz over %d frames (%.2f ticks/frame), %s, %.1f ms clamped",
+        ticks, Config.SIM_HZ, frames, (double) ticks / Math.max(frames, 1),
+        Config.SIM_THREAD ? "own thread" : "render thread", clampedNanos / 1e6);
+  }
+}
+
+
@@ -2,14 +2,17 @@
 
 in vec2 out_uv;
 in float z;
+flat in float out_layer;
 
 out vec4 out_color; // RGBA
 
-uniform sampler2D sampler;
+uniform sampler2DArray sampler;
 
 void main(void) {
 
-  vec2 uv = vec2(out_uv.x + floor(z) * 0.5, out_uv.y);
+  // every material has two layers, its tile and the tile rolled by half a tile, alternating with z
+  float variant = mod(out_layer + floor(z), TILE_VARIANTS);
+  float l = out_layer - mod(out_layer, TILE_VARIANTS) + variant;
 
-  out_color = texture(sampler, uv);
+  out_color = texture(sampler, vec3(out_uv, l));
 }
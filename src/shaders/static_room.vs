@@ -2,25 +2,27 @@
 
 in vec3 position;
 in vec2 uv;
+in vec3 offset;   // per-instance tile offset, (0,0,0) when the attribute array is disabled
+in float layer;   // tile layer, per vertex or per instance, see TileSet
+in float draw;    // entry of the Draw block, per instance, 0 when the attribute array is disabled
 
 out vec2 out_uv;
 out float z;
+flat out float out_layer;
 
-uniform float base_s;
-uniform float base_z;
-uniform vec2 world_xy;
-uniform vec3 translation; // TODO: apply projection matrix scaling so that translation can be specified in world tiles !
-uniform mat4 projection;
+#include "uniform_blocks.glsl"
 
 void main(void) {
+  DrawConstants d = draws[int(draw)];
   vec4 p = vec4(position.xyz, 1.0);
-  p.xy += world_xy;
-  p.z += base_z;
+  p.xy += d.world.xy + offset.xy;
+  p.z += params.x + d.world.z + offset.z;
   p = projection * p;
-  p.xyz += translation * p.w;           // post-projection translation: don't forget the w scaling
-  p.w *= base_s;
+  p.xyz += (camera.xyz + d.translation.xyz) * p.w; // post-projection translation: don't forget the w scaling
+  p.w *= camera.w;
 
   gl_Position = p;
   out_uv = uv;
+  out_layer = layer + d.world.w;
   z = position.z;
 }
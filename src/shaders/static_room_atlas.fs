@@ -0,0 +1,20 @@
+#version 400 core
+
+in vec2 out_uv;
+in float z;
+flat in float out_layer;
+
+out vec4 out_color; // RGBA
+
+uniform sampler2D sampler;
+uniform vec2 atlas_grid; // tiles per row, rows
+
+void main(void) {
+
+  // same layer selection as static_room.fs, then the cell of that layer in the atlas
+  float variant = mod(out_layer + floor(z), TILE_VARIANTS);
+  float l = out_layer - mod(out_layer, TILE_VARIANTS) + variant;
+  vec2 cell = vec2(mod(l, atlas_grid.x), floor(l / atlas_grid.x));
+
+  out_color = texture(sampler, (fract(out_uv) + cell) / atlas_grid);
+}
@@ -0,0 +1,20 @@
+// The std140 blocks of UniformBlocks, included by every program
+
+// Shared by all programs, written once per frame
+layout(std140) uniform Frame {
+  mat4 projection;
+  vec4 camera;  // xyz: post-projection translation of the camera, w: base scale applied after the projection
+  vec4 params;  // x: base z translation before the projection
+};
+
+// Constants of one draw
+struct DrawConstants {
+  vec4 world;       // xy: tile offset, z: tile z, w: tile layer
+  vec4 translation; // xyz: post-projection translation of the room relative to the camera
+                    // TODO: apply projection matrix scaling so that translation can be specified in world tiles !
+};
+
+// Constants of the current run of draws, each draw reads its own entry, see RenderQueue.flush()
+layout(std140) uniform Draw {
+  DrawConstants draws[128]; // UniformBlocks.RUN_DRAWS
+};